@@ -1,14 +1,18 @@
 package org.janelia.thickness;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.janelia.utility.DoubleStrip;
+
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.RealRandomAccess;
-import net.imglib2.RealRandomAccessible;
-import net.imglib2.img.array.ArrayImgs;
-import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.view.Views;
 
 /**
@@ -30,8 +34,6 @@ public class EstimateScalingFactors
 			final RandomAccessibleInterval< W > pairwiseWeights )
 	{
 
-		final double inverseRegularizerWeight = 1 - regularizerWeight;
-
 		final RandomAccess< T > corrAccess = correlations.randomAccess();
 		final RandomAccess< W > wAccess = pairwiseWeights.randomAccess();
 
@@ -42,47 +44,245 @@ public class EstimateScalingFactors
 
 			for ( int n = 0; fitCursor.hasNext(); ++n )
 			{
+				// scalingFactors[ n ] is written only after all reads for n,
+				// so reading in place is the same as reading from a copy
+				final double result = estimateSection( n, corrAccess, wAccess, fitCursor.next(), scalingFactors, coordinates, regularizerWeight, comparisonRange );
+				if ( !Double.isNaN( result ) )
+					scalingFactors[ n ] = result;
+			}
+
+		}
+	}
+
+	/**
+	 * Jacobi style variant of
+	 * {@link #estimateQuadraticFromMatrix(RandomAccessibleInterval, double[], double[], RandomAccessibleInterval, double, int, int, RandomAccessibleInterval)}:
+	 * In each iteration, all sections are updated from a snapshot of the
+	 * scaling factors of the previous iteration. Sections are partitioned
+	 * into nTasks blocks that are processed in parallel by es. The result is
+	 * deterministic and does not depend on nTasks or the number of threads
+	 * but it is different from the Gauss-Seidel style updates of
+	 * {@link #estimateQuadraticFromMatrix(RandomAccessibleInterval, double[], double[], RandomAccessibleInterval, double, int, int, RandomAccessibleInterval)}.
+	 */
+	public static < T extends RealType< T >, W extends RealType< W > > void estimateQuadraticFromMatrixJacobi(
+			final RandomAccessibleInterval< T > correlations,
+			final double[] scalingFactors,
+			final double[] coordinates,
+			final RandomAccessibleInterval< double[] > localFits,
+			final double regularizerWeight,
+			final int comparisonRange,
+			final int nIterations,
+			final RandomAccessibleInterval< W > pairwiseWeights,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+
+		final double[] oldScalingFactors = scalingFactors.clone();
 
-				// is this allocation expensive? should this occur one loop
-				// further outside?
-				final double[] oldScalingFactors = scalingFactors.clone();
-
-				corrAccess.setPosition( n, 0 );
-				wAccess.setPosition( n, 0 );
-
-				final double[] lf = fitCursor.next();
-				final RealRandomAccessible< DoubleType > interpolatedFit = Views.interpolate( Views.extendValue( ArrayImgs.doubles( lf, lf.length ), new DoubleType( Double.NaN ) ), new NLinearInterpolatorFactory< DoubleType >() );
-				final RealRandomAccess< DoubleType > ra = interpolatedFit.realRandomAccess();
-				double enumeratorSum = 0.0;
-				double denominatorSum = 0.0;
-				final int minVal = Math.max( n - comparisonRange, 0 );
-				final int maxVal = Math.min( n + comparisonRange, scalingFactors.length );
-				for ( int i = minVal; i < maxVal; ++i )
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		for ( final int[] block : blocks( scalingFactors.length, nTasks ) )
+		{
+			tasks.add( () -> {
+				final RandomAccess< T > corrAccess = correlations.randomAccess();
+				final RandomAccess< W > wAccess = pairwiseWeights.randomAccess();
+				final RandomAccess< double[] > fitAccess = localFits.randomAccess();
+				for ( int n = block[ 0 ]; n < block[ 1 ]; ++n )
 				{
-					if ( i == n )
-						continue;
-					corrAccess.setPosition( i, 1 );
-					wAccess.setPosition( i, 1 );
-					ra.setPosition( Math.abs( coordinates[ i ] - coordinates[ n ] ), 0 );
-					// fits are negative because LUTRealtransform requires
-					// increasing function
-					final double fitVal = -ra.get().get();
-					final double measure = corrAccess.get().getRealDouble();
-					if ( Double.isNaN( fitVal ) || Double.isNaN( measure ) || measure <= 0.0 )
-						continue;
-					final double w = wAccess.get().getRealDouble();
-					final double prod = oldScalingFactors[ i ] * measure;
-					final double h = w * prod;
-
-					enumeratorSum += h * fitVal;
-					denominatorSum += h * prod;
+					fitAccess.setPosition( n, 0 );
+					final double result = estimateSection( n, corrAccess, wAccess, fitAccess.get(), oldScalingFactors, coordinates, regularizerWeight, comparisonRange );
+					if ( !Double.isNaN( result ) )
+						scalingFactors[ n ] = result;
 				}
-				final double result = enumeratorSum / denominatorSum * inverseRegularizerWeight + regularizerWeight * oldScalingFactors[ n ];
+				return null;
+			} );
+		}
+
+		for ( int iter = 0; iter < nIterations; ++iter )
+		{
+			System.arraycopy( scalingFactors, 0, oldScalingFactors, 0, scalingFactors.length );
+			for ( final Future< Void > f : es.invokeAll( tasks ) )
+				f.get();
+		}
+	}
+
+	/**
+	 * Primitive equivalent of
+	 * {@link #estimateQuadraticFromMatrix(RandomAccessibleInterval, double[], double[], RandomAccessibleInterval, double, int, int, RandomAccessibleInterval)}
+	 * that reads correlations from a {@link DoubleStrip} in permuted order.
+	 *
+	 * @param correlations
+	 *            correlations in original order
+	 * @param permutation
+	 *            maps permuted (sorted) indices to original indices
+	 * @param scalingFactors
+	 *            scaling factors in permuted order, updated in place
+	 * @param coordinates
+	 *            coordinates in permuted order
+	 * @param localFits
+	 *            one fit per section in permuted order
+	 * @param pairwiseWeights
+	 *            weights in original order, read at permuted indices like in
+	 *            {@link #estimateQuadraticFromMatrix(RandomAccessibleInterval, double[], double[], RandomAccessibleInterval, double, int, int, RandomAccessibleInterval)}
+	 */
+	public static void estimateQuadraticFromStrip(
+			final DoubleStrip correlations,
+			final int[] permutation,
+			final double[] scalingFactors,
+			final double[] coordinates,
+			final double[][] localFits,
+			final double regularizerWeight,
+			final int comparisonRange,
+			final int nIterations,
+			final DoubleStrip pairwiseWeights )
+	{
+
+		for ( int iter = 0; iter < nIterations; ++iter )
+		{
+			for ( int n = 0; n < localFits.length; ++n )
+			{
+				final double result = estimateSection( n, correlations, permutation, pairwiseWeights, localFits[ n ], scalingFactors, coordinates, regularizerWeight, comparisonRange );
 				if ( !Double.isNaN( result ) )
 					scalingFactors[ n ] = result;
 			}
+		}
+	}
+
+	/**
+	 * Jacobi style variant of
+	 * {@link #estimateQuadraticFromStrip(DoubleStrip, int[], double[], double[], double[][], double, int, int, DoubleStrip)},
+	 * see
+	 * {@link #estimateQuadraticFromMatrixJacobi(RandomAccessibleInterval, double[], double[], RandomAccessibleInterval, double, int, int, RandomAccessibleInterval, ExecutorService, int)}.
+	 */
+	public static void estimateQuadraticFromStripJacobi(
+			final DoubleStrip correlations,
+			final int[] permutation,
+			final double[] scalingFactors,
+			final double[] coordinates,
+			final double[][] localFits,
+			final double regularizerWeight,
+			final int comparisonRange,
+			final int nIterations,
+			final DoubleStrip pairwiseWeights,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+
+		final double[] oldScalingFactors = scalingFactors.clone();
+
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		for ( final int[] block : blocks( scalingFactors.length, nTasks ) )
+		{
+			tasks.add( () -> {
+				for ( int n = block[ 0 ]; n < block[ 1 ]; ++n )
+				{
+					final double result = estimateSection( n, correlations, permutation, pairwiseWeights, localFits[ n ], oldScalingFactors, coordinates, regularizerWeight, comparisonRange );
+					if ( !Double.isNaN( result ) )
+						scalingFactors[ n ] = result;
+				}
+				return null;
+			} );
+		}
+
+		for ( int iter = 0; iter < nIterations; ++iter )
+		{
+			System.arraycopy( scalingFactors, 0, oldScalingFactors, 0, scalingFactors.length );
+			for ( final Future< Void > f : es.invokeAll( tasks ) )
+				f.get();
+		}
+	}
 
+	/**
+	 * Weighted least squares estimate of the scaling factor of section n,
+	 * blended with its current value by regularizerWeight.
+	 *
+	 * @return the updated scaling factor or NaN if it cannot be estimated
+	 */
+	private static < T extends RealType< T >, W extends RealType< W > > double estimateSection(
+			final int n,
+			final RandomAccess< T > corrAccess,
+			final RandomAccess< W > wAccess,
+			final double[] lf,
+			final double[] scalingFactors,
+			final double[] coordinates,
+			final double regularizerWeight,
+			final int comparisonRange )
+	{
+		corrAccess.setPosition( n, 0 );
+		wAccess.setPosition( n, 0 );
+
+		double enumeratorSum = 0.0;
+		double denominatorSum = 0.0;
+		final int minVal = Math.max( n - comparisonRange, 0 );
+		final int maxVal = Math.min( n + comparisonRange, scalingFactors.length );
+		for ( int i = minVal; i < maxVal; ++i )
+		{
+			if ( i == n )
+				continue;
+			corrAccess.setPosition( i, 1 );
+			wAccess.setPosition( i, 1 );
+			// fits are negative because LUTRealtransform requires
+			// increasing function
+			final double fitVal = -DoubleStrip.interpolateLinear( lf, Math.abs( coordinates[ i ] - coordinates[ n ] ) );
+			final double measure = corrAccess.get().getRealDouble();
+			if ( Double.isNaN( fitVal ) || Double.isNaN( measure ) || measure <= 0.0 )
+				continue;
+			final double w = wAccess.get().getRealDouble();
+			final double prod = scalingFactors[ i ] * measure;
+			final double h = w * prod;
+
+			enumeratorSum += h * fitVal;
+			denominatorSum += h * prod;
 		}
+		return enumeratorSum / denominatorSum * ( 1 - regularizerWeight ) + regularizerWeight * scalingFactors[ n ];
+	}
+
+	private static double estimateSection(
+			final int n,
+			final DoubleStrip correlations,
+			final int[] permutation,
+			final DoubleStrip pairwiseWeights,
+			final double[] lf,
+			final double[] scalingFactors,
+			final double[] coordinates,
+			final double regularizerWeight,
+			final int comparisonRange )
+	{
+		double enumeratorSum = 0.0;
+		double denominatorSum = 0.0;
+		final int minVal = Math.max( n - comparisonRange, 0 );
+		final int maxVal = Math.min( n + comparisonRange, scalingFactors.length );
+		for ( int i = minVal; i < maxVal; ++i )
+		{
+			if ( i == n )
+				continue;
+			final double fitVal = -DoubleStrip.interpolateLinear( lf, Math.abs( coordinates[ i ] - coordinates[ n ] ) );
+			final double measure = correlations.getPermuted( n, i, permutation );
+			if ( Double.isNaN( fitVal ) || Double.isNaN( measure ) || measure <= 0.0 )
+				continue;
+			final double w = pairwiseWeights.get( n, i );
+			final double prod = scalingFactors[ i ] * measure;
+			final double h = w * prod;
+
+			enumeratorSum += h * fitVal;
+			denominatorSum += h * prod;
+		}
+		return enumeratorSum / denominatorSum * ( 1 - regularizerWeight ) + regularizerWeight * scalingFactors[ n ];
+	}
+
+	/**
+	 * Split [0, size) into at most nBlocks contiguous blocks of (almost)
+	 * equal size.
+	 *
+	 * @return list of [start, stop) pairs
+	 */
+	public static List< int[] > blocks( final int size, final int nBlocks )
+	{
+		final int n = Math.max( nBlocks, 1 );
+		final int blockSize = Math.max( ( size + n - 1 ) / n, 1 );
+		final List< int[] > blocks = new ArrayList<>();
+		for ( int start = 0; start < size; start += blockSize )
+			blocks.add( new int[] { start, Math.min( start + blockSize, size ) } );
+		return blocks;
 	}
 
 }
@@ -1,7 +1,17 @@
 package org.janelia.thickness;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntToDoubleFunction;
+
 import org.janelia.thickness.inference.Options;
+import org.janelia.thickness.lut.IndexedLUTRealTransform;
 import org.janelia.thickness.lut.LUTRealTransform;
+import org.janelia.utility.DoubleStrip;
 
 import net.imglib2.Cursor;
 import net.imglib2.RandomAccess;
@@ -30,107 +40,403 @@ public class ShiftCoordinates
 
 		final int stride = 2 * options.comparisonRange;
 
-		final RandomAccess< T > corrAccess1 = correlations.randomAccess();
-		final RandomAccess< T > corrAccess2 = correlations.randomAccess();
+		final RandomAccess< T > corrAccess = correlations.randomAccess();
+		final IntToDoubleFunction measurements = k -> {
+			corrAccess.setPosition( k, 0 );
+			return corrAccess.get().getRealDouble();
+		};
+
+		final double[] shifts = new double[ stride ];
+		final double[] weights = new double[ stride ];
+		final boolean[] isValid = new boolean[ stride ];
 
 		final double[] reference = new double[ 1 ];
+		final InverseLookups lookups = new InverseLookups( options );
 
 		final Cursor< double[] > cursor = Views.iterable( localFits ).cursor();
 
 		// i is reference index, k is comparison index
-		final long width = correlations.dimension( 0 );
+		final int width = ( int ) correlations.dimension( 0 );
 		final long height = correlations.dimension( 1 );
 		for ( int i = 0; i < height; ++i )
 		{
+			corrAccess.setPosition( i, 1 );
+			collectShiftsForReference( i, measurements, width, coordinates, cursor.next(), shiftWeights[ i ], options, shifts, weights, isValid, 0, reference, lookups );
+			scatter( i, shifts, weights, isValid, 0, width, shiftsArray, weightSums, options.comparisonRange );
+		}
+	}
 
-			corrAccess1.setPosition( i, 1 );
-			corrAccess2.setPosition( i, 1 );
-			final double[] localFit = cursor.next();
-			final LUTRealTransform lut = new LUTRealTransform( localFit, 1, 1 );
+	/**
+	 * Parallel variant of
+	 * {@link #collectShiftsFromMatrix(double[], RandomAccessibleInterval, double[], RandomAccessibleInterval, double[], double[], double[], Options)}.
+	 * Each reference section writes its contributions into its own slots of
+	 * a buffer, i.e. workers do not share any accumulators. Contributions are
+	 * then reduced per comparison section in the same order as in the
+	 * sequential implementation, such that the result does not depend on the
+	 * number of threads or tasks. It is identical to the sequential
+	 * implementation unless an inverse lookup into a local fit is not finite:
+	 * The sequential implementation carries the last lookup over to the next
+	 * reference section, the parallel implementation starts each reference
+	 * section with 0.
+	 */
+	public static < T extends RealType< T > > void collectShiftsFromMatrixParallel(
+			final double[] coordinates,
+			final RandomAccessibleInterval< T > correlations,
+			final double[] multipliers,
+			final RandomAccessibleInterval< double[] > localFits,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final double[] shiftWeights,
+			final Options options,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final int stride = 2 * options.comparisonRange;
+		final int width = ( int ) correlations.dimension( 0 );
+		final int height = ( int ) correlations.dimension( 1 );
 
-			double minMeasurement1 = Double.MAX_VALUE;
-			double minMeasurement2 = Double.MAX_VALUE;
+		final double[] shifts = new double[ height * stride ];
+		final double[] weights = new double[ height * stride ];
+		final boolean[] isValid = new boolean[ height * stride ];
 
-			// start at 1 to avoid using values on diagonal
-			final int startDist = 1;
-			final double w = shiftWeights[ i ];
-			for ( int dist = startDist, up = i + startDist, down = i - startDist; dist <= options.comparisonRange; ++dist, ++up, --down )
-			{
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		for ( final int[] block : EstimateScalingFactors.blocks( height, nTasks ) )
+		{
+			tasks.add( () -> {
+				final RandomAccess< T > corrAccess = correlations.randomAccess();
+				final RandomAccess< double[] > fitAccess = localFits.randomAccess();
+				final IntToDoubleFunction measurements = k -> {
+					corrAccess.setPosition( k, 0 );
+					return corrAccess.get().getRealDouble();
+				};
+				final InverseLookups lookups = new InverseLookups( options );
+				for ( int i = block[ 0 ]; i < block[ 1 ]; ++i )
+				{
+					corrAccess.setPosition( i, 1 );
+					fitAccess.setPosition( i, 0 );
+					collectShiftsForReference( i, measurements, width, coordinates, fitAccess.get(), shiftWeights[ i ], options, shifts, weights, isValid, i * stride, new double[ 1 ], lookups );
+				}
+				return null;
+			} );
+		}
+		invokeAll( es, tasks );
+
+		reduce( shifts, weights, isValid, height, width, shiftsArray, weightSums, options.comparisonRange, es, nTasks );
+	}
+
+	/**
+	 * Primitive equivalent of
+	 * {@link #collectShiftsFromMatrix(double[], RandomAccessibleInterval, double[], RandomAccessibleInterval, double[], double[], double[], Options)}
+	 * that reads the (scaled) correlations from a {@link DoubleStrip} in
+	 * permuted order.
+	 *
+	 * @param correlations
+	 *            correlations in original order
+	 * @param permutation
+	 *            maps permuted (sorted) indices to original indices
+	 * @param localFits
+	 *            one fit per section in permuted order
+	 */
+	public static void collectShiftsFromStrip(
+			final double[] coordinates,
+			final DoubleStrip correlations,
+			final int[] permutation,
+			final double[] multipliers,
+			final double[][] localFits,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final double[] shiftWeights,
+			final Options options )
+	{
+		final int stride = 2 * options.comparisonRange;
+		final int size = correlations.size();
 
-				if ( up < width )
+		final double[] shifts = new double[ stride ];
+		final double[] weights = new double[ stride ];
+		final boolean[] isValid = new boolean[ stride ];
+
+		final double[] reference = new double[ 1 ];
+		final InverseLookups lookups = new InverseLookups( options );
+
+		for ( int i = 0; i < size; ++i )
+		{
+			final int y = i;
+			collectShiftsForReference( i, k -> correlations.getPermuted( k, y, permutation ), size, coordinates, localFits[ i ], shiftWeights[ i ], options, shifts, weights, isValid, 0, reference, lookups );
+			scatter( i, shifts, weights, isValid, 0, size, shiftsArray, weightSums, options.comparisonRange );
+		}
+	}
+
+	/**
+	 * Parallel variant of
+	 * {@link #collectShiftsFromStrip(double[], DoubleStrip, int[], double[], double[][], double[], double[], double[], Options)},
+	 * see
+	 * {@link #collectShiftsFromMatrixParallel(double[], RandomAccessibleInterval, double[], RandomAccessibleInterval, double[], double[], double[], Options, ExecutorService, int)}.
+	 */
+	public static void collectShiftsFromStripParallel(
+			final double[] coordinates,
+			final DoubleStrip correlations,
+			final int[] permutation,
+			final double[] multipliers,
+			final double[][] localFits,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final double[] shiftWeights,
+			final Options options,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final int stride = 2 * options.comparisonRange;
+		final int size = correlations.size();
+
+		final double[] shifts = new double[ size * stride ];
+		final double[] weights = new double[ size * stride ];
+		final boolean[] isValid = new boolean[ size * stride ];
+
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		for ( final int[] block : EstimateScalingFactors.blocks( size, nTasks ) )
+		{
+			tasks.add( () -> {
+				final InverseLookups lookups = new InverseLookups( options );
+				for ( int i = block[ 0 ]; i < block[ 1 ]; ++i )
 				{
-					corrAccess1.setPosition( up, 0 );
+					final int y = i;
+					collectShiftsForReference( i, k -> correlations.getPermuted( k, y, permutation ), size, coordinates, localFits[ i ], shiftWeights[ i ], options, shifts, weights, isValid, i * stride, new double[ 1 ], lookups );
+				}
+				return null;
+			} );
+		}
+		invokeAll( es, tasks );
 
-					final double measurement = corrAccess1.get().getRealDouble();
-					if ( Double.isNaN( measurement ) || measurement <= options.minimumCorrelationValue || options.forceMonotonicity && measurement >= minMeasurement1 )
-					{
+		reduce( shifts, weights, isValid, size, size, shiftsArray, weightSums, options.comparisonRange, es, nTasks );
+	}
 
-					}
-					else
-					{
+	/**
+	 * Collect shift contributions of reference section i for all comparison
+	 * sections within range. The contribution to section i + dist is stored
+	 * at offset + 2 * ( dist - 1 ), the contribution to i - dist at offset + 2
+	 * * ( dist - 1 ) + 1.
+	 *
+	 * @param measurements
+	 *            correlation of comparison section k with reference section i
+	 * @param reference
+	 *            scratch space for the inverse lookup into localFit. The
+	 *            lookup result from the previous reference section enters the
+	 *            condition for the first comparison below i.
+	 * @param lookups
+	 *            transforms for inverse lookups into local fits, reused for
+	 *            consecutive reference sections that share the same fit
+	 */
+	private static void collectShiftsForReference(
+			final int i,
+			final IntToDoubleFunction measurements,
+			final int width,
+			final double[] coordinates,
+			final double[] localFit,
+			final double w,
+			final Options options,
+			final double[] shifts,
+			final double[] weights,
+			final boolean[] isValid,
+			final int offset,
+			final double[] reference,
+			final InverseLookups lookups )
+	{
 
-						minMeasurement1 = measurement;
-						/*
-						 * TODO inverts because LUTRealTransform can only
-						 * increasing
-						 */
-						reference[ 0 ] = -measurement;
+		final LUTRealTransform lut = lookups.get( localFit );
 
-						lut.applyInverse( reference, reference );
+		double minMeasurement1 = Double.MAX_VALUE;
+		double minMeasurement2 = Double.MAX_VALUE;
 
-						// reference[0] > halfRange || ??
-						if ( Double.isFinite( reference[ 0 ] ) && !( reference[ 0 ] == Double.MAX_VALUE || reference[ 0 ] == -Double.MAX_VALUE ) )
-						{
+		// start at 1 to avoid using values on diagonal
+		final int startDist = 1;
+		for ( int dist = startDist, up = i + startDist, down = i - startDist, index = offset; dist <= options.comparisonRange; ++dist, ++up, --down, index += 2 )
+		{
 
-							// rel: negative coordinates of k wrt to local
-							// coordinate system of i
-							final double rel = coordinates[ i ] - coordinates[ up ];
+			isValid[ index ] = false;
+			isValid[ index + 1 ] = false;
 
-							/* current location */
-							final double shift = up < i ? rel - reference[ 0 ] : rel + reference[ 0 ];
-							shiftsArray[ up ] += shift * w;
-							weightSums[ up ] += w;
-						}
+			if ( up < width )
+			{
+				final double measurement = measurements.applyAsDouble( up );
+				if ( Double.isNaN( measurement ) || measurement <= options.minimumCorrelationValue || options.forceMonotonicity && measurement >= minMeasurement1 )
+				{
+
+				}
+				else
+				{
+
+					minMeasurement1 = measurement;
+					/*
+					 * TODO inverts because LUTRealTransform can only
+					 * increasing
+					 */
+					reference[ 0 ] = -measurement;
+
+					lut.applyInverse( reference, reference );
+
+					// reference[0] > halfRange || ??
+					if ( Double.isFinite( reference[ 0 ] ) && !( reference[ 0 ] == Double.MAX_VALUE || reference[ 0 ] == -Double.MAX_VALUE ) )
+					{
+
+						// rel: negative coordinates of k wrt to local
+						// coordinate system of i
+						final double rel = coordinates[ i ] - coordinates[ up ];
+
+						/* current location */
+						final double shift = up < i ? rel - reference[ 0 ] : rel + reference[ 0 ];
+						shifts[ index ] = shift * w;
+						weights[ index ] = w;
+						isValid[ index ] = true;
 					}
 				}
+			}
+
+			if ( down >= 0 )
+			{
+				final double measurement = measurements.applyAsDouble( down );
+				if ( Double.isFinite( reference[ 0 ] ) && Double.isNaN( measurement ) || measurement <= options.minimumCorrelationValue || options.forceMonotonicity && measurement >= minMeasurement2 )
+				{
 
-				if ( down >= 0 )
+				}
+				else
 				{
-					corrAccess2.setPosition( down, 0 );
 
-					final double measurement = corrAccess2.get().getRealDouble();
-					if ( Double.isFinite( reference[ 0 ] ) && Double.isNaN( measurement ) || measurement <= options.minimumCorrelationValue || options.forceMonotonicity && measurement >= minMeasurement2 )
+					minMeasurement2 = measurement;
+					/*
+					 * TODO inverts because LUTRealTransform can only
+					 * increasing
+					 */
+					reference[ 0 ] = -measurement;
+
+					lut.applyInverse( reference, reference );
+
+					// reference[0] > halfRange || ??
+					if ( !( reference[ 0 ] == Double.MAX_VALUE || reference[ 0 ] == -Double.MAX_VALUE ) )
 					{
 
+						// rel: negative coordinates of k wrt to local
+						// coordinate system of i
+						final double rel = coordinates[ i ] - coordinates[ down ];
+						/* current location */
+						final double shift = down < i ? rel - reference[ 0 ] : rel + reference[ 0 ];
+						shifts[ index + 1 ] = shift;
+						weights[ index + 1 ] = w;
+						isValid[ index + 1 ] = true;
 					}
-					else
-					{
+				}
+			}
+		}
+	}
 
-						minMeasurement2 = measurement;
-						/*
-						 * TODO inverts because LUTRealTransform can only
-						 * increasing
-						 */
-						reference[ 0 ] = -measurement;
+	/**
+	 * Transform for inverse lookups into the most recent local fit. Global
+	 * fits share one array for all sections, so the transform (and the index
+	 * of {@link IndexedLUTRealTransform} if
+	 * {@link Options#indexedInverseLookup}) is created only once per
+	 * iteration instead of once per reference section. Not threadsafe, use
+	 * one instance per task.
+	 */
+	private static class InverseLookups
+	{
+		private final boolean indexed;
 
-						lut.applyInverse( reference, reference );
+		private double[] fit;
 
-						// reference[0] > halfRange || ??
-						if ( !( reference[ 0 ] == Double.MAX_VALUE || reference[ 0 ] == -Double.MAX_VALUE ) )
-						{
+		private LUTRealTransform lut;
+
+		public InverseLookups( final Options options )
+		{
+			this.indexed = options.indexedInverseLookup != null && options.indexedInverseLookup;
+		}
 
-							// rel: negative coordinates of k wrt to local
-							// coordinate system of i
-							final double rel = coordinates[ i ] - coordinates[ down ];
-							/* current location */
-							final double shift = down < i ? rel - reference[ 0 ] : rel + reference[ 0 ];
-							shiftsArray[ down ] += shift;
-							weightSums[ down ] += w;
+		public LUTRealTransform get( final double[] fit )
+		{
+			if ( fit != this.fit )
+			{
+				this.fit = fit;
+				this.lut = indexed ? new IndexedLUTRealTransform( fit, 1, 1 ) : new LUTRealTransform( fit, 1, 1 );
+			}
+			return lut;
+		}
+	}
+
+	private static void scatter(
+			final int i,
+			final double[] shifts,
+			final double[] weights,
+			final boolean[] isValid,
+			final int offset,
+			final int width,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final int range )
+	{
+		for ( int dist = 1, index = offset; dist <= range; ++dist, index += 2 )
+		{
+			final int up = i + dist;
+			final int down = i - dist;
+			if ( up < width && isValid[ index ] )
+			{
+				shiftsArray[ up ] += shifts[ index ];
+				weightSums[ up ] += weights[ index ];
+			}
+			if ( down >= 0 && isValid[ index + 1 ] )
+			{
+				shiftsArray[ down ] += shifts[ index + 1 ];
+				weightSums[ down ] += weights[ index + 1 ];
+			}
+		}
+	}
+
+	/**
+	 * Sum contributions for each comparison section k in order of increasing
+	 * reference section, i.e. in the same order as
+	 * {@link #scatter(int, double[], double[], boolean[], int, int, double[], double[], int)}
+	 * for all reference sections.
+	 */
+	private static void reduce(
+			final double[] shifts,
+			final double[] weights,
+			final boolean[] isValid,
+			final int height,
+			final int width,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final int range,
+			final ExecutorService es,
+			final int nTasks ) throws InterruptedException, ExecutionException
+	{
+		final int stride = 2 * range;
+		final List< Callable< Void > > tasks = new ArrayList<>();
+		for ( final int[] block : EstimateScalingFactors.blocks( width, nTasks ) )
+		{
+			tasks.add( () -> {
+				for ( int k = block[ 0 ]; k < block[ 1 ]; ++k )
+				{
+					final int max = Math.min( k + range, height - 1 );
+					for ( int i = Math.max( k - range, 0 ); i <= max; ++i )
+					{
+						if ( i == k )
+							continue;
+						// k is up of i if i < k and down of i if i > k
+						final int index = i * stride + 2 * ( Math.abs( k - i ) - 1 ) + ( i < k ? 0 : 1 );
+						if ( isValid[ index ] )
+						{
+							shiftsArray[ k ] += shifts[ index ];
+							weightSums[ k ] += weights[ index ];
 						}
 					}
 				}
-			}
+				return null;
+			} );
 		}
+		invokeAll( es, tasks );
+	}
+
+	private static void invokeAll( final ExecutorService es, final List< Callable< Void > > tasks ) throws InterruptedException, ExecutionException
+	{
+		for ( final Future< Void > f : es.invokeAll( tasks ) )
+			f.get();
 	}
 
 }
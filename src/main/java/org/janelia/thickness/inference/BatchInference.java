@@ -0,0 +1,153 @@
+package org.janelia.thickness.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntFunction;
+
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+import org.janelia.utility.MatrixStripConversion;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+/**
+ * Solve many independent inference problems, e.g. substacks of per-tile
+ * ROIs, with the same {@link Options}. Problems are distributed dynamically
+ * over a fixed number of workers on a shared {@link ExecutorService}.
+ * Parallelism is across problems, each problem is solved single-threaded
+ * ({@link Options#nThreads} is ignored) and without checkpoints
+ * ({@link Options#checkpointFile} is ignored).
+ *
+ * Correlation fits may depend on the problem size (e.g.
+ * {@link org.janelia.thickness.inference.fits.LocalCorrelationFitAverage})
+ * or carry state from one iteration to the next (e.g.
+ * {@link org.janelia.thickness.inference.fits.GlobalCorrelationFitAverageRegularized}),
+ * so a new fit and {@link InferFromMatrix} are created for each problem.
+ * {@link InferFromMatrix} allocates its working arrays per problem.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class BatchInference
+{
+
+	public static class Problem< T >
+	{
+		/**
+		 * correlation strip of width 2 * {@link Options#comparisonRange} + 1
+		 * and one row per section, as created by
+		 * {@link MatrixStripConversion#matrixToStrip(RandomAccessibleInterval, int)}
+		 */
+		public final RandomAccessibleInterval< T > strip;
+
+		public final double[] startingCoordinates;
+
+		public Problem( final RandomAccessibleInterval< T > strip, final double[] startingCoordinates )
+		{
+			super();
+			this.strip = strip;
+			this.startingCoordinates = startingCoordinates;
+		}
+	}
+
+	public static class Solution
+	{
+		/**
+		 * null if inference failed
+		 */
+		public final InferFromMatrix.Result result;
+
+		/**
+		 * cause of failure or null
+		 */
+		public final Exception exception;
+
+		/**
+		 * wall time spent on this problem
+		 */
+		public final long nanoTime;
+
+		public Solution( final InferFromMatrix.Result result, final Exception exception, final long nanoTime )
+		{
+			super();
+			this.result = result;
+			this.exception = exception;
+			this.nanoTime = nanoTime;
+		}
+	}
+
+	private final IntFunction< ? extends AbstractCorrelationFit > correlationFitFactory;
+
+	/**
+	 * @param correlationFitFactory
+	 *            create a new correlation fit for a problem with the given
+	 *            number of sections
+	 */
+	public BatchInference( final IntFunction< ? extends AbstractCorrelationFit > correlationFitFactory )
+	{
+		this.correlationFitFactory = correlationFitFactory;
+	}
+
+	/**
+	 * Solve all problems with nWorkers tasks submitted to es. A problem that
+	 * fails does not affect the other problems, its {@link Solution} holds
+	 * the exception instead.
+	 *
+	 * @return one {@link Solution} per problem, in the order of problems
+	 */
+	public < T extends RealType< T > & NativeType< T > > List< Solution > solve(
+			final List< Problem< T > > problems,
+			final Options options,
+			final ExecutorService es,
+			final int nWorkers ) throws InterruptedException, ExecutionException
+	{
+		final Options problemOptions = options.clone();
+		problemOptions.nThreads = 1;
+		// concurrent problems must not write to the same checkpoint file
+		problemOptions.checkpointFile = "";
+		problemOptions.checkpointInterval = 0;
+
+		final Solution[] solutions = new Solution[ problems.size() ];
+		final AtomicInteger next = new AtomicInteger( 0 );
+
+		final List< Callable< Void > > workers = new ArrayList<>();
+		for ( int w = 0; w < Math.max( Math.min( nWorkers, problems.size() ), 1 ); ++w )
+			workers.add( () -> {
+				for ( int i = next.getAndIncrement(); i < solutions.length; i = next.getAndIncrement() )
+					solutions[ i ] = solve( problems.get( i ), problemOptions );
+				return null;
+			} );
+
+		for ( final Future< Void > f : es.invokeAll( workers ) )
+			f.get();
+
+		return Arrays.asList( solutions );
+	}
+
+	private < T extends RealType< T > & NativeType< T > > Solution solve(
+			final Problem< T > problem,
+			final Options options )
+	{
+		final long t0 = System.nanoTime();
+		try (final InferFromMatrix inference = new InferFromMatrix( correlationFitFactory.apply( problem.startingCoordinates.length ) ))
+		{
+			final InferFromMatrix.Result result = inference.estimate(
+					MatrixStripConversion.stripToMatrix( problem.strip ),
+					problem.startingCoordinates,
+					options );
+			return new Solution( result, null, System.nanoTime() - t0 );
+		}
+		catch ( final Exception e )
+		{
+			return new Solution( null, e, System.nanoTime() - t0 );
+		}
+	}
+
+}
@@ -0,0 +1,204 @@
+package org.janelia.thickness.inference;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.StripFile;
+
+import mpicbg.models.AffineModel1D;
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Run {@link InferFromMatrix} on overlapping blocks of sections and stitch
+ * the block coordinates with {@link AffineModel1D}s fit on the overlaps.
+ * Blocks are requested from a {@link BlockLoader} one at a time, so only a
+ * single block of the similarity matrix needs to be in memory. Each block is
+ * estimated with a new correlation fit for the number of sections of that
+ * block.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class BlockwiseInference
+{
+
+	/**
+	 * Provide the similarity matrix of sections [start, stop) as a ( stop -
+	 * start ) x ( stop - start ) matrix with min at the origin.
+	 */
+	public interface BlockLoader< T >
+	{
+		RandomAccessibleInterval< T > load( int start, int stop ) throws IOException;
+	}
+
+	private final IntFunction< ? extends AbstractCorrelationFit > correlationFitFactory;
+
+	/**
+	 * @param correlationFitFactory
+	 *            create a new correlation fit for a block with the given
+	 *            number of sections
+	 */
+	public BlockwiseInference( final IntFunction< ? extends AbstractCorrelationFit > correlationFitFactory )
+	{
+		this.correlationFitFactory = correlationFitFactory;
+	}
+
+	/**
+	 *
+	 * @param loader
+	 *            similarity matrix blocks
+	 * @param startingCoordinates
+	 *            starting coordinates for all n sections
+	 * @param blockSize
+	 *            number of sections per block
+	 * @param overlap
+	 *            number of sections shared by adjacent blocks, at least
+	 *            {@link Options#comparisonRange} and at least 2
+	 * @return coordinates for all sections, regularized as specified by
+	 *         {@link Options#regularizationType}
+	 */
+	public < T extends RealType< T > & NativeType< T > > double[] estimateZCoordinates(
+			final BlockLoader< T > loader,
+			final double[] startingCoordinates,
+			final int blockSize,
+			final int overlap,
+			final Options options ) throws Exception
+	{
+		if ( overlap < Math.max( options.comparisonRange, 2 ) )
+			throw new IllegalArgumentException( "Overlap must be at least max(comparisonRange, 2): " + overlap );
+		if ( blockSize <= overlap )
+			throw new IllegalArgumentException( "Block size must be larger than overlap: " + blockSize + " <= " + overlap );
+
+		final int n = startingCoordinates.length;
+		final double[] coordinates = new double[ n ];
+		final AffineModel1D model = new AffineModel1D();
+		final double[] dummy = new double[ 1 ];
+
+		int previousStop = 0;
+		for ( final int[] block : blocks( n, blockSize, overlap ) )
+		{
+			final int start = block[ 0 ];
+			final int stop = block[ 1 ];
+			final double[] blockStartingCoordinates = new double[ stop - start ];
+			System.arraycopy( startingCoordinates, start, blockStartingCoordinates, 0, blockStartingCoordinates.length );
+
+			final double[] blockCoordinates;
+			try (final InferFromMatrix inference = new InferFromMatrix( correlationFitFactory.apply( blockStartingCoordinates.length ) ))
+			{
+				blockCoordinates = inference.estimate( loader.load( start, stop ), blockStartingCoordinates, options ).coordinates;
+			}
+
+			final int blockOverlap = previousStop - start;
+			if ( blockOverlap > 0 )
+			{
+				final double[] weights = new double[ blockOverlap ];
+				final double[] source = new double[ blockOverlap ];
+				final double[] target = new double[ blockOverlap ];
+				for ( int i = 0; i < blockOverlap; ++i )
+				{
+					weights[ i ] = 1.0;
+					source[ i ] = blockCoordinates[ i ];
+					target[ i ] = coordinates[ start + i ];
+				}
+				model.fit( new double[][] { source }, new double[][] { target }, weights );
+				for ( int i = 0; i < blockCoordinates.length; ++i )
+				{
+					dummy[ 0 ] = blockCoordinates[ i ];
+					model.applyInPlace( dummy );
+					blockCoordinates[ i ] = dummy[ 0 ];
+				}
+			}
+
+			// cross-fade from previous block to current block within overlap
+			for ( int i = 0; i < blockCoordinates.length; ++i )
+			{
+				if ( i < blockOverlap )
+				{
+					final double w = ( i + 1.0 ) / ( blockOverlap + 1.0 );
+					coordinates[ start + i ] = ( 1 - w ) * coordinates[ start + i ] + w * blockCoordinates[ i ];
+				}
+				else
+					coordinates[ start + i ] = blockCoordinates[ i ];
+			}
+			previousStop = stop;
+		}
+
+		InferFromMatrix.createRegularizer( options, n ).regularize( coordinates, options );
+
+		return coordinates;
+	}
+
+	/**
+	 * Cover [0, n) with the smallest number of blocks of blockSize sections
+	 * that overlap by at least overlap sections. Block starts are distributed
+	 * evenly.
+	 *
+	 * @return list of [start, stop) pairs
+	 */
+	public static List< int[] > blocks( final int n, final int blockSize, final int overlap )
+	{
+		final List< int[] > blocks = new ArrayList<>();
+		if ( n <= blockSize )
+		{
+			blocks.add( new int[] { 0, n } );
+			return blocks;
+		}
+		final int step = blockSize - overlap;
+		final int nBlocks = ( n - overlap + step - 1 ) / step;
+		for ( int k = 0; k < nBlocks; ++k )
+		{
+			final int start = ( int ) ( ( long ) k * ( n - blockSize ) / ( nBlocks - 1 ) );
+			blocks.add( new int[] { start, start + blockSize } );
+		}
+		return blocks;
+	}
+
+	public static < T extends RealType< T > > BlockLoader< T > fromMatrix( final RandomAccessibleInterval< T > matrix )
+	{
+		return ( start, stop ) -> Views.zeroMin( Views.interval( matrix, new long[] { start, start }, new long[] { stop - 1, stop - 1 } ) );
+	}
+
+	/**
+	 * Load blocks from a float {@link StripFile}, e.g. as written by
+	 * {@link StripFile#write(Path, RandomAccessibleInterval, int)} for
+	 * {@link MatrixStripConversion#matrixToStrip(RandomAccessibleInterval, int)}.
+	 * The file is memory-mapped and only the rows of the requested block are
+	 * read.
+	 */
+	public static BlockLoader< FloatType > fromStripFile( final Path path ) throws IOException
+	{
+		final ArrayImg< FloatType, StripFile.MappedFloatAccess > file = StripFile.openFloat( path, false );
+		final int width = ( int ) file.dimension( 0 );
+		final int range = width / 2;
+		return ( start, stop ) -> {
+			final int height = stop - start;
+			final ArrayImg< FloatType, FloatArray > strip = ArrayImgs.floats( width, height );
+			final ArrayCursor< FloatType > c = strip.cursor();
+			final Cursor< FloatType > f = Views.flatIterable( Views.interval( file, new long[] { 0, start }, new long[] { width - 1, stop - 1 } ) ).cursor();
+			while ( c.hasNext() )
+			{
+				final FloatType t = c.next();
+				final float value = f.next().get();
+				// only sections within block
+				final long x = c.getLongPosition( 0 ) + c.getLongPosition( 1 ) - range;
+				t.set( x >= 0 && x < height ? value : Float.NaN );
+			}
+			return MatrixStripConversion.stripToMatrix( strip, new FloatType( Float.NaN ) );
+		};
+	}
+
+}
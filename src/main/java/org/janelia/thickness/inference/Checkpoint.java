@@ -0,0 +1,223 @@
+package org.janelia.thickness.inference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+
+import com.google.gson.Gson;
+
+/**
+ * Iteration state of {@link InferFromMatrix} after {@link #iteration}
+ * completed iterations, including the state that the correlation fit
+ * carries over between iterations (see
+ * {@link AbstractCorrelationFit#getState()}). Together with the input matrix,
+ * the weights and a correlation fit of the same type and parameters, this is
+ * sufficient to continue inference with
+ * {@link InferFromMatrix#resume(Checkpoint, net.imglib2.RandomAccessibleInterval, net.imglib2.RandomAccessibleInterval, double[], org.janelia.thickness.inference.visitor.Visitor)}
+ * and get the same result as an uninterrupted run.
+ *
+ * Checkpoints are stored as big endian binary files: magic number, version,
+ * {@link Options} as UTF-8 json, iteration state and arrays, each prefixed
+ * with its length (-1 for a missing fit state). Version 1 files without fit
+ * state can still be read.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class Checkpoint
+{
+
+	public static final int MAGIC = 0x5a435054;
+
+	public static final int VERSION = 2;
+
+	public final Options options;
+
+	/**
+	 * number of completed iterations
+	 */
+	public final int iteration;
+
+	/**
+	 * number of consecutive converged iterations, see
+	 * {@link InferFromMatrix.ConvergenceCheck}
+	 */
+	public final int nConverged;
+
+	public final double[] startingCoordinates;
+
+	/**
+	 * coordinates in original order
+	 */
+	public final double[] coordinates;
+
+	/**
+	 * scaling factors in sorted order of {@link #coordinates}
+	 */
+	public final double[] scalingFactors;
+
+	/**
+	 * maps original indices to sorted indices
+	 */
+	public final int[] permutation;
+
+	/**
+	 * scaled similarities in original order as strip of width 2 *
+	 * comparisonRange + 1, one row per section
+	 */
+	public final double[] scaledStrip;
+
+	/**
+	 * value of scaled matrix outside of the strip
+	 */
+	public final double scaledExtension;
+
+	/**
+	 * state of the correlation fit or null if the fit is stateless
+	 */
+	public final double[] fitState;
+
+	public Checkpoint(
+			final Options options,
+			final int iteration,
+			final int nConverged,
+			final double[] startingCoordinates,
+			final double[] coordinates,
+			final double[] scalingFactors,
+			final int[] permutation,
+			final double[] scaledStrip,
+			final double scaledExtension,
+			final double[] fitState )
+	{
+		super();
+		this.options = options;
+		this.iteration = iteration;
+		this.nConverged = nConverged;
+		this.startingCoordinates = startingCoordinates;
+		this.coordinates = coordinates;
+		this.scalingFactors = scalingFactors;
+		this.permutation = permutation;
+		this.scaledStrip = scaledStrip;
+		this.scaledExtension = scaledExtension;
+		this.fitState = fitState;
+	}
+
+	/**
+	 * Write to a temporary file next to filename first and move to filename
+	 * afterwards, so an existing checkpoint is not corrupted if writing is
+	 * interrupted.
+	 */
+	public void write( final String filename ) throws IOException
+	{
+		final Path path = Paths.get( filename ).toAbsolutePath();
+		final Path tmp = path.resolveSibling( path.getFileName() + ".tmp" );
+		try (final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ))
+		{
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			final byte[] json = new Gson().toJson( options ).getBytes( StandardCharsets.UTF_8 );
+			out.writeInt( json.length );
+			out.write( json );
+			out.writeInt( iteration );
+			out.writeInt( nConverged );
+			out.writeDouble( scaledExtension );
+			writeArray( out, startingCoordinates );
+			writeArray( out, coordinates );
+			writeArray( out, scalingFactors );
+			writeArray( out, permutation );
+			writeArray( out, scaledStrip );
+			if ( fitState == null )
+				out.writeInt( -1 );
+			else
+				writeArray( out, fitState );
+		}
+		Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+	}
+
+	public static Checkpoint read( final String filename ) throws IOException
+	{
+		try (final DataInputStream in = new DataInputStream( new BufferedInputStream( Files.newInputStream( Paths.get( filename ) ) ) ))
+		{
+			if ( in.readInt() != MAGIC )
+				throw new IOException( filename + " is not a checkpoint file." );
+			final int version = in.readInt();
+			if ( version != VERSION && version != 1 )
+				throw new IOException( "Unsupported checkpoint version " + version + " in " + filename );
+			final byte[] json = new byte[ in.readInt() ];
+			in.readFully( json );
+			final Options options = new Gson().fromJson( new String( json, StandardCharsets.UTF_8 ), Options.class );
+			final int iteration = in.readInt();
+			final int nConverged = in.readInt();
+			final double scaledExtension = in.readDouble();
+			final double[] startingCoordinates = readDoubleArray( in );
+			final double[] coordinates = readDoubleArray( in );
+			final double[] scalingFactors = readDoubleArray( in );
+			final int[] permutation = readIntArray( in );
+			final double[] scaledStrip = readDoubleArray( in );
+			final double[] fitState = version == 1 ? null : readDoubleArrayOrNull( in );
+			return new Checkpoint( options, iteration, nConverged, startingCoordinates, coordinates, scalingFactors, permutation, scaledStrip, scaledExtension, fitState );
+		}
+	}
+
+	/**
+	 * @return true if checkpoints are enabled in options and iteration is a
+	 *         multiple of {@link Options#checkpointInterval}
+	 */
+	public static boolean isDue( final int iteration, final Options options )
+	{
+		return options.checkpointInterval != null && options.checkpointInterval > 0 &&
+				options.checkpointFile != null && !options.checkpointFile.isEmpty() &&
+				iteration % options.checkpointInterval == 0;
+	}
+
+	private static void writeArray( final DataOutputStream out, final double[] array ) throws IOException
+	{
+		out.writeInt( array.length );
+		for ( final double v : array )
+			out.writeDouble( v );
+	}
+
+	private static void writeArray( final DataOutputStream out, final int[] array ) throws IOException
+	{
+		out.writeInt( array.length );
+		for ( final int v : array )
+			out.writeInt( v );
+	}
+
+	private static double[] readDoubleArray( final DataInputStream in ) throws IOException
+	{
+		final double[] array = new double[ in.readInt() ];
+		for ( int i = 0; i < array.length; ++i )
+			array[ i ] = in.readDouble();
+		return array;
+	}
+
+	private static double[] readDoubleArrayOrNull( final DataInputStream in ) throws IOException
+	{
+		final int length = in.readInt();
+		if ( length < 0 )
+			return null;
+		final double[] array = new double[ length ];
+		for ( int i = 0; i < array.length; ++i )
+			array[ i ] = in.readDouble();
+		return array;
+	}
+
+	private static int[] readIntArray( final DataInputStream in ) throws IOException
+	{
+		final int[] array = new int[ in.readInt() ];
+		for ( int i = 0; i < array.length; ++i )
+			array[ i ] = in.readInt();
+		return array;
+	}
+
+}
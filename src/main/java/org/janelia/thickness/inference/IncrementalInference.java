@@ -0,0 +1,242 @@
+package org.janelia.thickness.inference;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+import org.janelia.thickness.inference.visitor.LazyVisitor;
+import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.arrays.ArraySortedIndices;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.ConstantUtils;
+
+/**
+ * Online z-position estimation for stacks that grow while sections are
+ * acquired. Sections are appended with their row of the correlation band
+ * and {@link #update()} re-optimizes only the trailing
+ * {@link #getWindowSize()} sections, warm started from the current
+ * coordinates and scaling factors. The comparisonRange sections in front
+ * of the window are included in the optimization as a boundary condition:
+ * Their coordinates are passed as fixed coordinates to
+ * {@link InferFromMatrix#estimate(RandomAccessibleInterval, double[], double[], double[], RandomAccessibleInterval, double[], double[], org.janelia.thickness.inference.visitor.Visitor, Options)},
+ * i.e. they do not move in any iteration and the window is optimized
+ * relative to them. The frozen sections anchor the window, so
+ * {@link Options#regularizationType} only applies while no sections are
+ * frozen. Each update creates a new correlation fit for the number of
+ * sections in the window and its context. The cost of an update is
+ * independent of the number of sections.
+ *
+ * Not threadsafe.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class IncrementalInference
+{
+
+	private final IntFunction< ? extends AbstractCorrelationFit > correlationFitFactory;
+
+	private final Options options;
+
+	private final int windowSize;
+
+	private final int range;
+
+	private final int width;
+
+	// correlation band, one row of width entries per section
+	private double[] band;
+
+	private double[] coordinates;
+
+	// original order
+	private double[] scalingFactors;
+
+	private int size;
+
+	/**
+	 *
+	 * @param correlationFitFactory
+	 *            create a new correlation fit for an update of the given
+	 *            number of sections
+	 * @param windowSize
+	 *            number of trailing sections that are updated by
+	 *            {@link #update()}, larger than {@link Options#comparisonRange}
+	 */
+	public IncrementalInference( final IntFunction< ? extends AbstractCorrelationFit > correlationFitFactory, final Options options, final int windowSize )
+	{
+		if ( windowSize <= options.comparisonRange )
+			throw new IllegalArgumentException( "Window size must be larger than comparison range: " + windowSize + " <= " + options.comparisonRange );
+		this.correlationFitFactory = correlationFitFactory;
+		this.options = options;
+		this.windowSize = windowSize;
+		this.range = options.comparisonRange;
+		this.width = 2 * range + 1;
+		this.band = new double[ 0 ];
+		this.coordinates = new double[ 0 ];
+		this.scalingFactors = new double[ 0 ];
+		this.size = 0;
+	}
+
+	/**
+	 * Append a section. row[ range + d ] holds the correlation of the new
+	 * section with the section at distance d, d in [-comparisonRange,
+	 * comparisonRange]. Correlations with sections that have not been
+	 * appended yet (d > 0) are ignored. They are provided by the rows of
+	 * those sections when they are appended. The new section starts at one
+	 * unit behind the last section with scaling factor 1.
+	 */
+	public void append( final double[] row )
+	{
+		if ( row.length != width )
+			throw new IllegalArgumentException( "Expected row of length " + width + " but got " + row.length );
+
+		ensureCapacity( size + 1 );
+		final int y = size;
+		Arrays.fill( band, y * width, ( y + 1 ) * width, Double.NaN );
+		for ( int x = Math.max( y - range, 0 ); x <= y; ++x )
+		{
+			final double v = row[ x - y + range ];
+			band[ y * width + x - y + range ] = v;
+			band[ x * width + y - x + range ] = v;
+		}
+
+		coordinates[ y ] = y == 0 ? 0.0 : coordinates[ y - 1 ] + 1.0;
+		scalingFactors[ y ] = 1.0;
+		++size;
+	}
+
+	/**
+	 * Append all rows and {@link #update()}.
+	 *
+	 * @return copy of the updated coordinates
+	 */
+	public double[] append( final double[][] rows ) throws Exception
+	{
+		for ( final double[] row : rows )
+			append( row );
+		update();
+		return getCoordinates();
+	}
+
+	/**
+	 * Re-optimize the trailing {@link #getWindowSize()} sections.
+	 */
+	public void update() throws Exception
+	{
+		final int windowStart = Math.max( size - windowSize, 0 );
+		final int contextStart = Math.max( windowStart - range, 0 );
+		final int n = size - contextStart;
+		final int nFrozen = windowStart - contextStart;
+
+		final double[] stripData = Arrays.copyOfRange( band, contextStart * width, size * width );
+		// no correlations with sections in front of the context
+		for ( int y = 0; y < range && y < n; ++y )
+			for ( int x = 0; x < range - y; ++x )
+				stripData[ y * width + x ] = Double.NaN;
+		final ArrayImg< DoubleType, DoubleArray > strip = ArrayImgs.doubles( stripData, width, n );
+		final RandomAccessibleInterval< DoubleType > matrix = MatrixStripConversion.stripToMatrix( strip, new DoubleType( Double.NaN ) );
+
+		final double[] startingCoordinates = Arrays.copyOfRange( coordinates, contextStart, size );
+
+		// estimate expects scaling factors in sorted order of the starting
+		// coordinates
+		final int[] forward = new int[ n ];
+		final int[] backward = new int[ n ];
+		ArraySortedIndices.sort( startingCoordinates.clone(), forward, backward );
+		final double[] sortedScalingFactors = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+			sortedScalingFactors[ forward[ i ] ] = scalingFactors[ contextStart + i ];
+
+		final double[] shiftWeights = new double[ n ];
+		Arrays.fill( shiftWeights, 1.0 );
+
+		final double[] fixedCoordinates = new double[ n ];
+		Arrays.fill( fixedCoordinates, Double.NaN );
+		System.arraycopy( startingCoordinates, 0, fixedCoordinates, 0, nFrozen );
+
+		final Options windowOptions;
+		if ( nFrozen > 0 )
+		{
+			windowOptions = options.clone();
+			windowOptions.regularizationType = InferFromMatrix.RegularizationType.NONE;
+		}
+		else
+			windowOptions = options;
+
+		final InferFromMatrix.Result result;
+		try (final InferFromMatrix inference = new InferFromMatrix( correlationFitFactory.apply( n ) ))
+		{
+			result = inference.estimate(
+					matrix,
+					startingCoordinates,
+					new double[ 0 ],
+					sortedScalingFactors,
+					ConstantUtils.constantRandomAccessibleInterval( new DoubleType( 1.0 ), 2, matrix ),
+					shiftWeights,
+					fixedCoordinates,
+					new LazyVisitor(),
+					windowOptions );
+		}
+
+		final double[] updated = result.coordinates;
+		for ( int i = nFrozen; i < n; ++i )
+		{
+			coordinates[ contextStart + i ] = updated[ i ];
+			scalingFactors[ contextStart + i ] = result.scalingFactors[ result.permutation[ i ] ];
+		}
+	}
+
+	/**
+	 * @return copy of the coordinates of all sections
+	 */
+	public double[] getCoordinates()
+	{
+		return Arrays.copyOf( coordinates, size );
+	}
+
+	/**
+	 * @return copy of the scaling factors of all sections in original order
+	 */
+	public double[] getScalingFactors()
+	{
+		return Arrays.copyOf( scalingFactors, size );
+	}
+
+	/**
+	 * @return correlation of sections x and y or NaN if x and y are not
+	 *         within comparisonRange or have not been appended.
+	 */
+	public double getCorrelation( final int x, final int y )
+	{
+		if ( x < 0 || y < 0 || x >= size || y >= size || Math.abs( x - y ) > range )
+			return Double.NaN;
+		return band[ y * width + x - y + range ];
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int getWindowSize()
+	{
+		return windowSize;
+	}
+
+	private void ensureCapacity( final int capacity )
+	{
+		if ( capacity <= coordinates.length )
+			return;
+		final int newCapacity = Math.max( capacity, 2 * coordinates.length );
+		band = Arrays.copyOf( band, newCapacity * width );
+		coordinates = Arrays.copyOf( coordinates, newCapacity );
+		scalingFactors = Arrays.copyOf( scalingFactors, newCapacity );
+	}
+
+}
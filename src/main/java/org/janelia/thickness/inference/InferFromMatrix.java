@@ -1,6 +1,10 @@
 package org.janelia.thickness.inference;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 import org.janelia.thickness.EstimateScalingFactors;
 import org.janelia.thickness.ShiftCoordinates;
@@ -9,6 +13,7 @@ import org.janelia.thickness.inference.visitor.LazyVisitor;
 import org.janelia.thickness.inference.visitor.Visitor;
 import org.janelia.thickness.lut.LUTRealTransform;
 import org.janelia.thickness.lut.PermutationTransform;
+import org.janelia.utility.DoubleStrip;
 import org.janelia.utility.MatrixStripConversion;
 import org.janelia.utility.arrays.ArraySortedIndices;
 import org.janelia.utility.arrays.ReplaceNaNs;
@@ -22,6 +27,7 @@ import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
 import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.type.NativeType;
@@ -34,15 +40,21 @@ import net.imglib2.view.TransformView;
 import net.imglib2.view.Views;
 
 /**
+ * Pools created on demand for {@link Options#nThreads} &gt; 1 are shut down
+ * by {@link #close()}.
  *
  * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
  *
  */
-public class InferFromMatrix
+public class InferFromMatrix implements AutoCloseable
 {
 
 	private final AbstractCorrelationFit correlationFit;
 
+	private final boolean ownsPool;
+
+	private ForkJoinPool pool;
+
 	public enum RegularizationType
 	{
 		NONE,
@@ -149,11 +161,208 @@ public class InferFromMatrix
 		}
 	}
 
+	/**
+	 * Result of {@link InferFromMatrix#estimate}.
+	 */
+	public static class Result
+	{
+		/**
+		 * z coordinates in original order
+		 */
+		public final double[] coordinates;
+
+		/**
+		 * scaling factors in sorted order of {@link #coordinates}
+		 */
+		public final double[] scalingFactors;
+
+		/**
+		 * maps original indices to sorted indices
+		 */
+		public final int[] permutation;
+
+		/**
+		 * number of iterations that were run
+		 */
+		public final int iterations;
+
+		/**
+		 * true if the loop terminated before {@link Options#nIterations}
+		 */
+		public final boolean converged;
+
+		public Result( final double[] coordinates, final double[] scalingFactors, final int[] permutation, final int iterations, final boolean converged )
+		{
+			super();
+			this.coordinates = coordinates;
+			this.scalingFactors = scalingFactors;
+			this.permutation = permutation;
+			this.iterations = iterations;
+			this.converged = converged;
+		}
+	}
+
+	/**
+	 * Tracks the maximum absolute change of coordinates and scaling factors
+	 * between iterations. An iteration counts as converged if
+	 *
+	 * max |c_new - c_old| &lt;= coordinateUpdateAbsoluteTolerance + coordinateUpdateRelativeTolerance * max |c_new|
+	 *
+	 * and the analogous condition holds for the scaling factors. A condition
+	 * for which both tolerances are zero (or null) is ignored. Convergence is
+	 * reported after {@link Options#convergencePatience} consecutive
+	 * converged iterations. Early termination is disabled if all tolerances
+	 * are zero.
+	 */
+	public static class ConvergenceCheck
+	{
+		private final double coordinateAbsoluteTolerance;
+
+		private final double coordinateRelativeTolerance;
+
+		private final double scalingFactorAbsoluteTolerance;
+
+		private final double scalingFactorRelativeTolerance;
+
+		private final int patience;
+
+		private final double[] previousCoordinates;
+
+		private final double[] previousScalingFactors;
+
+		private int nConverged;
+
+		public ConvergenceCheck( final double[] coordinates, final double[] scalingFactors, final Options options )
+		{
+			super();
+			this.coordinateAbsoluteTolerance = valueOrZero( options.coordinateUpdateAbsoluteTolerance );
+			this.coordinateRelativeTolerance = valueOrZero( options.coordinateUpdateRelativeTolerance );
+			this.scalingFactorAbsoluteTolerance = valueOrZero( options.scalingFactorAbsoluteTolerance );
+			this.scalingFactorRelativeTolerance = valueOrZero( options.scalingFactorRelativeTolerance );
+			this.patience = options.convergencePatience == null ? 1 : Math.max( options.convergencePatience, 1 );
+			this.previousCoordinates = coordinates.clone();
+			this.previousScalingFactors = scalingFactors.clone();
+			this.nConverged = 0;
+		}
+
+		/**
+		 * Restore the number of consecutive converged iterations, e.g. from
+		 * a {@link Checkpoint}.
+		 *
+		 * @return true if nConverged is sufficient for convergence
+		 */
+		public boolean restore( final int nConverged )
+		{
+			this.nConverged = nConverged;
+			return isEnabled() && nConverged >= patience;
+		}
+
+		public int getConvergedCount()
+		{
+			return nConverged;
+		}
+
+		public boolean isEnabled()
+		{
+			return coordinateAbsoluteTolerance > 0.0 || coordinateRelativeTolerance > 0.0 || scalingFactorAbsoluteTolerance > 0.0 || scalingFactorRelativeTolerance > 0.0;
+		}
+
+		/**
+		 * Compare coordinates and scaling factors (both in original order)
+		 * to the previous call and store them for the next call.
+		 *
+		 * @return true if the last {@link Options#convergencePatience}
+		 *         updates were within tolerance
+		 */
+		public boolean update( final double[] coordinates, final double[] scalingFactors )
+		{
+			final boolean coordinatesConverged = isWithinTolerance( previousCoordinates, coordinates, coordinateAbsoluteTolerance, coordinateRelativeTolerance );
+			final boolean scalingFactorsConverged = isWithinTolerance( previousScalingFactors, scalingFactors, scalingFactorAbsoluteTolerance, scalingFactorRelativeTolerance );
+			System.arraycopy( coordinates, 0, previousCoordinates, 0, coordinates.length );
+			System.arraycopy( scalingFactors, 0, previousScalingFactors, 0, scalingFactors.length );
+
+			if ( !isEnabled() )
+				return false;
+
+			nConverged = coordinatesConverged && scalingFactorsConverged ? nConverged + 1 : 0;
+			return nConverged >= patience;
+		}
+
+		public static boolean isWithinTolerance(
+				final double[] previous,
+				final double[] current,
+				final double absoluteTolerance,
+				final double relativeTolerance )
+		{
+			if ( absoluteTolerance <= 0.0 && relativeTolerance <= 0.0 )
+				return true;
+			double maxDiff = 0.0;
+			double maxAbs = 0.0;
+			for ( int i = 0; i < current.length; ++i )
+			{
+				final double diff = Math.abs( current[ i ] - previous[ i ] );
+				if ( Double.isNaN( diff ) )
+					return false;
+				maxDiff = Math.max( maxDiff, diff );
+				maxAbs = Math.max( maxAbs, Math.abs( current[ i ] ) );
+			}
+			return maxDiff <= absoluteTolerance + relativeTolerance * maxAbs;
+		}
+
+		private static double valueOrZero( final Double value )
+		{
+			return value == null ? 0.0 : value;
+		}
+	}
+
 	public InferFromMatrix( final AbstractCorrelationFit correlationFit )
+	{
+		this( correlationFit, null );
+	}
+
+	/**
+	 * @param pool
+	 *            used for parallel computations if {@link Options#nThreads}
+	 *            &gt; 1. If null, a pool with {@link Options#nThreads} threads
+	 *            is created on demand.
+	 */
+	public InferFromMatrix( final AbstractCorrelationFit correlationFit, final ForkJoinPool pool )
 	{
 		super();
 
 		this.correlationFit = correlationFit;
+		this.pool = pool;
+		this.ownsPool = pool == null;
+	}
+
+	/**
+	 * @return null if nThreads &lt;= 1, pool with nThreads threads otherwise
+	 */
+	public synchronized ForkJoinPool getPool( final Integer nThreads )
+	{
+		if ( nThreads == null || nThreads <= 1 )
+			return null;
+		if ( ownsPool && ( pool == null || pool.getParallelism() != nThreads ) )
+		{
+			if ( pool != null )
+				pool.shutdown();
+			pool = new ForkJoinPool( nThreads );
+		}
+		return pool;
+	}
+
+	/**
+	 * Shut down the pool if it was created on demand. Pools passed to the
+	 * constructor are left to the caller.
+	 */
+	@Override
+	public synchronized void close()
+	{
+		if ( ownsPool && pool != null )
+		{
+			pool.shutdown();
+			pool = null;
+		}
 	}
 
 	public < T extends RealType< T > & NativeType< T > > double[] estimateZCoordinates(
@@ -195,8 +404,170 @@ public class InferFromMatrix
 			final Visitor visitor,
 			final Options options ) throws Exception
 	{
+		return estimate(
+				inputMatrix,
+				startingCoordinates,
+				functionEstimate,
+				scalingFactors,
+				estimateWeights,
+				shiftWeights,
+				visitor,
+				options ).coordinates;
+	}
 
-		final double[] lut = startingCoordinates.clone();
+	public < T extends RealType< T > & NativeType< T > > Result estimate(
+			final RandomAccessibleInterval< T > matrix,
+			final double[] startingCoordinates,
+			final Options options ) throws Exception
+	{
+		return estimate(
+				matrix,
+				startingCoordinates,
+				new LazyVisitor(),
+				options );
+	}
+
+	public < T extends RealType< T > & NativeType< T > > Result estimate(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final double[] startingCoordinates,
+			final Visitor visitor,
+			final Options options ) throws Exception
+	{
+		return estimate(
+				inputMatrix,
+				startingCoordinates,
+				new double[ 0 ],
+				Arrays.stream( new double[ startingCoordinates.length ] ).map( d -> 1.0 ).toArray(),
+				ConstantUtils.constantRandomAccessibleInterval( new DoubleType( 1.0 ), inputMatrix.numDimensions(), inputMatrix ),
+				Arrays.stream( new double[ startingCoordinates.length ] ).map( d -> 1.0 ).toArray(),
+				visitor,
+				options );
+	}
+
+	/**
+	 * Run inference for at most {@link Options#nIterations} iterations. The
+	 * loop terminates early once {@link ConvergenceCheck} reports convergence.
+	 *
+	 * @return coordinates, scaling factors and the number of iterations that
+	 *         were actually run
+	 */
+	public < T extends RealType< T > & NativeType< T >, W extends RealType< W > > Result estimate(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final double[] startingCoordinates,
+			final double[] functionEstimate,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< W > estimateWeights,
+			final double[] shiftWeights,
+			final Visitor visitor,
+			final Options options ) throws Exception
+	{
+		return estimate( inputMatrix, startingCoordinates, functionEstimate, scalingFactors, estimateWeights, shiftWeights, null, visitor, options );
+	}
+
+	/**
+	 * Same as
+	 * {@link #estimate(RandomAccessibleInterval, double[], double[], double[], RandomAccessibleInterval, double[], Visitor, Options)}
+	 * but sections with a fixed coordinate do not move, e.g. sections that
+	 * serve as boundary condition for a sub-problem.
+	 *
+	 * @param fixedCoordinates
+	 *            coordinates in original order that are restored after each
+	 *            iteration, NaN for sections that are optimized. null if all
+	 *            sections are optimized.
+	 */
+	public < T extends RealType< T > & NativeType< T >, W extends RealType< W > > Result estimate(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final double[] startingCoordinates,
+			final double[] functionEstimate,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< W > estimateWeights,
+			final double[] shiftWeights,
+			final double[] fixedCoordinates,
+			final Visitor visitor,
+			final Options options ) throws Exception
+	{
+		if ( fixedCoordinates != null && fixedCoordinates.length != startingCoordinates.length )
+			throw new IllegalArgumentException( "Expected " + startingCoordinates.length + " fixed coordinates but got " + fixedCoordinates.length );
+		return run( inputMatrix, startingCoordinates, scalingFactors, estimateWeights, shiftWeights, fixedCoordinates, visitor, options, null );
+	}
+
+	public < T extends RealType< T > & NativeType< T > > Result resume(
+			final String checkpointFile,
+			final RandomAccessibleInterval< T > inputMatrix,
+			final Visitor visitor ) throws Exception
+	{
+		final Checkpoint checkpoint = Checkpoint.read( checkpointFile );
+		return resume(
+				checkpoint,
+				inputMatrix,
+				ConstantUtils.constantRandomAccessibleInterval( new DoubleType( 1.0 ), inputMatrix.numDimensions(), inputMatrix ),
+				Arrays.stream( new double[ checkpoint.coordinates.length ] ).map( d -> 1.0 ).toArray(),
+				visitor );
+	}
+
+	/**
+	 * Continue inference from checkpoint with the {@link Options} stored in
+	 * checkpoint. The input matrix and weights must be the same as for the
+	 * run that wrote checkpoint and the correlation fit of this instance must
+	 * be of the same type and parameters. Its state is restored from
+	 * checkpoint. The result is the same as for an uninterrupted run. {@link Result#iterations} counts all iterations,
+	 * including those before checkpoint.
+	 */
+	public < T extends RealType< T > & NativeType< T >, W extends RealType< W > > Result resume(
+			final Checkpoint checkpoint,
+			final RandomAccessibleInterval< T > inputMatrix,
+			final RandomAccessibleInterval< W > estimateWeights,
+			final double[] shiftWeights,
+			final Visitor visitor ) throws Exception
+	{
+		final int n = checkpoint.coordinates.length;
+		if ( inputMatrix.dimension( 0 ) != n || checkpoint.scaledStrip.length != n * ( 2 * checkpoint.options.comparisonRange + 1 ) )
+			throw new IllegalArgumentException( "Checkpoint does not match matrix of size " + inputMatrix.dimension( 0 ) );
+		correlationFit.setState( checkpoint.fitState );
+		return run(
+				inputMatrix,
+				checkpoint.startingCoordinates,
+				checkpoint.scalingFactors.clone(),
+				estimateWeights,
+				shiftWeights,
+				null,
+				visitor,
+				checkpoint.options,
+				checkpoint );
+	}
+
+	/**
+	 * @param fixedCoordinates
+	 *            restored after each iteration unless NaN or null
+	 * @param checkpoint
+	 *            continue from checkpoint if not null. scalingFactors must
+	 *            hold the scaling factors of checkpoint in that case.
+	 */
+	private < T extends RealType< T > & NativeType< T >, W extends RealType< W > > Result run(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final double[] startingCoordinates,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< W > estimateWeights,
+			final double[] shiftWeights,
+			final double[] fixedCoordinates,
+			final Visitor visitor,
+			final Options options,
+			final Checkpoint checkpoint ) throws Exception
+	{
+
+		if ( options.usePrimitiveStrip != null && options.usePrimitiveStrip )
+			return estimateFromStrip(
+					inputMatrix,
+					startingCoordinates,
+					scalingFactors,
+					estimateWeights,
+					shiftWeights,
+					fixedCoordinates,
+					visitor,
+					options,
+					checkpoint );
+
+		final double[] lut = checkpoint == null ? startingCoordinates.clone() : checkpoint.coordinates.clone();
 		final int n = ( int ) inputMatrix.dimension( 0 );
 		final int[] permutationLut = new int[ n ];
 		final int[] inverse = permutationLut.clone();
@@ -205,47 +576,42 @@ public class InferFromMatrix
 		final RandomAccessibleInterval< double[] >[] correlationFitsStore = new RandomAccessibleInterval[] { null };
 
 		double[] permutedLut = lut.clone(); // sorted lut
-		final double[] scalingFactorsPrevious = scalingFactors.clone();
 		ArraySortedIndices.sort( permutedLut, permutationLut, inverse );
+		final double[] scalingFactorsPrevious = originalOrderScalingFactors( scalingFactors, permutationLut, checkpoint );
 
 		T nanExtension = Util.getTypeFromInterval( inputMatrix ).createVariable();
 		nanExtension.setReal( Double.NaN );
 
 		final ArrayImg< T, ? > inputScaledStrip = new ArrayImgFactory<>( nanExtension.createVariable() ).create( 2 * options.comparisonRange + 1, n );
 		
-		final RandomAccessibleInterval< T > inputScaledMatrix = MatrixStripConversion.stripToMatrix( inputScaledStrip, nanExtension.copy() );
-		for ( Cursor< T > source = Views.flatIterable( MatrixStripConversion.matrixToStrip( inputMatrix, options.comparisonRange, nanExtension.copy() ) ).cursor(), target = Views.flatIterable( inputScaledStrip ).cursor(); source.hasNext(); )
-			target.next().set( source.next() );
-
-		final Regularizer regularizer;
-		switch ( options.regularizationType )
-		{
-		case BORDER:
-		{
-			regularizer = new BorderRegularization( new AffineModel1D(), n );
-			break;
-		}
-		case IDENTITY:
-		{
-			regularizer = new IdentityRegularization( new AffineModel1D(), n );
-			break;
-		}
-		case NONE:
-		{
-			regularizer = new NoRegularization();
-			break;
-		}
-		default:
+		final T scaledExtension = nanExtension.copy();
+		final RandomAccessibleInterval< T > inputScaledMatrix = MatrixStripConversion.stripToMatrix( inputScaledStrip, scaledExtension );
+		if ( checkpoint == null )
+			for ( Cursor< T > source = Views.flatIterable( MatrixStripConversion.matrixToStrip( inputMatrix, options.comparisonRange, nanExtension.copy() ) ).cursor(), target = Views.flatIterable( inputScaledStrip ).cursor(); source.hasNext(); )
+				target.next().set( source.next() );
+		else
 		{
-			regularizer = new NoRegularization();
-			break;
-		}
+			int i = 0;
+			for ( final T t : Views.flatIterable( inputScaledStrip ) )
+				t.setReal( checkpoint.scaledStrip[ i++ ] );
+			scaledExtension.setReal( checkpoint.scaledExtension );
 		}
 
+		final Regularizer regularizer = createRegularizer( options, n );
+
 		final double[] shiftsArray = new double[ n ];
 		final double[] weightSums = new double[ n ];
 
-		for ( int iteration = 0; iteration < options.nIterations; ++iteration )
+		final ConvergenceCheck convergenceCheck = new ConvergenceCheck( lut, scalingFactorsPrevious, options );
+		int iteration = 0;
+		boolean converged = false;
+		if ( checkpoint != null )
+		{
+			iteration = checkpoint.iteration;
+			converged = convergenceCheck.restore( checkpoint.nConverged );
+		}
+
+		for ( ; iteration < options.nIterations && !converged; ++iteration )
 		{
 
 			final long t0 = System.nanoTime();
@@ -296,18 +662,385 @@ public class InferFromMatrix
 			regularizer.regularize( permutedLut, options );
 
 			updateArray( permutedLut, lut, inverse );
+			restoreFixedCoordinates( lut, fixedCoordinates );
 			updateArray( scalingFactors, scalingFactorsPrevious, inverse );
 			permutedLut = lut.clone();
-			ArraySortedIndices.sort( permutedLut, permutationLut, inverse );
+			// coordinates change little between iterations
+			ArraySortedIndices.resort( permutedLut, permutationLut, inverse );
 			updateArray( scalingFactorsPrevious, scalingFactors, permutationLut );
 			final long t1 = System.nanoTime();
 			//			System.out.println( "time: " + ( t1 - t0 ) );
 
 			visitor.act( iteration + 1, matrix, scaledMatrix, lut, permutationLut, inverse, scalingFactors, correlationFitsStore[ 0 ] );
 
+			// scalingFactorsPrevious holds scaling factors in original order
+			converged = convergenceCheck.update( lut, scalingFactorsPrevious );
+
+			if ( Checkpoint.isDue( iteration + 1, options ) )
+			{
+				final double[] scaled = new double[ ( int ) inputScaledStrip.size() ];
+				int k = 0;
+				for ( final T t : Views.flatIterable( inputScaledStrip ) )
+					scaled[ k++ ] = t.getRealDouble();
+				new Checkpoint( options, iteration + 1, convergenceCheck.getConvergedCount(), startingCoordinates, lut.clone(), scalingFactors.clone(), permutationLut.clone(), scaled, scaledExtension.getRealDouble(), correlationFit.getState() ).write( options.checkpointFile );
+			}
+
+		}
+
+		return new Result( lut, scalingFactors, permutationLut, iteration, converged );
+	}
+
+	public < T extends RealType< T > & NativeType< T > > Result estimateCoarseToFine(
+			final RandomAccessibleInterval< T > matrix,
+			final double[] startingCoordinates,
+			final AbstractCorrelationFit.Factory coarseCorrelationFits,
+			final Options options ) throws Exception
+	{
+		return estimateCoarseToFine(
+				matrix,
+				startingCoordinates,
+				coarseCorrelationFits,
+				new LazyVisitor(),
+				options );
+	}
+
+	/**
+	 * Multi-resolution inference: Build a pyramid of at most
+	 * {@link Options#pyramidLevels} levels, each averaging blocks of
+	 * {@link Options#pyramidFactor} sections of the next finer level. Coarse
+	 * levels are solved for {@link Options#pyramidIterations} iterations
+	 * ({@link Options#nIterations} if not set), coarsest first, and the coordinate updates of each level are linearly
+	 * interpolated to the next finer level as starting coordinates. The
+	 * finest level is solved for {@link Options#nIterations} iterations.
+	 * The finest level uses the correlation fit of this instance, each
+	 * coarse level a new fit created by coarseCorrelationFits for the size and
+	 * options of that level. All levels use the regularizer of
+	 * {@link Options#regularizationType}. Only the finest level is reported
+	 * to visitor and written to {@link Options#checkpointFile}.
+	 *
+	 * @param coarseCorrelationFits
+	 *            create correlation fit for each coarse level
+	 * @return result at the finest level
+	 */
+	public < T extends RealType< T > & NativeType< T > > Result estimateCoarseToFine(
+			final RandomAccessibleInterval< T > matrix,
+			final double[] startingCoordinates,
+			final AbstractCorrelationFit.Factory coarseCorrelationFits,
+			final Visitor visitor,
+			final Options options ) throws Exception
+	{
+		final int factor = options.pyramidFactor == null ? 1 : options.pyramidFactor;
+		final int nLevels = options.pyramidLevels == null ? 1 : options.pyramidLevels;
+		final int nCoarseIterations = options.pyramidIterations == null ? options.nIterations : options.pyramidIterations;
+
+		final List< RandomAccessibleInterval< DoubleType > > matrices = new ArrayList<>();
+		final List< double[] > coordinates = new ArrayList<>();
+		final List< Options > levelOptions = new ArrayList<>();
+
+		Options finerOptions = options;
+		double[] finerCoordinates = startingCoordinates;
+		for ( int level = 1; level < nLevels && factor > 1; ++level )
+		{
+			final int n = ( finerCoordinates.length + factor - 1 ) / factor;
+			final int range = Math.max( finerOptions.comparisonRange / factor, 1 );
+			// too few sections for meaningful coarse problem
+			if ( n < 2 * ( range + 1 ) )
+				break;
+
+			final Options o = finerOptions.clone();
+			o.comparisonRange = range;
+			o.nIterations = nCoarseIterations;
+			o.minimumSectionThickness = finerOptions.minimumSectionThickness / factor;
+			// only the finest level is checkpointed
+			o.checkpointFile = "";
+			o.checkpointInterval = 0;
+			if ( finerOptions.estimateWindowRadius > 0 )
+				o.estimateWindowRadius = Math.max( finerOptions.estimateWindowRadius / factor, 1 );
+
+			matrices.add( matrices.isEmpty() ?
+					downsampleMatrix( matrix, finerOptions.comparisonRange, factor, range ) :
+					downsampleMatrix( matrices.get( matrices.size() - 1 ), finerOptions.comparisonRange, factor, range ) );
+			finerCoordinates = downsampleCoordinates( finerCoordinates, factor );
+			coordinates.add( finerCoordinates );
+			levelOptions.add( o );
+			finerOptions = o;
+		}
+
+		// coordinate updates in units of the previous (coarser) level
+		double[] updates = null;
+		for ( int level = matrices.size() - 1; level >= 0; --level )
+		{
+			final double[] levelCoordinates = coordinates.get( level );
+			final double[] start = levelCoordinates.clone();
+			if ( updates != null )
+				addUpsampled( updates, start, factor );
+			final Options o = levelOptions.get( level );
+			final Result result;
+			try (final InferFromMatrix inference = new InferFromMatrix( coarseCorrelationFits.create( start.length, o ), getPool( o.nThreads ) ))
+			{
+				result = inference.estimate( matrices.get( level ), start, o );
+			}
+			updates = new double[ start.length ];
+			for ( int z = 0; z < updates.length; ++z )
+				updates[ z ] = result.coordinates[ z ] - levelCoordinates[ z ];
+		}
+
+		final double[] start = startingCoordinates.clone();
+		if ( updates != null )
+			addUpsampled( updates, start, factor );
+		return estimate( matrix, start, visitor, options );
+	}
+
+	/**
+	 * Same as
+	 * {@link #estimate(RandomAccessibleInterval, double[], double[], double[], RandomAccessibleInterval, double[], Visitor, Options)}
+	 * but all three phases (correlation fit, scaling factors, shifts) operate
+	 * on flat {@link DoubleStrip}s. Permutations are applied through index
+	 * arithmetic instead of {@link TransformView}s and interpolation is
+	 * inlined. For band limited matrices (NaN outside of
+	 * {@link Options#comparisonRange}) of {@link DoubleType} the result is
+	 * identical to the view based implementation.
+	 */
+	private < T extends RealType< T >, W extends RealType< W > > Result estimateFromStrip(
+			final RandomAccessibleInterval< T > inputMatrix,
+			final double[] startingCoordinates,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< W > estimateWeights,
+			final double[] shiftWeights,
+			final double[] fixedCoordinates,
+			final Visitor visitor,
+			final Options options,
+			final Checkpoint checkpoint ) throws Exception
+	{
+		final double[] lut = checkpoint == null ? startingCoordinates.clone() : checkpoint.coordinates.clone();
+		final int n = ( int ) inputMatrix.dimension( 0 );
+		final int range = options.comparisonRange;
+		final int[] permutationLut = new int[ n ];
+		final int[] inverse = permutationLut.clone();
+		final int nMatrixDim = inputMatrix.numDimensions();
+		@SuppressWarnings( "unchecked" )
+		final RandomAccessibleInterval< double[] >[] correlationFitsStore = new RandomAccessibleInterval[] { null };
+
+		double[] permutedLut = lut.clone(); // sorted lut
+		ArraySortedIndices.sort( permutedLut, permutationLut, inverse );
+		final double[] scalingFactorsPrevious = originalOrderScalingFactors( scalingFactors, permutationLut, checkpoint );
+
+		final DoubleStrip strip = DoubleStrip.fromMatrix( inputMatrix, range );
+		final DoubleStrip scaledStrip = checkpoint == null ? strip.copy() : new DoubleStrip( checkpoint.scaledStrip.clone(), n, range );
+		final DoubleStrip weightStrip = DoubleStrip.fromMatrixExtendBorder( estimateWeights, range );
+		final double[][] fits = new double[ n ][];
+
+		// views for visitors only
+		final RandomAccessibleInterval< DoubleType > stripMatrix = strip.asMatrix();
+		final RandomAccessibleInterval< DoubleType > scaledStripMatrix = scaledStrip.asMatrix();
+
+		final Regularizer regularizer = createRegularizer( options, n );
+
+		final double[] shiftsArray = new double[ n ];
+		final double[] weightSums = new double[ n ];
+
+		final ConvergenceCheck convergenceCheck = new ConvergenceCheck( lut, scalingFactorsPrevious, options );
+		int iteration = 0;
+		boolean converged = false;
+		if ( checkpoint != null )
+		{
+			iteration = checkpoint.iteration;
+			converged = convergenceCheck.restore( checkpoint.nConverged );
+		}
+
+		for ( ; iteration < options.nIterations && !converged; ++iteration )
+		{
+
+			final PermutationTransform permutation = new PermutationTransform( inverse, nMatrixDim, nMatrixDim );
+			final IntervalView< DoubleType > matrix = Views.interval( new TransformView<>( stripMatrix, permutation ), stripMatrix );
+			final IntervalView< DoubleType > scaledMatrix = Views.interval( new TransformView<>( scaledStripMatrix, permutation ), scaledStripMatrix );
+
+			if ( iteration == 0 )
+				visitor.act( iteration, matrix, scaledMatrix, lut, permutationLut, inverse, scalingFactors, correlationFitsStore[ 0 ] );
+
+			Arrays.fill( shiftsArray, 0.0 );
+			Arrays.fill( weightSums, 0.0 );
+
+			final double[] shifts = this.getMediatedShiftsFromStrip(
+					strip,
+					scaledStrip,
+					inverse,
+					permutedLut,
+					scalingFactors,
+					correlationFitsStore,
+					fits,
+					shiftsArray,
+					weightSums,
+					weightStrip,
+					shiftWeights,
+					options );
+
+			this.applyShifts(
+					permutedLut,
+					shifts,
+					startingCoordinates,
+					permutation.copyToDimension( 1, 1 ),
+					options );
+
+			ReplaceNaNs.replace( permutedLut );
+
+			if ( !options.withReorder )
+				preventReorder( permutedLut, options );
+
+			regularizer.regularize( permutedLut, options );
+
+			updateArray( permutedLut, lut, inverse );
+			restoreFixedCoordinates( lut, fixedCoordinates );
+			updateArray( scalingFactors, scalingFactorsPrevious, inverse );
+			permutedLut = lut.clone();
+			// coordinates change little between iterations
+			ArraySortedIndices.resort( permutedLut, permutationLut, inverse );
+			updateArray( scalingFactorsPrevious, scalingFactors, permutationLut );
+
+			visitor.act( iteration + 1, matrix, scaledMatrix, lut, permutationLut, inverse, scalingFactors, correlationFitsStore[ 0 ] );
+
+			// scalingFactorsPrevious holds scaling factors in original order
+			converged = convergenceCheck.update( lut, scalingFactorsPrevious );
+
+			if ( Checkpoint.isDue( iteration + 1, options ) )
+				new Checkpoint( options, iteration + 1, convergenceCheck.getConvergedCount(), startingCoordinates, lut.clone(), scalingFactors.clone(), permutationLut.clone(), scaledStrip.getData().clone(), Double.NaN, correlationFit.getState() ).write( options.checkpointFile );
+
 		}
 
-		return lut;
+		return new Result( lut, scalingFactors, permutationLut, iteration, converged );
+	}
+
+	/**
+	 * Strip equivalent of
+	 * {@link #getMediatedShifts(RandomAccessibleInterval, RandomAccessibleInterval, double[], double[], int, RandomAccessibleInterval[], double[], double[], RandomAccessibleInterval, double[], Options)}.
+	 *
+	 * @param permutation
+	 *            maps permuted (sorted) indices to original indices
+	 * @param fits
+	 *            n x 1 array that holds the per section fits after return
+	 */
+	public double[] getMediatedShiftsFromStrip(
+			final DoubleStrip strip,
+			final DoubleStrip scaledStrip,
+			final int[] permutation,
+			final double[] lut,
+			final double[] scalingFactors,
+			final RandomAccessibleInterval< double[] >[] correlationFitsStore,
+			final double[][] fits,
+			final double[] shiftsArray,
+			final double[] weightSums,
+			final DoubleStrip estimateWeights,
+			final double[] shiftWeights,
+			final Options options ) throws InterruptedException, ExecutionException
+	{
+		final LUTRealTransform transform = new LUTRealTransform( lut, 1, 1 );
+
+		final ForkJoinPool pool = getPool( options.nThreads );
+		final RandomAccessibleInterval< double[] > fitsImg = pool == null ?
+				correlationFit.estimateFromStrip( scaledStrip, permutation, lut, transform, estimateWeights, options, isIdentity( lut ) ) :
+				correlationFit.estimateFromStripParallel( scaledStrip, permutation, lut, transform, estimateWeights, options, isIdentity( lut ), pool );
+		correlationFitsStore[ 0 ] = fitsImg;
+		{
+			final Cursor< double[] > fitCursor = Views.flatIterable( fitsImg ).cursor();
+			for ( int z = 0; z < fits.length; ++z )
+				fits[ z ] = fitCursor.next();
+		}
+
+		if ( pool == null )
+			EstimateScalingFactors.estimateQuadraticFromStrip(
+					strip,
+					permutation,
+					scalingFactors,
+					lut,
+					fits,
+					options.scalingFactorRegularizerWeight,
+					options.comparisonRange,
+					options.scalingFactorEstimationIterations,
+					estimateWeights );
+		else
+			EstimateScalingFactors.estimateQuadraticFromStripJacobi(
+					strip,
+					permutation,
+					scalingFactors,
+					lut,
+					fits,
+					options.scalingFactorRegularizerWeight,
+					options.comparisonRange,
+					options.scalingFactorEstimationIterations,
+					estimateWeights,
+					pool,
+					pool.getParallelism() );
+
+		// write scaled matrix to scaledStrip
+		for ( int z = 0; z < lut.length; ++z )
+		{
+			final int max = Math.min( lut.length, z + options.comparisonRange + 1 );
+			for ( int k = Math.max( 0, z - options.comparisonRange ); k < max; ++k )
+			{
+				final double value = strip.getPermuted( z, k, permutation );
+				scaledStrip.setPermuted( z, k, permutation, k == z ? value : value * ( scalingFactors[ z ] * scalingFactors[ k ] ) );
+			}
+		}
+
+		if ( pool == null )
+			ShiftCoordinates.collectShiftsFromStrip(
+					lut,
+					scaledStrip,
+					permutation,
+					scalingFactors,
+					fits,
+					shiftsArray,
+					weightSums,
+					shiftWeights,
+					options );
+		else
+			ShiftCoordinates.collectShiftsFromStripParallel(
+					lut,
+					scaledStrip,
+					permutation,
+					scalingFactors,
+					fits,
+					shiftsArray,
+					weightSums,
+					shiftWeights,
+					options,
+					pool,
+					pool.getParallelism() );
+
+		final double[] mediatedShifts = new double[ lut.length ];
+		mediateShifts( shiftsArray, weightSums, mediatedShifts );
+
+		return mediatedShifts;
+	}
+
+	/**
+	 * At the start of inference, scaling factors are used as is, in both
+	 * sorted and original order. When continuing from a checkpoint, the
+	 * scaling factors are stored in sorted order.
+	 */
+	private static double[] originalOrderScalingFactors( final double[] scalingFactors, final int[] permutation, final Checkpoint checkpoint )
+	{
+		if ( checkpoint == null )
+			return scalingFactors.clone();
+		final double[] original = new double[ scalingFactors.length ];
+		for ( int i = 0; i < original.length; ++i )
+			original[ i ] = scalingFactors[ permutation[ i ] ];
+		return original;
+	}
+
+	public static Regularizer createRegularizer( final Options options, final int n )
+	{
+		switch ( options.regularizationType )
+		{
+		case BORDER:
+			return new BorderRegularization( new AffineModel1D(), n );
+		case IDENTITY:
+			return new IdentityRegularization( new AffineModel1D(), n );
+		case NONE:
+			return new NoRegularization();
+		default:
+			return new NoRegularization();
+		}
 	}
 
 	public < T extends RealType< T >, W extends RealType< W > > double[] getMediatedShifts(
@@ -321,7 +1054,7 @@ public class InferFromMatrix
 			final double[] weightSums,
 			final RandomAccessibleInterval< W > estimateWeightMatrix,
 			final double[] shiftWeights,
-			final Options options ) throws NotEnoughDataPointsException, IllDefinedDataPointsException
+			final Options options ) throws NotEnoughDataPointsException, IllDefinedDataPointsException, InterruptedException, ExecutionException
 	{
 
 		final int nMatrixDimensions = scaledMatrix.numDimensions();
@@ -330,20 +1063,34 @@ public class InferFromMatrix
 		// use scaled matrix
 		// TODO about 1/4 of runtime happens here
 		boolean isIdentity = isIdentity( lut );
-		final RandomAccessibleInterval< double[] > fits =
-				correlationFit.estimateFromMatrix( scaledMatrix, lut, transform, estimateWeightMatrix, options, isIdentity ? new NearestNeighborInterpolatorFactory<>() : new NLinearInterpolatorFactory<>() );
+		final ForkJoinPool pool = getPool( options.nThreads );
+		final RandomAccessibleInterval< double[] > fits = pool == null ?
+				correlationFit.estimateFromMatrix( scaledMatrix, lut, transform, estimateWeightMatrix, options, isIdentity ? new NearestNeighborInterpolatorFactory<>() : new NLinearInterpolatorFactory<>() ) :
+				correlationFit.estimateFromMatrixParallel( scaledMatrix, lut, transform, estimateWeightMatrix, options, isIdentity ? new NearestNeighborInterpolatorFactory<>() : new NLinearInterpolatorFactory<>(), pool );
 		correlationFitsStore[ 0 ] = fits;
 
 		// use original matrix to estimate scaling factors
 		// TODO more than half of runtime happens here -- only option to keep number of iterations low?
-		EstimateScalingFactors.estimateQuadraticFromMatrix( matrix,
-				scalingFactors,
-				lut,
-				fits,
-				options.scalingFactorRegularizerWeight,
-				options.comparisonRange,
-				options.scalingFactorEstimationIterations,
-				estimateWeightMatrix );
+		if ( pool == null )
+			EstimateScalingFactors.estimateQuadraticFromMatrix( matrix,
+					scalingFactors,
+					lut,
+					fits,
+					options.scalingFactorRegularizerWeight,
+					options.comparisonRange,
+					options.scalingFactorEstimationIterations,
+					estimateWeightMatrix );
+		else
+			EstimateScalingFactors.estimateQuadraticFromMatrixJacobi( matrix,
+					scalingFactors,
+					lut,
+					fits,
+					options.scalingFactorRegularizerWeight,
+					options.comparisonRange,
+					options.scalingFactorEstimationIterations,
+					estimateWeightMatrix,
+					pool,
+					pool.getParallelism() );
 
 		// write scaled matrix to scaledMatrix
 		final RandomAccess< T > matrixRA = matrix.randomAccess();
@@ -364,15 +1111,28 @@ public class InferFromMatrix
 		}
 
 		// use scaled matrix to collect shifts
-		ShiftCoordinates.collectShiftsFromMatrix(
-				lut,
-				scaledMatrix,
-				scalingFactors,
-				fits,
-				shiftsArray,
-				weightSums,
-				shiftWeights,
-				options );
+		if ( pool == null )
+			ShiftCoordinates.collectShiftsFromMatrix(
+					lut,
+					scaledMatrix,
+					scalingFactors,
+					fits,
+					shiftsArray,
+					weightSums,
+					shiftWeights,
+					options );
+		else
+			ShiftCoordinates.collectShiftsFromMatrixParallel(
+					lut,
+					scaledMatrix,
+					scalingFactors,
+					fits,
+					shiftsArray,
+					weightSums,
+					shiftWeights,
+					options,
+					pool,
+					pool.getParallelism() );
 
 		final double[] mediatedShifts = new double[ lut.length ];
 		mediateShifts( shiftsArray, weightSums, mediatedShifts );
@@ -415,6 +1175,20 @@ public class InferFromMatrix
 		}
 	}
 
+	/**
+	 * Set coordinates[ i ] to fixedCoordinates[ i ] for all i with
+	 * fixedCoordinates[ i ] not NaN. Nothing happens if fixedCoordinates is
+	 * null.
+	 */
+	public static void restoreFixedCoordinates( final double[] coordinates, final double[] fixedCoordinates )
+	{
+		if ( fixedCoordinates == null )
+			return;
+		for ( int i = 0; i < coordinates.length; ++i )
+			if ( !Double.isNaN( fixedCoordinates[ i ] ) )
+				coordinates[ i ] = fixedCoordinates[ i ];
+	}
+
 	public void updateArray( final double[] source, final double[] target, final int[] permutation )
 	{
 		for ( int i = 0; i < target.length; i++ )
@@ -430,6 +1204,121 @@ public class InferFromMatrix
 			mediatedShifts[ i ] = shifts[ i ] / weightSums[ i ];
 	}
 
+	/**
+	 * Average blocks of factor x factor entries of a band limited similarity
+	 * matrix. NaN entries and entries that are further than range off the
+	 * diagonal are ignored.
+	 *
+	 * @param range
+	 *            comparison range of matrix
+	 * @param coarseRange
+	 *            comparison range of the downsampled matrix
+	 * @return strip backed matrix of size ceil( n / factor ), NaN outside of
+	 *         coarseRange
+	 */
+	public static < T extends RealType< T > > RandomAccessibleInterval< DoubleType > downsampleMatrix(
+			final RandomAccessibleInterval< T > matrix,
+			final int range,
+			final int factor,
+			final int coarseRange )
+	{
+		final int n = ( int ) matrix.dimension( 0 );
+		final int coarseN = ( n + factor - 1 ) / factor;
+		final ArrayImg< DoubleType, ? > strip = ArrayImgs.doubles( 2 * coarseRange + 1, coarseN );
+		final RandomAccessibleInterval< DoubleType > coarse = MatrixStripConversion.stripToMatrix( strip, new DoubleType( Double.NaN ) );
+		final RandomAccess< T > access = matrix.randomAccess();
+		final RandomAccess< DoubleType > coarseAccess = coarse.randomAccess();
+
+		for ( final DoubleType s : strip )
+			s.set( Double.NaN );
+
+		for ( int Y = 0; Y < coarseN; ++Y )
+		{
+			coarseAccess.setPosition( Y, 1 );
+			for ( int X = Math.max( Y - coarseRange, 0 ); X <= Math.min( Y + coarseRange, coarseN - 1 ); ++X )
+			{
+				double sum = 0.0;
+				int count = 0;
+				for ( int y = Y * factor; y < Math.min( ( Y + 1 ) * factor, n ); ++y )
+				{
+					access.setPosition( y, 1 );
+					for ( int x = Math.max( X * factor, y - range ); x < Math.min( Math.min( ( X + 1 ) * factor, n ), y + range + 1 ); ++x )
+					{
+						access.setPosition( x, 0 );
+						final double v = access.get().getRealDouble();
+						if ( !Double.isNaN( v ) )
+						{
+							sum += v;
+							++count;
+						}
+					}
+				}
+				if ( count > 0 )
+				{
+					coarseAccess.setPosition( X, 0 );
+					coarseAccess.get().set( sum / count );
+				}
+			}
+		}
+
+		return coarse;
+	}
+
+	/**
+	 * Coordinates of the blocks of factor sections averaged by
+	 * {@link #downsampleMatrix(RandomAccessibleInterval, int, int, int)}: The
+	 * average coordinate of block X relative to its center index, divided by
+	 * factor, with offset X, i.e. evenly spaced coordinates are mapped to 0,
+	 * 1, 2, ...
+	 */
+	public static double[] downsampleCoordinates( final double[] coordinates, final int factor )
+	{
+		final int n = coordinates.length;
+		final double[] coarse = new double[ ( n + factor - 1 ) / factor ];
+		for ( int X = 0; X < coarse.length; ++X )
+		{
+			final int start = X * factor;
+			final int stop = Math.min( start + factor, n );
+			double sum = 0.0;
+			for ( int x = start; x < stop; ++x )
+				sum += coordinates[ x ];
+			final double center = 0.5 * ( start + stop - 1 );
+			coarse[ X ] = X + ( sum / ( stop - start ) - center ) / factor;
+		}
+		return coarse;
+	}
+
+	/**
+	 * Linearly interpolate coarse coordinate updates between block centers
+	 * (constant beyond the first and last center), scale them by factor and
+	 * add them to fine.
+	 */
+	public static void addUpsampled( final double[] coarse, final double[] fine, final int factor )
+	{
+		final int n = fine.length;
+		final int last = coarse.length - 1;
+		for ( int x = 0, X = 0; x < n; ++x )
+		{
+			while ( X < last && center( X + 1, factor, n ) <= x )
+				++X;
+			final double c0 = center( X, factor, n );
+			final double update;
+			if ( X == last || x <= c0 )
+				update = coarse[ X ];
+			else
+			{
+				final double w = ( x - c0 ) / ( center( X + 1, factor, n ) - c0 );
+				update = coarse[ X ] * ( 1 - w ) + coarse[ X + 1 ] * w;
+			}
+			fine[ x ] += factor * update;
+		}
+	}
+
+	private static double center( final int X, final int factor, final int n )
+	{
+		return 0.5 * ( X * factor + Math.min( ( X + 1 ) * factor, n ) - 1 );
+	}
+
 	public static < T extends RealType< T > > void fillWeightStrip( final RandomAccessibleInterval< T > strip, final double[] weights, final T t )
 	{
 
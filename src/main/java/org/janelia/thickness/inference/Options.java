@@ -42,6 +42,19 @@ public class Options implements Serializable
 		result.forceMonotonicity = false;
 		result.estimateWindowRadius = -1;
 		result.minimumCorrelationValue = 0.0;
+		result.usePrimitiveStrip = false;
+		result.coordinateUpdateAbsoluteTolerance = 0.0;
+		result.coordinateUpdateRelativeTolerance = 0.0;
+		result.scalingFactorAbsoluteTolerance = 0.0;
+		result.scalingFactorRelativeTolerance = 0.0;
+		result.convergencePatience = 1;
+		result.nThreads = 1;
+		result.indexedInverseLookup = false;
+		result.pyramidLevels = 1;
+		result.pyramidFactor = 2;
+		result.pyramidIterations = 100;
+		result.checkpointFile = "";
+		result.checkpointInterval = 0;
 		return result;
 	}
 
@@ -72,6 +85,40 @@ public class Options implements Serializable
 
 	public Double minimumCorrelationValue;
 
+	public Boolean usePrimitiveStrip; // run inference on flat double[] strip instead of views
+
+	// stop early when max coordinate update <= abs + rel * max |coordinate|
+	// (and analogously for scaling factors) for convergencePatience
+	// consecutive iterations; all zero: always run nIterations
+	public Double coordinateUpdateAbsoluteTolerance;
+
+	public Double coordinateUpdateRelativeTolerance;
+
+	public Double scalingFactorAbsoluteTolerance;
+
+	public Double scalingFactorRelativeTolerance;
+
+	public Integer convergencePatience;
+
+	public Integer nThreads; // > 1: parallel correlation fit, (Jacobi style) scaling factor estimation and shift collection
+
+	public Boolean indexedInverseLookup; // bucket index instead of binary search for inverse lookups into local fits
+
+	// InferFromMatrix.estimateCoarseToFine: number of levels including full
+	// resolution (1: no pyramid), downsampling factor between levels and
+	// number of iterations at each coarse level
+	public Integer pyramidLevels;
+
+	public Integer pyramidFactor;
+
+	public Integer pyramidIterations;
+
+	// write InferFromMatrix state to checkpointFile every checkpointInterval
+	// iterations, see Checkpoint; <= 0: no checkpoints
+	public String checkpointFile;
+
+	public Integer checkpointInterval;
+
 	public static Options read( final String filename ) throws JsonSyntaxException, JsonIOException, FileNotFoundException
 	{
 		final Gson gson = new Gson();
@@ -0,0 +1,286 @@
+package org.janelia.thickness.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+import org.janelia.thickness.lut.LUTGrid;
+import org.janelia.thickness.plugin.CachedStatisticsFloatNCC;
+import org.janelia.thickness.plugin.NCCKernel;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+/**
+ * Spatially varying z-spacing: Split the xy-plane of a stack into a grid of
+ * tiles, compute an NCC similarity band for each tile, infer one lut per
+ * tile with {@link BatchInference}, smooth the luts of neighboring tiles and
+ * combine them into a {@link LUTGrid}. The {@link LUTGrid} maps ( x, y, z )
+ * to ( x, y, lut_xy( z ) ) with lut_xy linearly interpolated between tile
+ * centers.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class TiledInference
+{
+
+	private final BatchInference batchInference;
+
+	/**
+	 * @param correlationFitFactory
+	 *            see {@link BatchInference#BatchInference(IntFunction)}
+	 */
+	public TiledInference( final IntFunction< ? extends AbstractCorrelationFit > correlationFitFactory )
+	{
+		this.batchInference = new BatchInference( correlationFitFactory );
+	}
+
+	/**
+	 *
+	 * @param stack
+	 *            x, y, z
+	 * @param tileSize
+	 *            tile size in x and y
+	 * @param smoothingWeight
+	 *            weight of the neighbor average in each smoothing iteration,
+	 *            see {@link #smooth(double[][], int, int, double, int)}
+	 * @param smoothingIterations
+	 *            number of smoothing iterations
+	 * @param es
+	 *            shared by similarity computation and inference
+	 * @param nWorkers
+	 *            number of concurrent inference problems
+	 */
+	public < T extends RealType< T > > LUTGrid estimate(
+			final RandomAccessibleInterval< T > stack,
+			final int[] tileSize,
+			final double smoothingWeight,
+			final int smoothingIterations,
+			final Options options,
+			final ExecutorService es,
+			final int nWorkers ) throws InterruptedException, ExecutionException
+	{
+		final int width = ( int ) stack.dimension( 0 );
+		final int height = ( int ) stack.dimension( 1 );
+		final int depth = ( int ) stack.dimension( 2 );
+		final int nx = ( width + tileSize[ 0 ] - 1 ) / tileSize[ 0 ];
+		final int ny = ( height + tileSize[ 1 ] - 1 ) / tileSize[ 1 ];
+
+		final List< Callable< ArrayImg< FloatType, FloatArray > > > tasks = new ArrayList<>();
+		for ( int ty = 0; ty < ny; ++ty )
+			for ( int tx = 0; tx < nx; ++tx )
+			{
+				final long[] min = { stack.min( 0 ) + tx * tileSize[ 0 ], stack.min( 1 ) + ty * tileSize[ 1 ], stack.min( 2 ) };
+				final long[] max = { Math.min( min[ 0 ] + tileSize[ 0 ], stack.max( 0 ) + 1 ) - 1, Math.min( min[ 1 ] + tileSize[ 1 ], stack.max( 1 ) + 1 ) - 1, stack.max( 2 ) };
+				tasks.add( () -> similarityStrip( Views.interval( stack, new FinalInterval( min, max ) ), options.comparisonRange ) );
+			}
+
+		final double[] startingCoordinates = new double[ depth ];
+		for ( int z = 0; z < depth; ++z )
+			startingCoordinates[ z ] = z;
+
+		final List< BatchInference.Problem< FloatType > > problems = new ArrayList<>();
+		for ( final Future< ArrayImg< FloatType, FloatArray > > f : es.invokeAll( tasks ) )
+			problems.add( new BatchInference.Problem<>( f.get(), startingCoordinates ) );
+
+		final List< BatchInference.Solution > solutions = batchInference.solve( problems, options, es, nWorkers );
+
+		final double[][] luts = new double[ solutions.size() ][];
+		for ( int i = 0; i < luts.length; ++i )
+		{
+			final BatchInference.Solution solution = solutions.get( i );
+			luts[ i ] = solution.result == null || !isFinite( solution.result.coordinates ) ? null : solution.result.coordinates;
+		}
+		fillMissing( luts, nx, ny, depth );
+		smooth( luts, nx, ny, smoothingWeight, smoothingIterations );
+
+		final ArrayImg< DoubleType, DoubleArray > lutArray = ArrayImgs.doubles( nx, ny, depth );
+		final double[] data = lutArray.update( null ).getCurrentStorageArray();
+		for ( int i = 0; i < luts.length; ++i )
+			for ( int z = 0; z < depth; ++z )
+				data[ z * nx * ny + i ] = luts[ i ][ z ];
+
+		return new LUTGrid(
+				3,
+				3,
+				lutArray,
+				new double[] { tileSize[ 0 ], tileSize[ 1 ] },
+				new double[] { stack.min( 0 ) + 0.5 * ( tileSize[ 0 ] - 1 ), stack.min( 1 ) + 0.5 * ( tileSize[ 1 ] - 1 ) } );
+	}
+
+	/**
+	 * NCC of all pairs of sections of tile within range, see
+	 * {@link CachedStatisticsFloatNCC} and {@link NCCKernel}. Sections are
+	 * read one at a time and only the last range + 1 sections are kept in
+	 * memory.
+	 *
+	 * @return strip of width 2 * range + 1 with one row per section, 1 on the
+	 *         diagonal and NaN outside of the stack
+	 */
+	public static < T extends RealType< T > > ArrayImg< FloatType, FloatArray > similarityStrip( final RandomAccessibleInterval< T > tile, final int range )
+	{
+		final int w = ( int ) tile.dimension( 0 );
+		final int h = ( int ) tile.dimension( 1 );
+		final int depth = ( int ) tile.dimension( 2 );
+		final int stripWidth = 2 * range + 1;
+
+		final NCCKernel kernel = NCCKernel.get();
+		final int bufferSize = range + 1;
+		final float[][] sections = new float[ bufferSize ][ w * h ];
+		final CachedStatisticsFloatNCC.Statistics[] statistics = new CachedStatisticsFloatNCC.Statistics[ bufferSize ];
+
+		final ArrayImg< FloatType, FloatArray > strip = ArrayImgs.floats( stripWidth, depth );
+		final float[] data = strip.update( null ).getCurrentStorageArray();
+		Arrays.fill( data, Float.NaN );
+
+		final RandomAccess< T > access = tile.randomAccess();
+		access.setPosition( tile.min( 2 ), 2 );
+		for ( int z = 0; z < depth; ++z, access.fwd( 2 ) )
+		{
+			final int slot = z % bufferSize;
+			final float[] section = sections[ slot ];
+			access.setPosition( tile.min( 1 ), 1 );
+			for ( int y = 0, i = 0; y < h; ++y, access.fwd( 1 ) )
+			{
+				access.setPosition( tile.min( 0 ), 0 );
+				for ( int x = 0; x < w; ++x, ++i, access.fwd( 0 ) )
+					section[ i ] = access.get().getRealFloat();
+			}
+			statistics[ slot ] = kernel.statistics( section );
+
+			data[ z * stripWidth + range ] = 1.0f;
+			for ( int d = 1; d <= range && z - d >= 0; ++d )
+			{
+				final int otherSlot = ( z - d ) % bufferSize;
+				final float val = ( float ) kernel.ncc( sections[ otherSlot ], statistics[ otherSlot ], section, statistics[ slot ] );
+				data[ ( z - d ) * stripWidth + range + d ] = val;
+				data[ z * stripWidth + range - d ] = val;
+			}
+		}
+		return strip;
+	}
+
+	/**
+	 * Replace missing (null) luts of the nx x ny grid by the average of their
+	 * available 4-neighbors, repeatedly until all luts are present. If no lut
+	 * is available at all, use identity.
+	 */
+	public static void fillMissing( final double[][] luts, final int nx, final int ny, final int depth )
+	{
+		boolean anyAvailable = false;
+		for ( final double[] lut : luts )
+			anyAvailable |= lut != null;
+
+		if ( !anyAvailable )
+		{
+			for ( int i = 0; i < luts.length; ++i )
+			{
+				luts[ i ] = new double[ depth ];
+				for ( int z = 0; z < depth; ++z )
+					luts[ i ][ z ] = z;
+			}
+			return;
+		}
+
+		for ( boolean missing = true; missing; )
+		{
+			missing = false;
+			final double[][] filled = luts.clone();
+			for ( int y = 0, i = 0; y < ny; ++y )
+				for ( int x = 0; x < nx; ++x, ++i )
+				{
+					if ( luts[ i ] != null )
+						continue;
+					final double[] sum = new double[ depth ];
+					int count = 0;
+					for ( final int neighbor : neighbors( x, y, nx, ny ) )
+						if ( luts[ neighbor ] != null )
+						{
+							for ( int z = 0; z < depth; ++z )
+								sum[ z ] += luts[ neighbor ][ z ];
+							++count;
+						}
+					if ( count > 0 )
+					{
+						for ( int z = 0; z < depth; ++z )
+							sum[ z ] /= count;
+						filled[ i ] = sum;
+					}
+					else
+						missing = true;
+				}
+			System.arraycopy( filled, 0, luts, 0, luts.length );
+		}
+	}
+
+	/**
+	 * Smooth luts of the nx x ny grid in place: In each iteration, each lut
+	 * is replaced by ( 1 - weight ) * lut + weight * average of its
+	 * 4-neighbors. Convex combinations of monotonic luts stay monotonic.
+	 */
+	public static void smooth( final double[][] luts, final int nx, final int ny, final double weight, final int iterations )
+	{
+		final int depth = luts.length == 0 ? 0 : luts[ 0 ].length;
+		final double[][] smoothed = new double[ luts.length ][ depth ];
+		for ( int iteration = 0; iteration < iterations; ++iteration )
+		{
+			for ( int y = 0, i = 0; y < ny; ++y )
+				for ( int x = 0; x < nx; ++x, ++i )
+				{
+					final int[] neighbors = neighbors( x, y, nx, ny );
+					final double[] target = smoothed[ i ];
+					for ( int z = 0; z < depth; ++z )
+					{
+						double sum = 0.0;
+						for ( final int neighbor : neighbors )
+							sum += luts[ neighbor ][ z ];
+						target[ z ] = neighbors.length == 0 ? luts[ i ][ z ] : ( 1 - weight ) * luts[ i ][ z ] + weight * sum / neighbors.length;
+					}
+				}
+			for ( int i = 0; i < luts.length; ++i )
+				System.arraycopy( smoothed[ i ], 0, luts[ i ], 0, depth );
+		}
+	}
+
+	private static int[] neighbors( final int x, final int y, final int nx, final int ny )
+	{
+		final int[] candidates = new int[ 4 ];
+		int n = 0;
+		if ( x > 0 )
+			candidates[ n++ ] = y * nx + x - 1;
+		if ( x < nx - 1 )
+			candidates[ n++ ] = y * nx + x + 1;
+		if ( y > 0 )
+			candidates[ n++ ] = ( y - 1 ) * nx + x;
+		if ( y < ny - 1 )
+			candidates[ n++ ] = ( y + 1 ) * nx + x;
+		final int[] neighbors = new int[ n ];
+		System.arraycopy( candidates, 0, neighbors, 0, n );
+		return neighbors;
+	}
+
+	private static boolean isFinite( final double[] array )
+	{
+		for ( final double v : array )
+			if ( !Double.isFinite( v ) )
+				return false;
+		return true;
+	}
+
+}
@@ -1,7 +1,15 @@
 package org.janelia.thickness.inference.fits;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
 import org.janelia.thickness.inference.Options;
 import org.janelia.thickness.lut.AbstractLUTRealTransform;
+import org.janelia.utility.DoubleStrip;
 
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
@@ -21,6 +29,27 @@ import net.imglib2.view.Views;
 public abstract class AbstractCorrelationFit
 {
 
+	/**
+	 * Number of sections per partial accumulator in parallel estimation. The
+	 * partitioning does not depend on the number of threads, so neither does
+	 * the result.
+	 */
+	public static final int PARALLEL_BLOCK_SIZE = 256;
+
+	/**
+	 * Create correlation fits for problems that differ in size and
+	 * {@link Options}, e.g. the levels of
+	 * {@link org.janelia.thickness.inference.InferFromMatrix#estimateCoarseToFine(RandomAccessibleInterval, double[], Factory, Options)}.
+	 */
+	public interface Factory
+	{
+		/**
+		 * @return new fit for n sections compared within
+		 *         {@link Options#comparisonRange} of options
+		 */
+		AbstractCorrelationFit create( int n, Options options );
+	}
+
 	public < T extends RealType< T >, W extends RealType< W > > RandomAccessibleInterval< double[] > estimateFromMatrix(
 			final RandomAccessibleInterval< T > correlations,
 			final double[] coordinates,
@@ -32,56 +61,276 @@ public abstract class AbstractCorrelationFit
 		final int range = options.comparisonRange;
 		final boolean forceMonotonicity = options.forceMonotonicity;
 
+		final RealRandomAccessible< T > transformedCorrelations = transformedCorrelations( correlations, transform, interpolatorFactory );
+		final RealRandomAccessible< W > transformedWeights = transformedWeights( estimateWeightMatrix, transform );
+
+		final RealRandomAccess< T > access1 = transformedCorrelations.realRandomAccess();
+		final RealRandomAccess< T > access2 = transformedCorrelations.realRandomAccess();
+
+		final RealRandomAccess< W > wAccess1 = transformedWeights.realRandomAccess();
+		final RealRandomAccess< W > wAccess2 = transformedWeights.realRandomAccess();
+
+		init( range );
+
+		for ( int z = 0; z < coordinates.length; ++z )
+			accumulateSection( z, access1, access2, wAccess1, wAccess2, transform, range, forceMonotonicity, this );
+
+		return estimate( coordinates.length );
+	}
+
+	/**
+	 * Parallel variant of
+	 * {@link #estimateFromMatrix(RandomAccessibleInterval, double[], AbstractLUTRealTransform, RandomAccessibleInterval, Options, InterpolatorFactory)}.
+	 * Sections are split into blocks of {@link #PARALLEL_BLOCK_SIZE} that
+	 * are accumulated into separate partial accumulators (see
+	 * {@link #createPartial(int)}) and merged in order. Falls back to
+	 * sequential estimation unless {@link #supportsPartials()}.
+	 */
+	public < T extends RealType< T >, W extends RealType< W > > RandomAccessibleInterval< double[] > estimateFromMatrixParallel(
+			final RandomAccessibleInterval< T > correlations,
+			final double[] coordinates,
+			final AbstractLUTRealTransform transform,
+			final RandomAccessibleInterval< W > estimateWeightMatrix,
+			final Options options,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory,
+			final ExecutorService es ) throws InterruptedException, ExecutionException
+	{
+		final int range = options.comparisonRange;
+		final boolean forceMonotonicity = options.forceMonotonicity;
+
+		if ( !supportsPartials() )
+			return estimateFromMatrix( correlations, coordinates, transform, estimateWeightMatrix, options, interpolatorFactory );
+
+		final RealRandomAccessible< T > transformedCorrelations = transformedCorrelations( correlations, transform, interpolatorFactory );
+		final RealRandomAccessible< W > transformedWeights = transformedWeights( estimateWeightMatrix, transform );
+
+		final List< Callable< AbstractCorrelationFit > > tasks = new ArrayList<>();
+		for ( int start = 0; start < coordinates.length; start += PARALLEL_BLOCK_SIZE )
+		{
+			final int min = start;
+			final int max = Math.min( start + PARALLEL_BLOCK_SIZE, coordinates.length );
+			tasks.add( () -> {
+				final AbstractCorrelationFit partial = createPartial( range );
+				final RealRandomAccess< T > access1 = transformedCorrelations.realRandomAccess();
+				final RealRandomAccess< T > access2 = transformedCorrelations.realRandomAccess();
+				final RealRandomAccess< W > wAccess1 = transformedWeights.realRandomAccess();
+				final RealRandomAccess< W > wAccess2 = transformedWeights.realRandomAccess();
+				for ( int z = min; z < max; ++z )
+					accumulateSection( z, access1, access2, wAccess1, wAccess2, transform, range, forceMonotonicity, partial );
+				return partial;
+			} );
+		}
+
+		return mergeAndEstimate( es.invokeAll( tasks ), range, coordinates.length );
+	}
+
+	/**
+	 * Primitive equivalent of
+	 * {@link #estimateFromMatrix(RandomAccessibleInterval, double[], AbstractLUTRealTransform, RandomAccessibleInterval, Options, InterpolatorFactory)}
+	 * that samples the correlations from a {@link DoubleStrip} in permuted
+	 * order instead of going through transformed and interpolated views.
+	 *
+	 * @param correlations
+	 *            (scaled) correlations in original order
+	 * @param permutation
+	 *            maps permuted (sorted) indices to original indices
+	 * @param coordinates
+	 *            coordinates in permuted order
+	 * @param transform
+	 *            one-dimensional transform over coordinates
+	 * @param estimateWeights
+	 *            pairwise weights in original order, sampled with border
+	 *            extension and permuted coordinates like in
+	 *            {@link #estimateFromMatrix(RandomAccessibleInterval, double[], AbstractLUTRealTransform, RandomAccessibleInterval, Options, InterpolatorFactory)}
+	 * @param nearestNeighbor
+	 *            use nearest neighbor instead of linear interpolation for
+	 *            correlations
+	 */
+	public RandomAccessibleInterval< double[] > estimateFromStrip(
+			final DoubleStrip correlations,
+			final int[] permutation,
+			final double[] coordinates,
+			final AbstractLUTRealTransform transform,
+			final DoubleStrip estimateWeights,
+			final Options options,
+			final boolean nearestNeighbor )
+	{
+		final int range = options.comparisonRange;
+		final boolean forceMonotonicity = options.forceMonotonicity;
+
+		final double[] position = new double[ 1 ];
+
+		init( range );
+
+		for ( int z = 0; z < coordinates.length; ++z )
+			accumulateSection( z, correlations, permutation, transform, estimateWeights, range, forceMonotonicity, nearestNeighbor, position, this );
+
+		return estimate( coordinates.length );
+	}
+
+	/**
+	 * Parallel variant of
+	 * {@link #estimateFromStrip(DoubleStrip, int[], double[], AbstractLUTRealTransform, DoubleStrip, Options, boolean)},
+	 * see
+	 * {@link #estimateFromMatrixParallel(RandomAccessibleInterval, double[], AbstractLUTRealTransform, RandomAccessibleInterval, Options, InterpolatorFactory, ExecutorService)}.
+	 */
+	public RandomAccessibleInterval< double[] > estimateFromStripParallel(
+			final DoubleStrip correlations,
+			final int[] permutation,
+			final double[] coordinates,
+			final AbstractLUTRealTransform transform,
+			final DoubleStrip estimateWeights,
+			final Options options,
+			final boolean nearestNeighbor,
+			final ExecutorService es ) throws InterruptedException, ExecutionException
+	{
+		final int range = options.comparisonRange;
+		final boolean forceMonotonicity = options.forceMonotonicity;
+
+		if ( !supportsPartials() )
+			return estimateFromStrip( correlations, permutation, coordinates, transform, estimateWeights, options, nearestNeighbor );
+
+		final List< Callable< AbstractCorrelationFit > > tasks = new ArrayList<>();
+		for ( int start = 0; start < coordinates.length; start += PARALLEL_BLOCK_SIZE )
+		{
+			final int min = start;
+			final int max = Math.min( start + PARALLEL_BLOCK_SIZE, coordinates.length );
+			tasks.add( () -> {
+				final AbstractCorrelationFit partial = createPartial( range );
+				final double[] position = new double[ 1 ];
+				for ( int z = min; z < max; ++z )
+					accumulateSection( z, correlations, permutation, transform, estimateWeights, range, forceMonotonicity, nearestNeighbor, position, partial );
+				return partial;
+			} );
+		}
+
+		return mergeAndEstimate( es.invokeAll( tasks ), range, coordinates.length );
+	}
+
+	private RandomAccessibleInterval< double[] > mergeAndEstimate(
+			final List< Future< AbstractCorrelationFit > > partials,
+			final int range,
+			final int size ) throws InterruptedException, ExecutionException
+	{
+		init( range );
+		for ( final Future< AbstractCorrelationFit > partial : partials )
+			merge( partial.get() );
+		return estimate( size );
+	}
+
+	private static < T extends RealType< T > > RealRandomAccessible< T > transformedCorrelations(
+			final RandomAccessibleInterval< T > correlations,
+			final AbstractLUTRealTransform transform,
+			final InterpolatorFactory< T, RandomAccessible< T > > interpolatorFactory )
+	{
 		final T correlationsNaNExtension = correlations.randomAccess().get().copy();
 		correlationsNaNExtension.setReal( Double.NaN );
 		final RealRandomAccessible< T > extendedInterpolatedCorrelations = Views.interpolate( Views.extendValue( correlations, correlationsNaNExtension ), interpolatorFactory );
 
 		final RealTransformRealRandomAccessible< T, InverseRealTransform > transformedCorrelations = RealViews.transformReal( extendedInterpolatedCorrelations, transform );
+		return transformedCorrelations;
+	}
 
+	private static < W extends RealType< W > > RealRandomAccessible< W > transformedWeights(
+			final RandomAccessibleInterval< W > estimateWeightMatrix,
+			final AbstractLUTRealTransform transform )
+	{
 		// TODO extend border or value (nan)?
 		final RealRandomAccessible< W > extendedInterpolatedWeights = Views.interpolate( Views.extendBorder( estimateWeightMatrix ), new NLinearInterpolatorFactory<>() );
 
 		final RealTransformRealRandomAccessible< W, InverseRealTransform > transformedWeights = RealViews.transformReal( extendedInterpolatedWeights, transform );
+		return transformedWeights;
+	}
 
-		final RealRandomAccess< T > access1 = transformedCorrelations.realRandomAccess();
-		final RealRandomAccess< T > access2 = transformedCorrelations.realRandomAccess();
-
-		final RealRandomAccess< W > wAccess1 = transformedWeights.realRandomAccess();
-		final RealRandomAccess< W > wAccess2 = transformedWeights.realRandomAccess();
+	private static < T extends RealType< T >, W extends RealType< W > > void accumulateSection(
+			final int z,
+			final RealRandomAccess< T > access1,
+			final RealRandomAccess< T > access2,
+			final RealRandomAccess< W > wAccess1,
+			final RealRandomAccess< W > wAccess2,
+			final AbstractLUTRealTransform transform,
+			final int range,
+			final boolean forceMonotonicity,
+			final AbstractCorrelationFit target )
+	{
+		access1.setPosition( z, 1 );
+		access1.setPosition( z, 0 );
+		transform.apply( access1, access1 );
+		access2.setPosition( access1 );
 
-		init( range );
+		wAccess1.setPosition( access1 );
+		wAccess2.setPosition( access1 );
 
-		for ( int z = 0; z < coordinates.length; ++z )
+		double currentMin1 = Double.MAX_VALUE;
+		double currentMin2 = Double.MAX_VALUE;
+		// should w go in pairwise?
+		for ( int k = 0; k <= range; ++k, access1.fwd( 0 ), access2.bck( 0 ), wAccess1.fwd( 0 ), wAccess2.bck( 0 ) )
 		{
-			access1.setPosition( z, 1 );
-			access1.setPosition( z, 0 );
-			transform.apply( access1, access1 );
-			access2.setPosition( access1 );
-
-			wAccess1.setPosition( access1 );
-			wAccess2.setPosition( access1 );
-
-			double currentMin1 = Double.MAX_VALUE;
-			double currentMin2 = Double.MAX_VALUE;
-			// should w go in pairwise?
-			for ( int k = 0; k <= range; ++k, access1.fwd( 0 ), access2.bck( 0 ), wAccess1.fwd( 0 ), wAccess2.bck( 0 ) )
+			final double a1 = access1.get().getRealDouble();
+			final double a2 = access2.get().getRealDouble();
+			if ( !Double.isNaN( a1 ) && a1 > 0.0 && ( !forceMonotonicity || a1 < currentMin1 ) )
 			{
-				final double a1 = access1.get().getRealDouble();
-				final double a2 = access2.get().getRealDouble();
-				if ( !Double.isNaN( a1 ) && a1 > 0.0 && ( !forceMonotonicity || a1 < currentMin1 ) )
-				{
-					currentMin1 = a1;
-					add( z, k, a1, wAccess1.get().getRealDouble() );
-				}
-				if ( !Double.isNaN( a2 ) && a2 > 0.0 && ( !forceMonotonicity || a2 < currentMin2 ) )
-				{
-					currentMin2 = a2;
-					add( z, k, a2, wAccess2.get().getRealDouble() );
-				}
+				currentMin1 = a1;
+				target.add( z, k, a1, wAccess1.get().getRealDouble() );
+			}
+			if ( !Double.isNaN( a2 ) && a2 > 0.0 && ( !forceMonotonicity || a2 < currentMin2 ) )
+			{
+				currentMin2 = a2;
+				target.add( z, k, a2, wAccess2.get().getRealDouble() );
 			}
 		}
+	}
 
-		return estimate( coordinates.length );
+	private static void accumulateSection(
+			final int z,
+			final DoubleStrip correlations,
+			final int[] permutation,
+			final AbstractLUTRealTransform transform,
+			final DoubleStrip estimateWeights,
+			final int range,
+			final boolean forceMonotonicity,
+			final boolean nearestNeighbor,
+			final double[] position,
+			final AbstractCorrelationFit target )
+	{
+		position[ 0 ] = z;
+		transform.apply( position, position );
+		final double start = position[ 0 ];
+		transform.applyInverse( position, position );
+		final double y = position[ 0 ];
+
+		double x1 = start;
+		double x2 = start;
+
+		double currentMin1 = Double.MAX_VALUE;
+		double currentMin2 = Double.MAX_VALUE;
+		for ( int k = 0; k <= range; ++k, x1 += 1, x2 -= 1 )
+		{
+			position[ 0 ] = x1;
+			transform.applyInverse( position, position );
+			final double source1 = position[ 0 ];
+
+			position[ 0 ] = x2;
+			transform.applyInverse( position, position );
+			final double source2 = position[ 0 ];
+
+			final double a1 = nearestNeighbor ?
+					correlations.interpolateNearestNeighborPermuted( source1, y, permutation ) :
+					correlations.interpolateLinearPermuted( source1, y, permutation );
+			final double a2 = nearestNeighbor ?
+					correlations.interpolateNearestNeighborPermuted( source2, y, permutation ) :
+					correlations.interpolateLinearPermuted( source2, y, permutation );
+			if ( !Double.isNaN( a1 ) && a1 > 0.0 && ( !forceMonotonicity || a1 < currentMin1 ) )
+			{
+				currentMin1 = a1;
+				target.add( z, k, a1, estimateWeights.interpolateLinearBorder( source1, y ) );
+			}
+			if ( !Double.isNaN( a2 ) && a2 > 0.0 && ( !forceMonotonicity || a2 < currentMin2 ) )
+			{
+				currentMin2 = a2;
+				target.add( z, k, a2, estimateWeights.interpolateLinearBorder( source2, y ) );
+			}
+		}
 	}
 
 
@@ -92,4 +341,62 @@ public abstract class AbstractCorrelationFit
 	// TODO change return type to RandomAccessibleInterval< RealComposite< DoubleType > >
 	protected abstract RandomAccessibleInterval< double[] > estimate( int size );
 
+	/**
+	 * @return copy of the state that this fit carries over from one
+	 *         {@link #estimate(int)} to the next or null if the fit is
+	 *         stateless (default). Stored in checkpoints.
+	 */
+	public double[] getState()
+	{
+		return null;
+	}
+
+	/**
+	 * Restore state returned by {@link #getState()}, e.g. when resuming from
+	 * a checkpoint. Null is ignored.
+	 *
+	 * @throws IllegalArgumentException
+	 *             if this fit is stateless and state is not null
+	 */
+	public void setState( final double[] state )
+	{
+		if ( state != null )
+			throw new IllegalArgumentException( getClass().getName() + " is stateless." );
+	}
+
+	/**
+	 * @return true if this fit implements {@link #createPartial(int)} and
+	 *         {@link #merge(AbstractCorrelationFit)} for parallel
+	 *         accumulation, false otherwise (default)
+	 */
+	public boolean supportsPartials()
+	{
+		return false;
+	}
+
+	/**
+	 * Create an empty partial accumulator that collects
+	 * {@link #add(int, int, double, double)} calls for a subset of sections
+	 * and can be combined with this fit through
+	 * {@link #merge(AbstractCorrelationFit)}. Each partial accumulator is
+	 * used from a single thread only. Only called if
+	 * {@link #supportsPartials()}.
+	 *
+	 * @return initialized partial accumulator
+	 */
+	protected AbstractCorrelationFit createPartial( final int size )
+	{
+		throw new UnsupportedOperationException( getClass().getName() + " does not support partial accumulators." );
+	}
+
+	/**
+	 * Add the state of a partial accumulator created by
+	 * {@link #createPartial(int)} to this fit. Only called if
+	 * {@link #supportsPartials()}.
+	 */
+	protected void merge( final AbstractCorrelationFit partial )
+	{
+		throw new UnsupportedOperationException( getClass().getName() + " does not support partial accumulators." );
+	}
+
 }
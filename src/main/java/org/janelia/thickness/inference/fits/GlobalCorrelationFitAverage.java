@@ -62,4 +62,29 @@ public class GlobalCorrelationFitAverage extends AbstractCorrelationFit
 		return Views.interval( Views.raster( ConstantUtils.constantRealRandomAccessible( estimate, 1 ) ), fi );
 	}
 
+	@Override
+	public boolean supportsPartials()
+	{
+		return true;
+	}
+
+	@Override
+	protected AbstractCorrelationFit createPartial( final int size )
+	{
+		final GlobalCorrelationFitAverage partial = new GlobalCorrelationFitAverage();
+		partial.init( size );
+		return partial;
+	}
+
+	@Override
+	protected void merge( final AbstractCorrelationFit partial )
+	{
+		final GlobalCorrelationFitAverage other = ( GlobalCorrelationFitAverage ) partial;
+		for ( int dz = 0; dz < summedMeasurements.length; ++dz )
+		{
+			summedMeasurements[ dz ] += other.summedMeasurements[ dz ];
+			weightSum[ dz ] += other.weightSum[ dz ];
+		}
+	}
+
 }
@@ -53,4 +53,39 @@ public class GlobalCorrelationFitAverageRegularized extends AbstractCorrelationF
 		return rai;
 	}
 
+	/**
+	 * @return fit of the previous {@link #estimate(int)} that the next
+	 *         estimate is regularized towards
+	 */
+	@Override
+	public double[] getState()
+	{
+		return reg.clone();
+	}
+
+	@Override
+	public void setState( final double[] state )
+	{
+		if ( state != null )
+			this.reg = state.clone();
+	}
+
+	@Override
+	public boolean supportsPartials()
+	{
+		return fit.supportsPartials();
+	}
+
+	@Override
+	protected AbstractCorrelationFit createPartial( final int size )
+	{
+		return fit.createPartial( size );
+	}
+
+	@Override
+	protected void merge( final AbstractCorrelationFit partial )
+	{
+		fit.merge( partial );
+	}
+
 }
@@ -51,6 +51,19 @@ public class LocalCorrelationFitAverage extends AbstractCorrelationFit
 		transformCoordinate = new double[ 1 ];
 	}
 
+	/**
+	 * Empty accumulator with the same window layout as other.
+	 */
+	private LocalCorrelationFitAverage( final LocalCorrelationFitAverage other )
+	{
+		estimateWindowRadius = other.estimateWindowRadius;
+		scaleAndTranslation = other.scaleAndTranslation.copy();
+		summedMeasurements = ArrayImgs.doubles( other.summedMeasurements.dimension( 0 ), other.summedMeasurements.dimension( 1 ) );
+		measurementsAccess = summedMeasurements.randomAccess();
+		nSamples = new double[ other.nSamples.length ][ other.nSamples[ 0 ].length ];
+		transformCoordinate = new double[ 1 ];
+	}
+
 	@Override
 	protected void add( final int z, final int dz, final double value, final double weight )
 	{
@@ -137,4 +150,29 @@ public class LocalCorrelationFitAverage extends AbstractCorrelationFit
 		return new ListImg<>( list, list.size() );
 	}
 
+	@Override
+	public boolean supportsPartials()
+	{
+		return true;
+	}
+
+	@Override
+	protected AbstractCorrelationFit createPartial( final int size )
+	{
+		final LocalCorrelationFitAverage partial = new LocalCorrelationFitAverage( this );
+		partial.init( size );
+		return partial;
+	}
+
+	@Override
+	protected void merge( final AbstractCorrelationFit partial )
+	{
+		final LocalCorrelationFitAverage other = ( LocalCorrelationFitAverage ) partial;
+		for ( ArrayCursor< DoubleType > c = summedMeasurements.cursor(), o = other.summedMeasurements.cursor(); c.hasNext(); )
+			c.next().add( o.next() );
+		for ( int n = 0; n < nSamples.length; ++n )
+			for ( int r = 0; r < nSamples[ n ].length; ++r )
+				nSamples[ n ][ r ] += other.nSamples[ n ][ r ];
+	}
+
 }
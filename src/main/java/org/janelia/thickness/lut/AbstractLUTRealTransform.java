@@ -97,6 +97,32 @@ abstract public class AbstractLUTRealTransform implements InvertibleRealTransfor
 			return applyInverse( y );
 	}
 
+	/**
+	 * Apply the LUT to each entry of source independently of
+	 * {@link #numSourceDimensions()}, i.e. target[ i ] = lut( source[ i ] ).
+	 * Out of range values are mapped to +/- {@link Double#MAX_VALUE}.
+	 */
+	public void applyBatch( final double[] source, final double[] target )
+	{
+		assert source.length == target.length: "Dimensions do not match.";
+
+		for ( int i = 0; i < source.length; ++i )
+			target[ i ] = applyChecked( source[ i ] );
+	}
+
+	/**
+	 * Apply the inverse LUT to each entry of target independently of
+	 * {@link #numTargetDimensions()}, i.e. source[ i ] = lut^-1( target[ i ]
+	 * ). Out of range values are mapped to +/- {@link Double#MAX_VALUE}.
+	 */
+	public void applyInverseBatch( final double[] source, final double[] target )
+	{
+		assert source.length == target.length: "Dimensions do not match.";
+
+		for ( int i = 0; i < target.length; ++i )
+			source[ i ] = applyInverseChecked( target[ i ] );
+	}
+
 	public double minTransformedCoordinate()
 	{
 		return lut[ 0 ];
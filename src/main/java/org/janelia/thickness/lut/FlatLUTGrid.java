@@ -0,0 +1,465 @@
+package org.janelia.thickness.lut;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealLocalizable;
+import net.imglib2.RealPositionable;
+import net.imglib2.realtransform.InverseRealTransform;
+import net.imglib2.realtransform.InvertibleRealTransform;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Same transform as {@link LUTGrid} but backed by a flat double[] that holds
+ * the lut of each grid node contiguously. Instead of interpolating a
+ * collapsed view for every lut entry, the grid position is converted into
+ * the offsets and n-linear weights of the surrounding grid nodes once per
+ * point and lut entries are blended from those directly. Grid positions
+ * outside of the grid are clamped to the border as with
+ * {@link Views#extendBorder(RandomAccessibleInterval)} in {@link LUTGrid}.
+ * Corners with zero weight are dropped, such that lookups on grid nodes read
+ * a single lut.
+ *
+ * NOT THREADSAFE: corner offsets and weights are temporary variables. Use
+ * {@link #copy()} for each thread, copies share the lut data.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class FlatLUTGrid implements InvertibleRealTransform
+{
+
+	protected final int numSourceDimensions;
+
+	protected final int numTargetDimensions;
+
+	protected final int nNonTransformedCoordinates;
+
+	protected final int[] gridDimensions;
+
+	protected final double[] gridMin;
+
+	protected final int lutMaxIndex;
+
+	// lut of node ( x_0, ..., x_n-1 ) at ( x_0 + dim_0 * ( x_1 + ... ) ) *
+	// lutLength
+	protected final double[] data;
+
+	// stride of each grid dimension in data
+	protected final int[] strides;
+
+	protected final double[] scale;
+
+	protected final double[] shift;
+
+	// temporary variables
+	protected final int[] cornerOffsets;
+
+	protected final double[] cornerWeights;
+
+	protected int nCorners;
+
+	public FlatLUTGrid(
+			final int numSourceDimensions,
+			final int numTargetDimensions,
+			final RandomAccessibleInterval< DoubleType > lutArray )
+	{
+		this( numSourceDimensions, numTargetDimensions, lutArray, new double[] { 1.0 }, new double[] { 0.0 } );
+	}
+
+	/**
+	 * Copy lutArray into flat storage. Same parameters as
+	 * {@link LUTGrid#LUTGrid(int, int, RandomAccessibleInterval, double[], double[])}.
+	 */
+	public FlatLUTGrid(
+			final int numSourceDimensions,
+			final int numTargetDimensions,
+			final RandomAccessibleInterval< DoubleType > lutArray,
+			final double[] scale,
+			final double[] shift )
+	{
+		this( numSourceDimensions, numTargetDimensions, flatten( lutArray ), gridDimensions( lutArray ), gridMin( lutArray ), scale, shift );
+	}
+
+	/**
+	 *
+	 * @param data
+	 *            luts of all grid nodes, lut of node ( x_0, ..., x_n-1 )
+	 *            starts at ( x_0 + dim_0 * ( x_1 + dim_1 * ( ... ) ) ) *
+	 *            lutLength, where lutLength = data.length / prod( dim_i ).
+	 *            Not copied.
+	 * @param gridDimensions
+	 *            dimensions of the grid of luts
+	 */
+	public FlatLUTGrid(
+			final int numSourceDimensions,
+			final int numTargetDimensions,
+			final double[] data,
+			final int[] gridDimensions,
+			final double[] scale,
+			final double[] shift )
+	{
+		this( numSourceDimensions, numTargetDimensions, data, gridDimensions, new double[ gridDimensions.length ], scale, shift );
+	}
+
+	protected FlatLUTGrid(
+			final int numSourceDimensions,
+			final int numTargetDimensions,
+			final double[] data,
+			final int[] gridDimensions,
+			final double[] gridMin,
+			final double[] scale,
+			final double[] shift )
+	{
+		super();
+		this.numSourceDimensions = numSourceDimensions;
+		this.numTargetDimensions = numTargetDimensions;
+		this.nNonTransformedCoordinates = gridDimensions.length;
+		this.gridDimensions = gridDimensions;
+		this.gridMin = gridMin;
+		this.data = data;
+
+		this.strides = new int[ nNonTransformedCoordinates ];
+		int nNodes = 1;
+		for ( int d = 0; d < nNonTransformedCoordinates; ++d )
+			nNodes *= gridDimensions[ d ];
+		final int lutLength = data.length / nNodes;
+		if ( lutLength * nNodes != data.length )
+			throw new IllegalArgumentException( "Data length " + data.length + " is not a multiple of the number of grid nodes " + nNodes );
+		this.lutMaxIndex = lutLength - 1;
+		for ( int d = 0, stride = lutLength; d < nNonTransformedCoordinates; ++d )
+		{
+			this.strides[ d ] = stride;
+			stride *= gridDimensions[ d ];
+		}
+
+		this.scale = new double[ nNonTransformedCoordinates ];
+		this.shift = new double[ nNonTransformedCoordinates ];
+		copyAndFillIfNecessary( scale, this.scale );
+		copyAndFillIfNecessary( shift, this.shift );
+
+		this.cornerOffsets = new int[ 1 << nNonTransformedCoordinates ];
+		this.cornerWeights = new double[ 1 << nNonTransformedCoordinates ];
+		this.nCorners = 1;
+	}
+
+	@Override
+	public int numSourceDimensions()
+	{
+		return this.numSourceDimensions;
+	}
+
+	@Override
+	public int numTargetDimensions()
+	{
+		return this.numTargetDimensions;
+	}
+
+	/**
+	 * @return entry i of the lut at the current grid position
+	 */
+	protected double lut( final int i )
+	{
+		double value = 0.0;
+		for ( int k = 0; k < nCorners; ++k )
+			value += cornerWeights[ k ] * data[ cornerOffsets[ k ] + i ];
+		return value;
+	}
+
+	protected double apply( final double lutCoordinate )
+	{
+		final int zFloor = ( int ) lutCoordinate;
+
+		final double floorVal = lut( zFloor );
+		final double nextVal = lut( zFloor + 1 );
+		final double dz = lutCoordinate - zFloor;
+
+		return ( nextVal - floorVal ) * dz + floorVal;
+	}
+
+	protected double applyChecked( final double lutCoordinate )
+	{
+		if ( lutCoordinate < 0 )
+			return -Double.MAX_VALUE;
+		else if ( lutCoordinate > this.lutMaxIndex )
+			return Double.MAX_VALUE;
+		else if ( lutCoordinate == this.lutMaxIndex )
+			return lut( this.lutMaxIndex );
+		else
+			return apply( lutCoordinate );
+	}
+
+	/**
+	 *
+	 * Implemented as bin-search.
+	 */
+	protected int findFloorIndex( final double realLutCoordinate )
+	{
+		int min = 0;
+		int max = this.lutMaxIndex;
+		int i = max >> 1;
+		do
+		{
+			if ( lut( i ) > realLutCoordinate )
+				max = i;
+			else
+				min = i;
+			i = ( ( max + min ) >> 1 );
+		}
+		while ( i != min );
+		return i;
+	}
+
+	public double applyInverse( final double realLutCoordinate )
+	{
+		final int i = this.findFloorIndex( realLutCoordinate );
+
+		final double realZ1 = lut( i );
+		final double realZ2 = lut( i + 1 );
+
+		return ( realLutCoordinate - realZ1 ) / ( realZ2 - realZ1 ) + i;
+	}
+
+	public double applyInverseChecked( final double realLutCoordinate )
+	{
+		if ( realLutCoordinate < lut( 0 ) )
+			return -Double.MAX_VALUE;
+		if ( realLutCoordinate > lut( this.lutMaxIndex ) )
+			return Double.MAX_VALUE;
+		else
+			return this.applyInverse( realLutCoordinate );
+	}
+
+	public double minTransformedCoordinate( final double[] gridCoordinates )
+	{
+		this.updateCoordinates( gridCoordinates );
+		return lut( 0 );
+	}
+
+	public double maxTransformedCoordinate( final double[] gridCoordinates )
+	{
+		this.updateCoordinates( gridCoordinates );
+		return lut( this.lutMaxIndex );
+	}
+
+	@Override
+	public void apply( final double[] source, final double[] target )
+	{
+		this.updateCoordinates( source );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+		{
+			target[ d ] = source[ d ];
+		}
+		for ( int d = this.nNonTransformedCoordinates; d < target.length; ++d )
+		{
+			target[ d ] = this.applyChecked( source[ d ] );
+		}
+	}
+
+	@Override
+	public void apply( final float[] source, final float[] target )
+	{
+		this.updateCoordinates( source );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+		{
+			target[ d ] = source[ d ];
+		}
+		for ( int d = this.nNonTransformedCoordinates; d < target.length; ++d )
+		{
+			target[ d ] = ( float ) this.applyChecked( source[ d ] );
+		}
+	}
+
+	@Override
+	public void apply( final RealLocalizable source, final RealPositionable target )
+	{
+		this.updateCoordinates( source );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+		{
+			target.setPosition( source.getDoublePosition( d ), d );
+		}
+		for ( int d = this.nNonTransformedCoordinates; d < target.numDimensions(); ++d )
+		{
+			target.setPosition( this.applyChecked( source.getDoublePosition( d ) ), d );
+		}
+	}
+
+	@Override
+	public void applyInverse( final double[] source, final double[] target )
+	{
+		this.updateCoordinates( target );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+		{
+			source[ d ] = target[ d ];
+		}
+		for ( int d = this.nNonTransformedCoordinates; d < target.length; ++d )
+		{
+			source[ d ] = this.applyInverseChecked( target[ d ] );
+		}
+	}
+
+	@Override
+	public void applyInverse( final float[] source, final float[] target )
+	{
+		this.updateCoordinates( target );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+		{
+			source[ d ] = target[ d ];
+		}
+		for ( int d = this.nNonTransformedCoordinates; d < target.length; ++d )
+		{
+			source[ d ] = ( float ) this.applyInverseChecked( target[ d ] );
+		}
+	}
+
+	/**
+	 * Same as {@link LUTGrid#applyInverse(RealPositionable, RealLocalizable)}
+	 * including the epsilon offset.
+	 */
+	@Override
+	public void applyInverse( final RealPositionable source, final RealLocalizable target )
+	{
+		final double epsilon = 1e-10;
+		this.updateCoordinates( target );
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+		{
+			final double pos = target.getDoublePosition( d );
+			final double dPos = pos - epsilon;
+			source.setPosition( dPos > 0 ? dPos : pos, d );
+		}
+		for ( int d = this.nNonTransformedCoordinates; d < target.numDimensions(); ++d )
+		{
+			final double pos = this.applyInverseChecked( target.getDoublePosition( d ) );
+			final double dPos = pos - epsilon;
+			source.setPosition( dPos > 0 ? dPos : pos, d );
+		}
+	}
+
+	@Override
+	public InvertibleRealTransform inverse()
+	{
+		return new InverseRealTransform( this );
+	}
+
+	@Override
+	public FlatLUTGrid copy()
+	{
+		return new FlatLUTGrid( numSourceDimensions, numTargetDimensions, data, gridDimensions, gridMin, scale, shift );
+	}
+
+	public FlatLUTGrid reScale( final double... scale )
+	{
+		final double[] sc = new double[ this.scale.length ];
+		copyAndFillIfNecessary( scale, sc );
+		return new FlatLUTGrid( numSourceDimensions, numTargetDimensions, data, gridDimensions, gridMin, sc, shift );
+	}
+
+	public FlatLUTGrid reShift( final double... shift )
+	{
+		final double[] sh = new double[ this.shift.length ];
+		copyAndFillIfNecessary( shift, sh );
+		return new FlatLUTGrid( numSourceDimensions, numTargetDimensions, data, gridDimensions, gridMin, scale, sh );
+	}
+
+	protected void updateCoordinates( final double[] gridCoordinates )
+	{
+		nCorners = 1;
+		cornerOffsets[ 0 ] = 0;
+		cornerWeights[ 0 ] = 1.0;
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			addGridCoordinate( gridCoordinates[ d ], d );
+	}
+
+	protected void updateCoordinates( final float[] gridCoordinates )
+	{
+		nCorners = 1;
+		cornerOffsets[ 0 ] = 0;
+		cornerWeights[ 0 ] = 1.0;
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			addGridCoordinate( gridCoordinates[ d ], d );
+	}
+
+	protected void updateCoordinates( final RealLocalizable gridCoordinates )
+	{
+		nCorners = 1;
+		cornerOffsets[ 0 ] = 0;
+		cornerWeights[ 0 ] = 1.0;
+		for ( int d = 0; d < this.nNonTransformedCoordinates; ++d )
+			addGridCoordinate( gridCoordinates.getDoublePosition( d ), d );
+	}
+
+	/**
+	 * Split each current corner into floor and ceil node along dimension d,
+	 * or move it to the floor node if the grid coordinate is on a node or
+	 * outside of the grid.
+	 */
+	private void addGridCoordinate( final double position, final int d )
+	{
+		final double gridCoordinate = ( position - shift[ d ] ) / scale[ d ] - gridMin[ d ];
+		final double floor = Math.floor( gridCoordinate );
+		final double w = gridCoordinate - floor;
+		final int max = gridDimensions[ d ] - 1;
+		final int floorIndex = ( int ) Math.max( Math.min( floor, max ), 0 );
+		final int ceilIndex = ( int ) Math.max( Math.min( floor + 1, max ), 0 );
+		final int floorOffset = floorIndex * strides[ d ];
+		if ( w == 0.0 || floorIndex == ceilIndex )
+		{
+			for ( int k = 0; k < nCorners; ++k )
+				cornerOffsets[ k ] += floorOffset;
+		}
+		else
+		{
+			final int ceilOffset = ceilIndex * strides[ d ];
+			for ( int k = 0, n = nCorners; k < n; ++k, ++nCorners )
+			{
+				cornerOffsets[ nCorners ] = cornerOffsets[ k ] + ceilOffset;
+				cornerWeights[ nCorners ] = cornerWeights[ k ] * w;
+				cornerOffsets[ k ] += floorOffset;
+				cornerWeights[ k ] *= 1 - w;
+			}
+		}
+	}
+
+	protected static void copyAndFillIfNecessary( final double[] source, final double[] target )
+	{
+		final int range = Math.min( source.length, target.length );
+		for ( int i = 0; i < range; ++i )
+		{
+			target[ i ] = source[ i ];
+		}
+		for ( int i = range; i < target.length; ++i )
+		{
+			target[ i ] = source[ source.length - 1 ];
+		}
+	}
+
+	private static double[] flatten( final RandomAccessibleInterval< DoubleType > lutArray )
+	{
+		final int nNodes = ( int ) ( Views.flatIterable( lutArray ).size() / lutArray.dimension( lutArray.numDimensions() - 1 ) );
+		final int lutLength = ( int ) lutArray.dimension( lutArray.numDimensions() - 1 );
+		final double[] data = new double[ nNodes * lutLength ];
+		// flat iteration order: grid node fastest, lut index slowest
+		final Cursor< DoubleType > c = Views.flatIterable( lutArray ).cursor();
+		for ( int z = 0; z < lutLength; ++z )
+			for ( int node = 0; node < nNodes; ++node )
+				data[ node * lutLength + z ] = c.next().get();
+		return data;
+	}
+
+	private static int[] gridDimensions( final RandomAccessibleInterval< DoubleType > lutArray )
+	{
+		final int[] dimensions = new int[ lutArray.numDimensions() - 1 ];
+		for ( int d = 0; d < dimensions.length; ++d )
+			dimensions[ d ] = ( int ) lutArray.dimension( d );
+		return dimensions;
+	}
+
+	private static double[] gridMin( final RandomAccessibleInterval< DoubleType > lutArray )
+	{
+		final double[] min = new double[ lutArray.numDimensions() - 1 ];
+		for ( int d = 0; d < min.length; ++d )
+			min[ d ] = lutArray.min( d );
+		return min;
+	}
+
+}
@@ -0,0 +1,117 @@
+/**
+ * 
+ */
+package org.janelia.thickness.lut;
+
+/**
+ * {@link LUTRealTransform} with a precomputed bucket index for inverse
+ * lookups. The range [lut[0], lut[max]] is divided into equally sized
+ * buckets and for each bucket the floor index of its lower bound is stored.
+ * {@link #findFloorIndex(double)} starts from the floor index of the bucket
+ * of y and walks to the exact floor index, which is O(1) on average for LUTs
+ * with bounded slope variation. The result is identical to the binary search
+ * of {@link AbstractLUTRealTransform}.
+ *
+ * The index is only used if the LUT is finite and non-decreasing. Otherwise,
+ * lookups fall back to binary search. The LUT must not be modified after
+ * construction.
+ *
+ * Threadsafe.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ */
+public class IndexedLUTRealTransform extends LUTRealTransform
+{
+
+	final protected int[] bucketFloorIndices;
+
+	final protected double bucketOffset;
+
+	final protected double bucketScale;
+
+	public IndexedLUTRealTransform( final double[] lut, final int numSourceDimensions, final int numTargetDimensions )
+	{
+		this( lut, numSourceDimensions, numTargetDimensions, lut.length );
+	}
+
+	/**
+	 * @param nBuckets
+	 *            number of buckets of the inverse lookup index
+	 */
+	public IndexedLUTRealTransform( final double[] lut, final int numSourceDimensions, final int numTargetDimensions, final int nBuckets )
+	{
+		super( lut, numSourceDimensions, numTargetDimensions );
+
+		final double range = lut[ lutMaxIndex ] - lut[ 0 ];
+		if ( nBuckets > 0 && lutMaxIndex > 0 && isFiniteAndNonDecreasing( lut ) && range > 0 && Double.isFinite( range ) )
+		{
+			bucketOffset = lut[ 0 ];
+			bucketScale = nBuckets / range;
+			bucketFloorIndices = new int[ nBuckets ];
+			for ( int b = 0, i = 0; b < nBuckets; ++b )
+			{
+				final double lower = bucketOffset + b / bucketScale;
+				while ( i + 1 < lutMaxIndex && lut[ i + 1 ] <= lower )
+					++i;
+				bucketFloorIndices[ b ] = i;
+			}
+		}
+		else
+		{
+			bucketOffset = 0.0;
+			bucketScale = 0.0;
+			bucketFloorIndices = null;
+		}
+	}
+
+	protected IndexedLUTRealTransform( final IndexedLUTRealTransform other )
+	{
+		super( other.lut, other.numSourceDimensions, other.numTargetDimensions );
+		this.bucketFloorIndices = other.bucketFloorIndices;
+		this.bucketOffset = other.bucketOffset;
+		this.bucketScale = other.bucketScale;
+	}
+
+	/**
+	 * @return true if inverse lookups use the bucket index
+	 */
+	public boolean isIndexed()
+	{
+		return bucketFloorIndices != null;
+	}
+
+	@Override
+	protected int findFloorIndex( final double y )
+	{
+		if ( bucketFloorIndices == null || Double.isNaN( y ) )
+			return super.findFloorIndex( y );
+
+		final double b = ( y - bucketOffset ) * bucketScale;
+		final int bucket = b <= 0 ? 0 : b >= bucketFloorIndices.length ? bucketFloorIndices.length - 1 : ( int ) b;
+		int i = bucketFloorIndices[ bucket ];
+		// correct for rounding in bucket computation
+		while ( i > 0 && lut[ i ] > y )
+			--i;
+		while ( i + 1 < lutMaxIndex && lut[ i + 1 ] <= y )
+			++i;
+		return i;
+	}
+
+	/**
+	 * Reuses the LUT and the index.
+	 */
+	@Override
+	public IndexedLUTRealTransform copy()
+	{
+		return new IndexedLUTRealTransform( this );
+	}
+
+	private static boolean isFiniteAndNonDecreasing( final double[] lut )
+	{
+		for ( int i = 0; i < lut.length; ++i )
+			if ( !Double.isFinite( lut[ i ] ) || i > 0 && lut[ i ] < lut[ i - 1 ] )
+				return false;
+		return true;
+	}
+
+}
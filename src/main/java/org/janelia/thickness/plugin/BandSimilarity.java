@@ -0,0 +1,262 @@
+package org.janelia.thickness.plugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Compute the similarities of all pairs ( i, j ) of n sections with 0 &lt;
+ * j - i &lt;= range as independent tasks, instead of one task per row with a
+ * barrier after each row. Pairs are submitted in order of j, at most
+ * maxPendingPairs at a time, so idle threads pick up pairs of subsequent
+ * rows while the current row completes. Each section is loaded once by the
+ * first pair task that needs it and released once all of its pairs are
+ * done, so only the sections of O(maxPendingPairs / range + range) rows are
+ * in memory at any time.
+ *
+ * {@link #compute(PairConsumer)} can be canceled by interrupting the
+ * calling thread, with {@link #cancel()} from any thread or through the
+ * abort condition of {@link #compute(PairConsumer, BooleanSupplier)}, e.g.
+ * when escape is pressed. All pending pair tasks are canceled if any of
+ * them fails. Pair tasks release their permit when they are done or
+ * canceled, and only pending tasks are kept for cancellation.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class BandSimilarity< S >
+{
+
+	public interface SectionLoader< S >
+	{
+		/**
+		 * @return section z or null if section z is not available, in which
+		 *         case all pairs involving z are skipped
+		 */
+		S load( int z ) throws Exception;
+	}
+
+	public interface Similarity< S >
+	{
+		double similarity( S a, S b ) throws Exception;
+	}
+
+	public interface PairConsumer
+	{
+		/**
+		 * Called from the pair tasks, i.e. concurrently for different pairs.
+		 */
+		void accept( int i, int j, double similarity );
+
+		/**
+		 * Called instead of {@link #accept(int, int, double)} if section i
+		 * or j is not available.
+		 */
+		default void skip( final int i, final int j )
+		{}
+	}
+
+	private final int n;
+
+	private final int range;
+
+	private final SectionLoader< S > loader;
+
+	private final Similarity< S > similarity;
+
+	private final ExecutorService es;
+
+	private final int maxPendingPairs;
+
+	private static final long POLL_INTERVAL_MILLIS = 100;
+
+	private volatile boolean canceled = false;
+
+	// pair tasks that have been submitted and are not done yet
+	private final Set< Future< Void > > futures = Collections.synchronizedSet( new HashSet<>() );
+
+	public BandSimilarity(
+			final int n,
+			final int range,
+			final SectionLoader< S > loader,
+			final Similarity< S > similarity,
+			final ExecutorService es,
+			final int maxPendingPairs )
+	{
+		this.n = n;
+		this.range = range;
+		this.loader = loader;
+		this.similarity = similarity;
+		this.es = es;
+		this.maxPendingPairs = Math.max( maxPendingPairs, 1 );
+	}
+
+	public void compute( final PairConsumer consumer ) throws InterruptedException, ExecutionException
+	{
+		compute( consumer, () -> false );
+	}
+
+	/**
+	 * @param abort
+	 *            polled while waiting for pair tasks, e.g.
+	 *            {@link ij.IJ#escapePressed()}. The computation is canceled
+	 *            once abort returns true.
+	 */
+	public void compute( final PairConsumer consumer, final BooleanSupplier abort ) throws InterruptedException, ExecutionException
+	{
+		final AtomicReferenceArray< FutureTask< S > > sections = new AtomicReferenceArray<>( n );
+		final AtomicIntegerArray remainingPairs = new AtomicIntegerArray( n );
+		for ( int z = 0; z < n; ++z )
+		{
+			final int fz = z;
+			sections.set( z, new FutureTask<>( () -> loader.load( fz ) ) );
+			remainingPairs.set( z, Math.min( z, range ) + Math.min( n - 1 - z, range ) );
+		}
+
+		final Semaphore pending = new Semaphore( maxPendingPairs );
+		final AtomicReference< ExecutionException > failure = new AtomicReference<>();
+		try
+		{
+			for ( int j = 1; j < n; ++j )
+				for ( int i = j - 1; i >= 0 && j - i <= range; --i )
+				{
+					final int fi = i;
+					final int fj = j;
+					acquire( pending, 1, abort, failure );
+					final FutureTask< Void > task = new FutureTask< Void >( () -> {
+						try
+						{
+							final S a = get( sections, fi );
+							final S b = get( sections, fj );
+							if ( a != null && b != null )
+								consumer.accept( fi, fj, similarity.similarity( a, b ) );
+							else
+								consumer.skip( fi, fj );
+							return null;
+						}
+						finally
+						{
+							release( sections, remainingPairs, fi );
+							release( sections, remainingPairs, fj );
+						}
+					} )
+					{
+						// also called if the task is canceled before it runs
+						@Override
+						protected void done()
+						{
+							futures.remove( this );
+							if ( !isCancelled() )
+							{
+								try
+								{
+									get();
+								}
+								catch ( final ExecutionException e )
+								{
+									failure.compareAndSet( null, e );
+									BandSimilarity.this.cancel();
+								}
+								catch ( final InterruptedException e )
+								{
+									Thread.currentThread().interrupt();
+								}
+							}
+							pending.release();
+						}
+					};
+					futures.add( task );
+					es.execute( task );
+				}
+
+			// all permits are returned once all pair tasks are done
+			acquire( pending, maxPendingPairs, abort, failure );
+			checkFailed( failure );
+			checkCanceled();
+		}
+		catch ( final InterruptedException | ExecutionException | RuntimeException e )
+		{
+			cancel();
+			throw e;
+		}
+		finally
+		{
+			futures.clear();
+		}
+	}
+
+	/**
+	 * Cancel all pending pair tasks. {@link #compute(PairConsumer)} throws a
+	 * {@link CancellationException}.
+	 */
+	public void cancel()
+	{
+		canceled = true;
+		final List< Future< Void > > pendingFutures;
+		synchronized ( futures )
+		{
+			pendingFutures = new ArrayList<>( futures );
+		}
+		// done() of canceled tasks removes them from futures
+		for ( final Future< Void > f : pendingFutures )
+			f.cancel( true );
+	}
+
+	private void acquire(
+			final Semaphore pending,
+			final int permits,
+			final BooleanSupplier abort,
+			final AtomicReference< ExecutionException > failure ) throws InterruptedException, ExecutionException
+	{
+		while ( !pending.tryAcquire( permits, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS ) )
+		{
+			checkFailed( failure );
+			if ( abort.getAsBoolean() )
+				cancel();
+			checkCanceled();
+		}
+		checkFailed( failure );
+		checkCanceled();
+	}
+
+	private static void checkFailed( final AtomicReference< ExecutionException > failure ) throws ExecutionException
+	{
+		final ExecutionException e = failure.get();
+		if ( e != null )
+			throw new ExecutionException( e.getCause() );
+	}
+
+	private void checkCanceled()
+	{
+		if ( canceled )
+			throw new CancellationException( "Similarity computation was canceled." );
+	}
+
+	private static < S > S get( final AtomicReferenceArray< FutureTask< S > > sections, final int z ) throws InterruptedException, ExecutionException
+	{
+		final FutureTask< S > section = sections.get( z );
+		// first caller loads, all others wait
+		section.run();
+		return section.get();
+	}
+
+	private static < S > void release( final AtomicReferenceArray< FutureTask< S > > sections, final AtomicIntegerArray remainingPairs, final int z )
+	{
+		if ( remainingPairs.decrementAndGet( z ) == 0 )
+			sections.set( z, null );
+	}
+
+}
@@ -0,0 +1,200 @@
+package org.janelia.thickness.plugin;
+
+import org.janelia.thickness.plugin.CachedStatisticsFloatNCC.Statistics;
+
+import net.imglib2.util.RealSum;
+
+/**
+ * NCC kernels equivalent to {@link RealSumFloatNCC},
+ * {@link org.janelia.thickness.trakem2.RealSumARGBNCC} and
+ * {@link CachedStatisticsFloatNCC} that accumulate plain double sums over
+ * blocks of {@link #BLOCK_SIZE} pixels and add only the block sums to
+ * {@link RealSum}s. The speedup comes from skipping the per-pixel
+ * compensated {@link RealSum#add(double)}, the JIT does not vectorize these
+ * loops because reordering floating point sums would change their result.
+ * Masking is done with selects instead of branches. Rounding errors are
+ * bounded by the block size instead of being compensated per pixel, results
+ * agree with the {@link RealSum} kernels to well below float precision.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class BlockedFloatNCC
+{
+
+	public static final int BLOCK_SIZE = 1024;
+
+	/**
+	 * Same as {@link RealSumFloatNCC#call()}.
+	 */
+	public static double ncc( final float[] ap, final float[] bp )
+	{
+		final RealSum sumA = new RealSum();
+		final RealSum sumAA = new RealSum();
+		final RealSum sumB = new RealSum();
+		final RealSum sumBB = new RealSum();
+		final RealSum sumAB = new RealSum();
+		long n = 0;
+		for ( int start = 0; start < ap.length; start += BLOCK_SIZE )
+		{
+			final int stop = Math.min( start + BLOCK_SIZE, ap.length );
+			double a = 0.0, aa = 0.0, b = 0.0, bb = 0.0, ab = 0.0;
+			int count = 0;
+			for ( int i = start; i < stop; ++i )
+			{
+				final double va = ap[ i ];
+				final double vb = bp[ i ];
+				// NaN != NaN
+				final boolean valid = va == va & vb == vb;
+				final double ma = valid ? va : 0.0;
+				final double mb = valid ? vb : 0.0;
+				count += valid ? 1 : 0;
+				a += ma;
+				aa += ma * ma;
+				b += mb;
+				bb += mb * mb;
+				ab += ma * mb;
+			}
+			n += count;
+			sumA.add( a );
+			sumAA.add( aa );
+			sumB.add( b );
+			sumBB.add( bb );
+			sumAB.add( ab );
+		}
+		return ncc( n, sumA.getSum(), sumAA.getSum(), sumB.getSum(), sumBB.getSum(), sumAB.getSum() );
+	}
+
+	/**
+	 * Same as {@link org.janelia.thickness.trakem2.RealSumARGBNCC#call()}.
+	 */
+	public static double ncc( final int[] ap, final int[] bp )
+	{
+		final RealSum sumA = new RealSum();
+		final RealSum sumAA = new RealSum();
+		final RealSum sumB = new RealSum();
+		final RealSum sumBB = new RealSum();
+		final RealSum sumAB = new RealSum();
+		long n = 0;
+		for ( int start = 0; start < ap.length; start += BLOCK_SIZE )
+		{
+			final int stop = Math.min( start + BLOCK_SIZE, ap.length );
+			double a = 0.0, aa = 0.0, b = 0.0, bb = 0.0, ab = 0.0;
+			int count = 0;
+			for ( int i = start; i < stop; ++i )
+			{
+				final int ra = ( ap[ i ] >> 16 ) & 0xff;
+				final int ga = ( ap[ i ] >> 8 ) & 0xff;
+				final int ba = ap[ i ] & 0xff;
+				final int rb = ( bp[ i ] >> 16 ) & 0xff;
+				final int gb = ( bp[ i ] >> 8 ) & 0xff;
+				final int bb_ = bp[ i ] & 0xff;
+				final boolean valid = isUnsaturated( ra ) & isUnsaturated( ga ) & isUnsaturated( ba ) &
+						isUnsaturated( rb ) & isUnsaturated( gb ) & isUnsaturated( bb_ );
+				final double ma = valid ? 0.3 * ra + 0.6 * ga + 0.1 * ba : 0.0;
+				final double mb = valid ? 0.3 * rb + 0.6 * gb + 0.1 * bb_ : 0.0;
+				count += valid ? 1 : 0;
+				a += ma;
+				aa += ma * ma;
+				b += mb;
+				bb += mb * mb;
+				ab += ma * mb;
+			}
+			n += count;
+			sumA.add( a );
+			sumAA.add( aa );
+			sumB.add( b );
+			sumBB.add( bb );
+			sumAB.add( ab );
+		}
+		return ncc( n, sumA.getSum(), sumAA.getSum(), sumB.getSum(), sumBB.getSum(), sumAB.getSum() );
+	}
+
+	/**
+	 * Same as {@link Statistics#of(float[])}.
+	 */
+	public static Statistics statistics( final float[] p )
+	{
+		final RealSum sum = new RealSum();
+		final RealSum sumOfSquares = new RealSum();
+		int n = 0;
+		for ( int start = 0; start < p.length; start += BLOCK_SIZE )
+		{
+			final int stop = Math.min( start + BLOCK_SIZE, p.length );
+			double s = 0.0, ss = 0.0;
+			int count = 0;
+			for ( int i = start; i < stop; ++i )
+			{
+				final double v = p[ i ];
+				final boolean valid = v == v;
+				final double m = valid ? v : 0.0;
+				count += valid ? 1 : 0;
+				s += m;
+				ss += m * m;
+			}
+			n += count;
+			sum.add( s );
+			sumOfSquares.add( ss );
+		}
+		return new Statistics( n, sum.getSum(), sumOfSquares.getSum() );
+	}
+
+	/**
+	 * Same as {@link CachedStatisticsFloatNCC#call()}.
+	 */
+	public static double ncc( final float[] ap, final Statistics as, final float[] bp, final Statistics bs )
+	{
+		final RealSum sumAB = new RealSum();
+		final RealSum excludedA = new RealSum();
+		final RealSum excludedAA = new RealSum();
+		final RealSum excludedB = new RealSum();
+		final RealSum excludedBB = new RealSum();
+		long excludedNA = 0;
+		for ( int start = 0; start < ap.length; start += BLOCK_SIZE )
+		{
+			final int stop = Math.min( start + BLOCK_SIZE, ap.length );
+			double ab = 0.0, a = 0.0, aa = 0.0, b = 0.0, bb = 0.0;
+			int countA = 0;
+			for ( int i = start; i < stop; ++i )
+			{
+				final double va = ap[ i ];
+				final double vb = bp[ i ];
+				final boolean validA = va == va;
+				final boolean validB = vb == vb;
+				final boolean both = validA & validB;
+				final double onlyA = validA & !validB ? va : 0.0;
+				final double onlyB = validB & !validA ? vb : 0.0;
+				countA += validA & !validB ? 1 : 0;
+				ab += both ? va * vb : 0.0;
+				a += onlyA;
+				aa += onlyA * onlyA;
+				b += onlyB;
+				bb += onlyB * onlyB;
+			}
+			excludedNA += countA;
+			sumAB.add( ab );
+			excludedA.add( a );
+			excludedAA.add( aa );
+			excludedB.add( b );
+			excludedBB.add( bb );
+		}
+		return ncc(
+				as.n - excludedNA,
+				as.sum - excludedA.getSum(),
+				as.sumOfSquares - excludedAA.getSum(),
+				bs.sum - excludedB.getSum(),
+				bs.sumOfSquares - excludedBB.getSum(),
+				sumAB.getSum() );
+	}
+
+	private static boolean isUnsaturated( final int channel )
+	{
+		return channel != 0 & channel != 255;
+	}
+
+	private static double ncc( final long n, final double suma, final double sumaa, final double sumb, final double sumbb, final double sumab )
+	{
+		return ( n * sumab - suma * sumb ) / Math.sqrt( n * sumaa - suma * suma ) / Math.sqrt( n * sumbb - sumb * sumb );
+	}
+
+}
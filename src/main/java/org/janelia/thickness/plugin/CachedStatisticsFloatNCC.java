@@ -0,0 +1,139 @@
+package org.janelia.thickness.plugin;
+
+import java.util.concurrent.Callable;
+
+import net.imglib2.util.RealSum;
+
+/**
+ * Same as {@link RealSumFloatNCC} but with per-section sums that are
+ * computed once with {@link Statistics#of(float[])} and shared by all pairs
+ * a section participates in. For each pair, only the cross term is
+ * accumulated. Pixels that are NaN in exactly one of the two sections are
+ * subtracted from the sums of the other section, such that the result is
+ * the NCC over all pixels that are valid in both sections, as with
+ * {@link RealSumFloatNCC}.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class CachedStatisticsFloatNCC implements Callable< Double >
+{
+
+	/**
+	 * Number of valid (not NaN) pixels, sum and sum of squares of a section.
+	 */
+	public static class Statistics
+	{
+		public final int n;
+
+		public final double sum;
+
+		public final double sumOfSquares;
+
+		public Statistics( final int n, final double sum, final double sumOfSquares )
+		{
+			super();
+			this.n = n;
+			this.sum = sum;
+			this.sumOfSquares = sumOfSquares;
+		}
+
+		public static Statistics of( final float[] p )
+		{
+			final RealSum sum = new RealSum();
+			final RealSum sumOfSquares = new RealSum();
+			int n = 0;
+			for ( int i = 0; i < p.length; ++i )
+			{
+				final double v = p[ i ];
+				if ( Double.isNaN( v ) )
+					continue;
+				++n;
+				sum.add( v );
+				sumOfSquares.add( v * v );
+			}
+			return new Statistics( n, sum.getSum(), sumOfSquares.getSum() );
+		}
+	}
+
+	protected float[] ap;
+
+	protected float[] bp;
+
+	protected Statistics as;
+
+	protected Statistics bs;
+
+	public CachedStatisticsFloatNCC( final float[] ap, final Statistics as, final float[] bp, final Statistics bs )
+	{
+		this.ap = ap;
+		this.as = as;
+		this.bp = bp;
+		this.bs = bs;
+	}
+
+	@Override
+	public Double call()
+	{
+		final RealSum sumAB = new RealSum();
+		// contributions of pixels that are valid in only one section
+		final RealSum excludedA = new RealSum();
+		final RealSum excludedAA = new RealSum();
+		final RealSum excludedB = new RealSum();
+		final RealSum excludedBB = new RealSum();
+		int excludedNA = 0;
+		int excludedNB = 0;
+		for ( int i = 0; i < ap.length; ++i )
+		{
+			final double va = ap[ i ];
+			final double vb = bp[ i ];
+
+			final boolean aIsNaN = Double.isNaN( va );
+			final boolean bIsNaN = Double.isNaN( vb );
+
+			if ( !aIsNaN && !bIsNaN )
+				sumAB.add( va * vb );
+			else if ( !aIsNaN )
+			{
+				++excludedNA;
+				excludedA.add( va );
+				excludedAA.add( va * va );
+			}
+			else if ( !bIsNaN )
+			{
+				++excludedNB;
+				excludedB.add( vb );
+				excludedBB.add( vb * vb );
+			}
+		}
+		final int n = as.n - excludedNA;
+		final double suma = as.sum - excludedA.getSum();
+		final double sumaa = as.sumOfSquares - excludedAA.getSum();
+		final double sumb = bs.sum - excludedB.getSum();
+		final double sumbb = bs.sumOfSquares - excludedBB.getSum();
+		final double sumab = sumAB.getSum();
+
+		return ( n * sumab - suma * sumb ) / Math.sqrt( n * sumaa - suma * suma ) / Math.sqrt( n * sumbb - sumb * sumb );
+	}
+
+	/**
+	 * Convert ARGB pixels into gray values 0.3 * r + 0.6 * g + 0.1 * b. Pixels
+	 * with any channel saturated at 0 or 255 are masked as NaN, as in
+	 * {@link org.janelia.thickness.trakem2.RealSumARGBNCC}.
+	 */
+	public static float[] maskedGray( final int[] argb )
+	{
+		final float[] gray = new float[ argb.length ];
+		for ( int i = 0; i < argb.length; ++i )
+		{
+			final int r = ( argb[ i ] >> 16 ) & 0xff;
+			final int g = ( argb[ i ] >> 8 ) & 0xff;
+			final int b = argb[ i ] & 0xff;
+			if ( r == 0 || g == 0 || b == 0 || r == 255 || g == 255 || b == 255 )
+				gray[ i ] = Float.NaN;
+			else
+				gray[ i ] = ( float ) ( 0.3 * r + 0.6 * g + 0.1 * b );
+		}
+		return gray;
+	}
+}
@@ -0,0 +1,121 @@
+package org.janelia.thickness.plugin;
+
+import java.util.Arrays;
+
+import org.janelia.thickness.plugin.CachedStatisticsFloatNCC.Statistics;
+import org.janelia.thickness.trakem2.RealSumARGBNCC;
+
+/**
+ * Runtime selection of the NCC implementation used for similarity
+ * computation. {@link #get()} returns the kernel specified by the system
+ * property {@value #PROPERTY} ({@link #REAL_SUM} if not set). The blocked
+ * kernel is faster but not compensated per pixel, opt in with
+ *
+ * <pre>
+ * -Dorg.janelia.thickness.ncc.kernel=BLOCKED
+ * </pre>
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public enum NCCKernel
+{
+
+	/**
+	 * per-pixel compensated summation, {@link RealSumFloatNCC},
+	 * {@link RealSumARGBNCC} and {@link CachedStatisticsFloatNCC}
+	 */
+	REAL_SUM
+	{
+		@Override
+		public double ncc( final float[] a, final float[] b )
+		{
+			return new RealSumFloatNCC( a, b ).call();
+		}
+
+		@Override
+		public double ncc( final int[] a, final int[] b )
+		{
+			return new RealSumARGBNCC( a, b ).call();
+		}
+
+		@Override
+		public Statistics statistics( final float[] p )
+		{
+			return Statistics.of( p );
+		}
+
+		@Override
+		public double ncc( final float[] a, final Statistics as, final float[] b, final Statistics bs )
+		{
+			return new CachedStatisticsFloatNCC( a, as, b, bs ).call();
+		}
+	},
+
+	/**
+	 * branch-free blocked summation, {@link BlockedFloatNCC}
+	 */
+	BLOCKED
+	{
+		@Override
+		public double ncc( final float[] a, final float[] b )
+		{
+			return BlockedFloatNCC.ncc( a, b );
+		}
+
+		@Override
+		public double ncc( final int[] a, final int[] b )
+		{
+			return BlockedFloatNCC.ncc( a, b );
+		}
+
+		@Override
+		public Statistics statistics( final float[] p )
+		{
+			return BlockedFloatNCC.statistics( p );
+		}
+
+		@Override
+		public double ncc( final float[] a, final Statistics as, final float[] b, final Statistics bs )
+		{
+			return BlockedFloatNCC.ncc( a, as, b, bs );
+		}
+	};
+
+	public static final String PROPERTY = "org.janelia.thickness.ncc.kernel";
+
+	/**
+	 * NCC of a and b over all pixels that are not NaN in either.
+	 */
+	public abstract double ncc( float[] a, float[] b );
+
+	/**
+	 * NCC of the gray values of ARGB pixels a and b over all pixels that are
+	 * not saturated in either.
+	 */
+	public abstract double ncc( int[] a, int[] b );
+
+	public abstract Statistics statistics( float[] p );
+
+	/**
+	 * NCC of a and b with precomputed {@link Statistics}, see
+	 * {@link CachedStatisticsFloatNCC}.
+	 */
+	public abstract double ncc( float[] a, Statistics as, float[] b, Statistics bs );
+
+	public static NCCKernel get()
+	{
+		final String kernel = System.getProperty( PROPERTY );
+		if ( kernel == null )
+			return REAL_SUM;
+		try
+		{
+			return valueOf( kernel );
+		}
+		catch ( final IllegalArgumentException e )
+		{
+			throw new IllegalArgumentException( "Unknown NCC kernel " + PROPERTY + "=" + kernel + ", expected one of " + Arrays.toString( values() ), e );
+		}
+	}
+
+}
@@ -0,0 +1,65 @@
+package org.janelia.thickness.plugin;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Work-stealing compute pool shared by all similarity and rendering tasks
+ * of the plugins, such that repeated plugin calls in a long running Fiji
+ * session do not create (and leak) a new pool each time. The pool is
+ * created lazily with {@link #getNumberOfThreads()} threads, specified by
+ * the system property {@value #PROPERTY} or the number of available
+ * processors if not set. Worker threads are daemon threads, so the pool does
+ * not keep the JVM alive.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class SharedExecutor
+{
+
+	public static final String PROPERTY = "org.janelia.thickness.nThreads";
+
+	private static ForkJoinPool pool = null;
+
+	private static int nThreads = Integer.getInteger( PROPERTY, Runtime.getRuntime().availableProcessors() );
+
+	public static synchronized ExecutorService get()
+	{
+		if ( pool == null || pool.isShutdown() )
+			pool = new ForkJoinPool( nThreads );
+		return pool;
+	}
+
+	public static synchronized int getNumberOfThreads()
+	{
+		return nThreads;
+	}
+
+	/**
+	 * Use nThreads threads for all subsequent calls to {@link #get()}. Tasks
+	 * that were submitted to the current pool complete on the current pool.
+	 */
+	public static synchronized void setNumberOfThreads( final int nThreads )
+	{
+		if ( nThreads < 1 )
+			throw new IllegalArgumentException( "Number of threads must be positive: " + nThreads );
+		if ( nThreads != SharedExecutor.nThreads )
+		{
+			SharedExecutor.nThreads = nThreads;
+			shutdown();
+		}
+	}
+
+	/**
+	 * Shut down the current pool after all submitted tasks completed. The
+	 * next call to {@link #get()} creates a new pool.
+	 */
+	public static synchronized void shutdown()
+	{
+		if ( pool != null )
+			pool.shutdown();
+		pool = null;
+	}
+
+}
@@ -0,0 +1,266 @@
+package org.janelia.thickness.plugin;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import org.janelia.utility.StripFile;
+
+import ij.IJ;
+import ij.process.FloatProcessor;
+
+/**
+ * Content addressed cache of similarity bands on disk. Callers describe
+ * everything that determines the similarities (input files and their
+ * modification times, region of interest, scale, method, range, ...) in a
+ * {@link Key}. The band of width 2 * range + 1 is stored in a file named
+ * after the SHA-256 hash of that description in the {@link StripFile}
+ * format and reused whenever a similarity calculation with the same
+ * description is requested.
+ *
+ * The cache directory is set by the system property {@value #PROPERTY} and
+ * defaults to .z_spacing/similarities in the home directory of the user.
+ * Set the property to an empty string to disable caching.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class SimilarityCache
+{
+
+	public static final String PROPERTY = "org.janelia.thickness.similarityCache";
+
+	public interface Computation< T >
+	{
+		/**
+		 * @return result or null if canceled
+		 */
+		T compute() throws InterruptedException, ExecutionException;
+	}
+
+	/**
+	 * Description of all parameters that determine a similarity band.
+	 */
+	public static class Key
+	{
+		private final StringBuilder description;
+
+		public Key()
+		{
+			this.description = new StringBuilder();
+		}
+
+		public Key( final Key other )
+		{
+			this.description = new StringBuilder( other.description );
+		}
+
+		public Key add( final String name, final Object value )
+		{
+			description.append( name ).append( '=' ).append( value ).append( '\n' );
+			return this;
+		}
+
+		/**
+		 * Add path, size and modification time of a file or of all files in a
+		 * directory.
+		 */
+		public Key addFiles( final Path path ) throws IOException
+		{
+			final List< Path > files = new ArrayList<>();
+			if ( Files.isDirectory( path ) )
+			{
+				try (final DirectoryStream< Path > paths = Files.newDirectoryStream( path ))
+				{
+					for ( final Path file : paths )
+						if ( Files.isRegularFile( file ) && !Files.isHidden( file ) )
+							files.add( file );
+				}
+				Collections.sort( files );
+			}
+			else
+				files.add( path );
+
+			for ( final Path file : files )
+				add( "file", file.toAbsolutePath() + " " + Files.size( file ) + " " + Files.getLastModifiedTime( file ).toMillis() );
+			return this;
+		}
+
+		/**
+		 * @return hexadecimal SHA-256 hash of the description
+		 */
+		public String hash()
+		{
+			try
+			{
+				final byte[] digest = MessageDigest.getInstance( "SHA-256" ).digest( description.toString().getBytes( StandardCharsets.UTF_8 ) );
+				final StringBuilder hex = new StringBuilder();
+				for ( final byte b : digest )
+					hex.append( String.format( "%02x", b ) );
+				return hex.toString();
+			}
+			catch ( final NoSuchAlgorithmException e )
+			{
+				throw new RuntimeException( e );
+			}
+		}
+
+		@Override
+		public String toString()
+		{
+			return description.toString();
+		}
+	}
+
+	private final Path directory;
+
+	public SimilarityCache( final Path directory )
+	{
+		this.directory = directory;
+	}
+
+	/**
+	 * @return cache in the directory specified by {@value #PROPERTY} or null
+	 *         if caching is disabled
+	 */
+	public static SimilarityCache get()
+	{
+		final String directory = System.getProperty( PROPERTY );
+		if ( directory == null )
+			return new SimilarityCache( Paths.get( System.getProperty( "user.home" ), ".z_spacing", "similarities" ) );
+		return directory.isEmpty() ? null : new SimilarityCache( Paths.get( directory ) );
+	}
+
+	public Path getDirectory()
+	{
+		return directory;
+	}
+
+	public Path path( final Key key, final int n, final int range )
+	{
+		return directory.resolve( new Key( key ).add( "n", n ).add( "range", range ).hash() + ".strip" );
+	}
+
+	/**
+	 * @param computeStrip
+	 *            calculates the strip of n rows if it is not cached
+	 * @return cached or calculated strip or null if calculation was canceled
+	 */
+	public float[] get( final Key key, final int n, final int range, final Computation< float[] > computeStrip ) throws InterruptedException, ExecutionException
+	{
+		final Path path = path( key, n, range );
+		if ( Files.isRegularFile( path ) )
+		{
+			try
+			{
+				final float[] strip = read( path, n, range );
+				IJ.log( "Using cached similarities " + path );
+				return strip;
+			}
+			catch ( final IOException e )
+			{
+				IJ.log( "Ignoring similarity cache file " + path + ": " + e.getMessage() );
+			}
+		}
+
+		final float[] strip = computeStrip.compute();
+		if ( strip != null )
+		{
+			try
+			{
+				Files.createDirectories( directory );
+				write( path, strip, n, range );
+			}
+			catch ( final IOException e )
+			{
+				IJ.log( "Could not write similarity cache file " + path + ": " + e.getMessage() );
+			}
+		}
+		return strip;
+	}
+
+	/**
+	 * @param computeStrip
+	 *            calculates the strip of width 2 * range + 1 and height n if
+	 *            it is not cached
+	 */
+	public FloatProcessor getStrip( final Key key, final int n, final int range, final Computation< FloatProcessor > computeStrip ) throws InterruptedException, ExecutionException
+	{
+		final float[] strip = get( key, n, range, () -> {
+			final FloatProcessor fp = computeStrip.compute();
+			return fp == null ? null : ( float[] ) fp.getPixels();
+		} );
+		return strip == null ? null : new FloatProcessor( 2 * range + 1, n, strip );
+	}
+
+	/**
+	 * Only the band of the n x n matrix is cached, all similarities outside
+	 * the band are NaN if read from the cache.
+	 *
+	 * @param computeMatrix
+	 *            calculates the n x n matrix if it is not cached
+	 */
+	public FloatProcessor getMatrix( final Key key, final int n, final int range, final Computation< FloatProcessor > computeMatrix ) throws InterruptedException, ExecutionException
+	{
+		final FloatProcessor[] computed = new FloatProcessor[ 1 ];
+		final float[] strip = get( key, n, range, () -> {
+			computed[ 0 ] = computeMatrix.compute();
+			return computed[ 0 ] == null ? null : matrixToStrip( ( float[] ) computed[ 0 ].getPixels(), n, range );
+		} );
+		if ( computed[ 0 ] != null )
+			return computed[ 0 ];
+		return strip == null ? null : new FloatProcessor( n, n, stripToMatrix( strip, n, range ) );
+	}
+
+	public static float[] matrixToStrip( final float[] matrix, final int n, final int range )
+	{
+		final int width = 2 * range + 1;
+		final float[] strip = new float[ n * width ];
+		for ( int y = 0, i = 0; y < n; ++y )
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				final int z = y + x - range;
+				strip[ i ] = z >= 0 && z < n ? matrix[ y * n + z ] : Float.NaN;
+			}
+		return strip;
+	}
+
+	public static float[] stripToMatrix( final float[] strip, final int n, final int range )
+	{
+		final int width = 2 * range + 1;
+		final float[] matrix = new float[ n * n ];
+		Arrays.fill( matrix, Float.NaN );
+		for ( int y = 0, i = 0; y < n; ++y )
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				final int z = y + x - range;
+				if ( z >= 0 && z < n )
+					matrix[ y * n + z ] = strip[ i ];
+			}
+		return matrix;
+	}
+
+	public static void write( final Path path, final float[] strip, final int n, final int range ) throws IOException
+	{
+		StripFile.write( path, strip, n, range );
+	}
+
+	public static float[] read( final Path path, final int n, final int range ) throws IOException
+	{
+		final StripFile.Header header = StripFile.readHeader( path );
+		if ( header.n != n || header.range != range )
+			throw new IOException( "Unexpected dimensions in similarity file " + path );
+		return StripFile.readFloats( path );
+	}
+
+}
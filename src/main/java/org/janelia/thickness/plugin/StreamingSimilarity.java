@@ -0,0 +1,184 @@
+package org.janelia.thickness.plugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.janelia.thickness.plugin.CachedStatisticsFloatNCC.Statistics;
+import org.janelia.utility.StripFile;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import mpicbg.ij.util.Filter;
+
+/**
+ * Compute the NCC similarity strip of a stack that is read one section at a
+ * time, in order. Only the last comparisonRange + 1 sections and the rows
+ * of the strip that are not complete yet are kept in memory, so memory is
+ * O(comparisonRange x section size) independent of the number of sections.
+ * Each entering section is compared to the comparisonRange sections in
+ * front of it in parallel.
+ *
+ * The strip has width 2 * comparisonRange + 1 and one row per section: Row
+ * y holds the similarities of y with y - comparisonRange, ...,
+ * y + comparisonRange, 1 on the diagonal and NaN outside of the stack, as
+ * stored in a {@link StripFile}. Rows are passed to a {@link RowWriter} in order as soon as they are
+ * complete.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class StreamingSimilarity
+{
+
+	/**
+	 * Sections of a stack, requested in order 0, 1, ..., {@link #size()} - 1.
+	 */
+	public interface SectionSource
+	{
+		int size();
+
+		float[] get( int z ) throws IOException;
+	}
+
+	public interface RowWriter
+	{
+		/**
+		 * @param row
+		 *            reused for subsequent rows, copy if needed
+		 */
+		void write( int y, float[] row ) throws IOException;
+	}
+
+	private final int range;
+
+	private final NCCKernel kernel;
+
+	private final ExecutorService es;
+
+	/**
+	 *
+	 * @param es
+	 *            computes the comparisons of each entering section
+	 */
+	public StreamingSimilarity( final int range, final NCCKernel kernel, final ExecutorService es )
+	{
+		this.range = range;
+		this.kernel = kernel;
+		this.es = es;
+	}
+
+	public void computeStrip( final SectionSource source, final RowWriter writer ) throws IOException, InterruptedException, ExecutionException
+	{
+		final int n = source.size();
+		final int width = 2 * range + 1;
+		final int bufferSize = range + 1;
+		final float[][] sections = new float[ bufferSize ][];
+		final Statistics[] statistics = new Statistics[ bufferSize ];
+		final float[][] rows = new float[ bufferSize ][ width ];
+
+		for ( int z = 0; z < n; ++z )
+		{
+			final int slot = z % bufferSize;
+			final float[] section = source.get( z );
+			sections[ slot ] = section;
+			statistics[ slot ] = kernel.statistics( section );
+
+			final float[] row = rows[ slot ];
+			Arrays.fill( row, Float.NaN );
+			row[ range ] = 1.0f;
+
+			final List< Callable< Float > > comparisons = new ArrayList<>();
+			for ( int d = 1; d <= range && d <= z; ++d )
+			{
+				final int otherSlot = ( z - d ) % bufferSize;
+				comparisons.add( () -> ( float ) kernel.ncc( sections[ otherSlot ], statistics[ otherSlot ], section, statistics[ slot ] ) );
+			}
+
+			final List< Future< Float > > futures = es.invokeAll( comparisons );
+			for ( int d = 1; d <= futures.size(); ++d )
+			{
+				final float val = futures.get( d - 1 ).get();
+				row[ range - d ] = val;
+				rows[ ( z - d ) % bufferSize ][ range + d ] = val;
+			}
+
+			// all sections that row z - range is compared to have entered
+			if ( z - range >= 0 )
+				writer.write( z - range, rows[ ( z - range ) % bufferSize ] );
+		}
+
+		for ( int y = Math.max( n - range, 0 ); y < n; ++y )
+			writer.write( y, rows[ y % bufferSize ] );
+	}
+
+	/**
+	 * Compute the strip into a {@link FloatProcessor} of width 2 *
+	 * comparisonRange + 1 and height {@link SectionSource#size()}.
+	 */
+	public FloatProcessor computeStrip( final SectionSource source ) throws IOException, InterruptedException, ExecutionException
+	{
+		final FloatProcessor strip = new FloatProcessor( 2 * range + 1, source.size() );
+		final float[] pixels = ( float[] ) strip.getPixels();
+		computeStrip( source, ( y, row ) -> System.arraycopy( row, 0, pixels, y * row.length, row.length ) );
+		return strip;
+	}
+
+	/**
+	 * Compute the strip into a float {@link StripFile} through a
+	 * {@link StripFile.Writer}, e.g. for
+	 * {@link org.janelia.thickness.inference.BlockwiseInference#fromStripFile(Path)}.
+	 */
+	public void computeStrip( final SectionSource source, final Path path ) throws IOException, InterruptedException, ExecutionException
+	{
+		try (final StripFile.Writer writer = new StripFile.Writer( path, source.size(), range ))
+		{
+			computeStrip( source, writer::write );
+		}
+	}
+
+	/**
+	 * Read all images in directory, sorted by file name, as float sections.
+	 * Hidden files and sub-directories are ignored.
+	 *
+	 * @param xyScale
+	 *            downsample sections by xyScale if not 1.0, as in
+	 *            {@link ZPositionCorrection#downsampleStack(ij.ImageStack, double)}
+	 */
+	public static SectionSource fromDirectory( final File directory, final double xyScale ) throws IOException
+	{
+		final File[] files = directory.listFiles( f -> f.isFile() && !f.isHidden() );
+		if ( files == null )
+			throw new IOException( "Unable to list " + directory );
+		Arrays.sort( files );
+		return new SectionSource()
+		{
+			@Override
+			public int size()
+			{
+				return files.length;
+			}
+
+			@Override
+			public float[] get( final int z ) throws IOException
+			{
+				final ImagePlus imp = IJ.openImage( files[ z ].getAbsolutePath() );
+				if ( imp == null )
+					throw new IOException( "Unable to open " + files[ z ] );
+				final ImageProcessor ip = imp.getProcessor().convertToFloatProcessor();
+				final ImageProcessor scaled = xyScale == 1.0 ? ip : Filter.createDownsampled( ip, xyScale, 0.5f, 0.5f );
+				return ( float[] ) scaled.getPixels();
+			}
+		};
+	}
+
+}
@@ -62,6 +62,7 @@ import org.janelia.thickness.lut.PermutationTransform;
 import org.janelia.thickness.lut.SingleDimensionLUTRealTransform;
 import org.janelia.thickness.lut.SingleDimensionPermutationTransform;
 import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.StripFile;
 import org.janelia.utility.arrays.ArraySortedIndices;
 
 import java.awt.Checkbox;
@@ -70,14 +71,16 @@ import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Vector;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /**
  * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
@@ -180,7 +183,8 @@ public class ZPositionCorrection implements PlugIn
 		final GenericDialogPlus dialog = new GenericDialogPlus( "Correct layer z-positions" );
 		dialog.addMessage( "Data source settings : " );
 		dialog.addFileField( "Input path (use current image if empty)", "" );
-		dialog.addChoice( "Type of input data : ", new String[] { "Matrix", "Image Stack" }, "Image Stack" );
+		dialog.addChoice( "Type of input data : ", new String[] { "Matrix", "Image Stack", "Strip File" }, "Image Stack" );
+		dialog.addCheckbox( " stream_sections_from_directory", false );
 		dialog.addMessage( "Inference settings : " );
 		dialog.addMessage( "Section neighbor range :" );
 		dialog.addNumericField( "test_maximally :", options.comparisonRange, 0, 6, "layers" );
@@ -208,8 +212,16 @@ public class ZPositionCorrection implements PlugIn
 			return;
 
 		final String inputPath = dialog.getNextString();
-		final boolean inputIsMatrix = dialog.getNextChoiceIndex() == 0;
-		final ImagePlus input = inputPath.equals( "" ) ? IJ.getImage() : FolderOpener.open( inputPath );
+		final int inputType = dialog.getNextChoiceIndex();
+		final boolean inputIsMatrix = inputType == 0;
+		// similarity strip written by StripFile, memory-mapped instead of
+		// read into memory. Inference still allocates band-sized working
+		// strips, but never the n x n matrix.
+		final boolean inputIsStripFile = inputType == 2;
+		// do not open the whole stack, read one section at a time for
+		// similarity calculation
+		final boolean streamFromDirectory = dialog.getNextBoolean() && inputType == 1 && new File( inputPath ).isDirectory();
+		final ImagePlus input = streamFromDirectory || inputIsStripFile ? null : inputPath.equals( "" ) ? IJ.getImage() : FolderOpener.open( inputPath );
 
 		options.comparisonRange = ( int ) dialog.getNextNumber();
 		options.nIterations = ( int ) dialog.getNextNumber();
@@ -225,17 +237,39 @@ public class ZPositionCorrection implements PlugIn
 
 		final String visitorString = dialog.getNextChoice();
 
-		final FloatProcessor matrixFp = inputIsMatrix ? normalize( input ).getProcessor().convertToFloatProcessor() : calculateSimilarityMatrix( input, options.comparisonRange );
+		final boolean isStrip;
+		final RandomAccessibleInterval< DoubleType > wrappedFp;
+		if ( inputIsStripFile )
+		{
+			try
+			{
+				wrappedFp = StripFile.openAsDouble( Paths.get( inputPath ) );
+			}
+			catch ( final IOException e )
+			{
+				IJ.handleException( e );
+				return;
+			}
+			isStrip = true;
+		}
+		else
+		{
+			final FloatProcessor matrixFp = inputIsMatrix ?
+					normalize( input ).getProcessor().convertToFloatProcessor() :
+					streamFromDirectory ? calculateSimilarityStrip( new File( inputPath ), options.comparisonRange, similarityKey( inputPath ) ) : calculateSimilarityMatrix( input, options.comparisonRange, similarityKey( inputPath ) );
 
-		if ( matrixFp == null )
-			return;
+			if ( matrixFp == null )
+				return;
 
-		final boolean isStrip = matrixFp.getWidth() != matrixFp.getHeight();
-		final RandomAccessibleInterval< DoubleType > wrappedFp = wrapDouble( new ImagePlus( "", matrixFp ) );
+			// a strip of n = 2 * range + 1 sections is square
+			isStrip = streamFromDirectory || matrixFp.getWidth() != matrixFp.getHeight();
+			wrappedFp = wrapDouble( new ImagePlus( "", matrixFp ) );
+		}
 
 		final RandomAccessibleInterval< DoubleType > matrix = isStrip ? MatrixStripConversion.stripToMatrix( wrappedFp, new DoubleType() ) : wrappedFp;
 
-		if ( !inputIsMatrix )
+		// showing the full matrix of a strip file would copy it into memory
+		if ( !inputIsMatrix && !inputIsStripFile )
 			ImageJFunctions.show( matrix );
 
 		final double[] startingCoordinates = new double[ ( int ) matrix.dimension( 0 ) ];
@@ -244,11 +278,9 @@ public class ZPositionCorrection implements PlugIn
 
 		options.estimateWindowRadius = startingCoordinates.length / nLocalEstimates;
 		final AbstractCorrelationFit correlationFit = nLocalEstimates < 2 ? new GlobalCorrelationFitAverage() : new LocalCorrelationFitAverage( startingCoordinates.length, options );
-		final InferFromMatrix inf = new InferFromMatrix( correlationFit );
-
 		boolean estimatedSuccessfully = false;
 		double[] transform = null;
-		try
+		try (final InferFromMatrix inf = new InferFromMatrix( correlationFit ))
 		{
 			final VisitorFactory factory = visitors.get( visitorString );
 			final Visitor visitor = factory.create( matrix, options );
@@ -339,9 +371,9 @@ public class ZPositionCorrection implements PlugIn
 				}
 			}
 
-			double stackXScale = inputIsMatrix ? 1.0 : input.getCalibration().pixelWidth;
-			double stackYScale = inputIsMatrix ? 1.0 : input.getCalibration().pixelHeight;
-			double stackZScale = inputIsMatrix ? 1.0 : input.getCalibration().pixelDepth;
+			double stackXScale = inputIsMatrix || input == null ? 1.0 : input.getCalibration().pixelWidth;
+			double stackYScale = inputIsMatrix || input == null ? 1.0 : input.getCalibration().pixelHeight;
+			double stackZScale = inputIsMatrix || input == null ? 1.0 : input.getCalibration().pixelDepth;
 			final boolean showTransformedStack = true;
 			final Pair< ImagePlus, double[] > inputAndVoxelSizeBdv = askShowAsBdv( inputIsMatrix ? null : input, permutationArray, sortedTransform, stackXScale, stackYScale, stackZScale, showTransformedStack );
 
@@ -376,7 +408,35 @@ public class ZPositionCorrection implements PlugIn
 		return wrapDouble( normalize( input ) );
 	}
 
+	/**
+	 * @return key that identifies the input files of path or null if path is
+	 *         empty (current image) or cannot be read
+	 */
+	public static SimilarityCache.Key similarityKey( final String path )
+	{
+		if ( path.equals( "" ) )
+			return null;
+		try
+		{
+			return new SimilarityCache.Key().addFiles( Paths.get( path ) );
+		}
+		catch ( final IOException e )
+		{
+			IJ.log( "Not caching similarities of " + path + ": " + e.getMessage() );
+			return null;
+		}
+	}
+
 	public static FloatProcessor calculateSimilarityMatrix( final ImagePlus input, final int range )
+	{
+		return calculateSimilarityMatrix( input, range, null );
+	}
+
+	/**
+	 * @param key
+	 *            identifies the input, similarities are not cached if null
+	 */
+	public static FloatProcessor calculateSimilarityMatrix( final ImagePlus input, final int range, final SimilarityCache.Key key )
 	{
 		final GenericDialog dialog = new GenericDialog( "Choose similiarity calculation method" );
 		dialog.addChoice( "Similarity_method :", new String[] { "NCC (aligned)" }, "NCC (aligned)" );
@@ -396,7 +456,7 @@ public class ZPositionCorrection implements PlugIn
 			// implemented
 			// yet
 		default:
-			similarityCalculationWasSuccessful = invokeNCC( input, range, matrix );
+			similarityCalculationWasSuccessful = invokeNCC( input, range, matrix, key );
 		}
 		if ( similarityCalculationWasSuccessful )
 			return matrix;
@@ -404,6 +464,61 @@ public class ZPositionCorrection implements PlugIn
 			return null;
 	}
 
+	/**
+	 * Calculate the NCC similarity strip of all images in directory with
+	 * {@link StreamingSimilarity}, keeping only range + 1 sections in memory.
+	 *
+	 * @return strip of width 2 * range + 1 and one row per section or null if
+	 *         canceled or failed
+	 */
+	public static FloatProcessor calculateSimilarityStrip( final File directory, final int range )
+	{
+		return calculateSimilarityStrip( directory, range, null );
+	}
+
+	/**
+	 * @param key
+	 *            identifies the input, similarities are not cached if null
+	 */
+	public static FloatProcessor calculateSimilarityStrip( final File directory, final int range, final SimilarityCache.Key key )
+	{
+		final GenericDialog dialog = new GenericDialog( "NCC options" );
+		dialog.addNumericField( "Scale xy before similarity calculation", 1.0, 3 );
+		dialog.showDialog();
+		if ( dialog.wasCanceled() )
+			return null;
+
+		final double xyScale = dialog.getNextNumber();
+
+		try
+		{
+			final NCCKernel kernel = NCCKernel.get();
+			final StreamingSimilarity.SectionSource source = StreamingSimilarity.fromDirectory( directory, xyScale );
+			final SimilarityCache cache = key == null ? null : SimilarityCache.get();
+			if ( cache == null )
+				return new StreamingSimilarity( range, kernel, SharedExecutor.get() ).computeStrip( source );
+			return cache.getStrip(
+					new SimilarityCache.Key( key ).add( "method", "NCC" ).add( "kernel", kernel ).add( "xyScale", xyScale ),
+					source.size(),
+					range,
+					() -> {
+						try
+						{
+							return new StreamingSimilarity( range, kernel, SharedExecutor.get() ).computeStrip( source );
+						}
+						catch ( final IOException e )
+						{
+							throw new ExecutionException( e );
+						}
+					} );
+		}
+		catch ( final IOException | InterruptedException | ExecutionException e )
+		{
+			IJ.handleException( e );
+			return null;
+		}
+	}
+
 	public static void main( final String[] args )
 	{
 		new ImageJ();
@@ -429,6 +544,15 @@ public class ZPositionCorrection implements PlugIn
 	}
 
 	public static boolean invokeNCC( final ImagePlus input, final int range, final FloatProcessor matrix )
+	{
+		return invokeNCC( input, range, matrix, null );
+	}
+
+	/**
+	 * @param key
+	 *            identifies the input, similarities are not cached if null
+	 */
+	public static boolean invokeNCC( final ImagePlus input, final int range, final FloatProcessor matrix, final SimilarityCache.Key key )
 	{
 		new ImageConverter( input ).convertToGray32();
 		final ImageStack stackSource = input.getStack();
@@ -443,40 +567,69 @@ public class ZPositionCorrection implements PlugIn
 
 		final ImageStack stack = xyScale == 1.0 ? stackSource : downsampleStack( stackSource, xyScale );
 		final int height = input.getStackSize();
-		final int nThreads = Runtime.getRuntime().availableProcessors();
-		final ArrayList< Callable< Void > > callables = new ArrayList< Callable< Void > >();
-		for ( int i = 0; i < height; ++i )
-		{
-			final int finalI = i;
-			callables.add( new Callable< Void >()
-			{
-
-				@Override
-				public Void call() throws Exception
-				{
-					for ( int k = finalI + 1; k - finalI <= range && k < height; ++k )
-					{
-						final float val = new RealSumFloatNCC( ( float[] ) stack.getProcessor( finalI + 1 ).getPixels(), ( float[] ) stack.getProcessor( k + 1 ).getPixels() ).call().floatValue();
-						matrix.setf( finalI, k, val );
-						matrix.setf( k, finalI, val );
-					}
-					return null;
-				}
-			} );
-		}
-		final ExecutorService es = Executors.newFixedThreadPool( nThreads );
+		final NCCKernel kernel = NCCKernel.get();
+
+		// per-section sums are shared by all pairs of a section
+		final BandSimilarity< ValuePair< float[], CachedStatisticsFloatNCC.Statistics > > band = new BandSimilarity<>(
+				height,
+				range,
+				z -> {
+					final float[] pixels = ( float[] ) stack.getProcessor( z + 1 ).getPixels();
+					return new ValuePair<>( pixels, kernel.statistics( pixels ) );
+				},
+				( a, b ) -> kernel.ncc( a.getA(), a.getB(), b.getA(), b.getB() ),
+				SharedExecutor.get(),
+				4 * SharedExecutor.getNumberOfThreads() );
+		final SimilarityCache cache = key == null ? null : SimilarityCache.get();
 		try
 		{
-			es.invokeAll( callables );
+			if ( cache == null )
+				computeBand( band, matrix );
+			else
+			{
+				final float[] strip = cache.get(
+						new SimilarityCache.Key( key ).add( "method", "NCC" ).add( "kernel", kernel ).add( "xyScale", xyScale ),
+						height,
+						range,
+						() -> {
+							computeBand( band, matrix );
+							return SimilarityCache.matrixToStrip( ( float[] ) matrix.getPixels(), height, range );
+						} );
+				// matrix is already filled if similarities were not cached
+				final float[] cached = SimilarityCache.stripToMatrix( strip, height, range );
+				for ( int i = 0; i < cached.length; ++i )
+					if ( !Float.isNaN( cached[ i ] ) )
+						matrix.setf( i, cached[ i ] );
+			}
 		}
 		catch ( final InterruptedException e )
 		{
 			e.printStackTrace();
 			return false;
 		}
+		catch ( final CancellationException e )
+		{
+			IJ.log( "Similarity calculation canceled." );
+			return false;
+		}
+		catch ( final ExecutionException e )
+		{
+			IJ.handleException( e );
+			return false;
+		}
 		return true;
 	}
 
+	private static void computeBand( final BandSimilarity< ? > band, final FloatProcessor matrix ) throws InterruptedException, ExecutionException
+	{
+		// escape cancels the similarity calculation
+		IJ.resetEscape();
+		band.compute( ( i, k, similarity ) -> {
+			matrix.setf( i, k, ( float ) similarity );
+			matrix.setf( k, i, ( float ) similarity );
+		}, IJ::escapePressed );
+	}
+
 	public static ImageStack downsampleStack( final ImageStack stackSource, final double xyScale )
 	{
 		final ImageStack stack = new ImageStack( ( int ) Math.round( stackSource.getWidth() * xyScale ), ( int ) Math.round( stackSource.getHeight() * xyScale ) );
@@ -489,6 +642,12 @@ public class ZPositionCorrection implements PlugIn
 		return stack;
 	}
 
+	/**
+	 * Full height x height matrix with NaN off the diagonal for the in-memory
+	 * similarity paths, which show the matrix while it is computed. Use
+	 * {@link StreamingSimilarity} or a {@link StripFile} input for stacks
+	 * whose n x n matrix does not fit into memory.
+	 */
 	public static FloatProcessor createEmptyMatrix( final int height )
 	{
 		final FloatProcessor matrix = new FloatProcessor( height, height );
@@ -535,8 +694,7 @@ public class ZPositionCorrection implements PlugIn
 			final int size )
 	{
 		final ImageStack stack = new ImageStack( width, height, size );
-		final int nThreads = Runtime.getRuntime().availableProcessors();
-		final ExecutorService es = Executors.newFixedThreadPool( nThreads );
+		final ExecutorService es = SharedExecutor.get();
 		final ArrayList< Callable< Void > > callables = new ArrayList< Callable< Void > >();
 		for ( int z = 0; z < size; ++z )
 		{
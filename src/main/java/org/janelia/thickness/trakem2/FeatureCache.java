@@ -0,0 +1,198 @@
+package org.janelia.thickness.trakem2;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.janelia.thickness.plugin.SimilarityCache;
+
+import ij.IJ;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+
+/**
+ * Persistent cache of SIFT features extracted from rendered layers in a
+ * directory. Each file is named after the hash of a
+ * {@link SimilarityCache.Key} that describes the rendered content (see
+ * {@link LayerZPosition#similarityKey(java.util.List, java.awt.Rectangle, double)})
+ * and the SIFT parameters, so features are extracted again whenever patches,
+ * their images, display ranges or transforms change. Features are stored in
+ * a compact binary format:
+ *
+ * <pre>
+ * int magic, int version, int n, int locationLength, int descriptorLength
+ * n times: double[ locationLength ] location, double scale, double orientation, float[ descriptorLength ] descriptor
+ * </pre>
+ *
+ * Cache files are memory-mapped on load. Files that cannot be read are
+ * ignored and overwritten with freshly extracted features.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class FeatureCache
+{
+
+	public static final int MAGIC = 0x5a534654;
+
+	public static final int VERSION = 2;
+
+	private static final int HEADER_BYTES = 5 * Integer.BYTES;
+
+	private final Path directory;
+
+	public FeatureCache( final Path directory )
+	{
+		this.directory = directory;
+	}
+
+	public Path getDirectory()
+	{
+		return directory;
+	}
+
+	/**
+	 * @param extract
+	 *            extracts the features if they are not cached
+	 * @return cached or extracted features
+	 */
+	public ArrayList< Feature > get(
+			final SimilarityCache.Key key,
+			final FloatArray2DSIFT.Param param,
+			final Callable< ArrayList< Feature > > extract ) throws Exception
+	{
+		final Path path = directory.resolve( fileName( key, param ) );
+		if ( Files.isRegularFile( path ) )
+		{
+			try
+			{
+				return read( path );
+			}
+			catch ( final IOException e )
+			{
+				IJ.log( "Ignoring feature cache file " + path + ": " + e.getMessage() );
+			}
+		}
+
+		final ArrayList< Feature > features = extract.call();
+		try
+		{
+			Files.createDirectories( directory );
+			write( path, features );
+		}
+		catch ( final IOException e )
+		{
+			IJ.log( "Could not write feature cache file " + path + ": " + e.getMessage() );
+		}
+		return features;
+	}
+
+	/**
+	 * @param key
+	 *            describes the rendered layer content, field of view and
+	 *            scale
+	 * @return file name that identifies key and all SIFT parameters that
+	 *         affect extracted features
+	 */
+	public static String fileName( final SimilarityCache.Key key, final FloatArray2DSIFT.Param param )
+	{
+		return new SimilarityCache.Key( key )
+				.add( "fdSize", param.fdSize )
+				.add( "fdBins", param.fdBins )
+				.add( "maxOctaveSize", param.maxOctaveSize )
+				.add( "minOctaveSize", param.minOctaveSize )
+				.add( "steps", param.steps )
+				.add( "initialSigma", param.initialSigma )
+				.hash() + ".features";
+	}
+
+	/**
+	 * Write to a temporary file in the same directory first and move to path
+	 * afterwards, so concurrent readers never see partially written files.
+	 */
+	public static void write( final Path path, final List< Feature > features ) throws IOException
+	{
+		final int locationLength = features.isEmpty() ? 0 : features.get( 0 ).location.length;
+		final int descriptorLength = features.isEmpty() ? 0 : features.get( 0 ).descriptor.length;
+
+		final Path tmp = Files.createTempFile( path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp" );
+		try
+		{
+			try (final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ))
+			{
+				out.writeInt( MAGIC );
+				out.writeInt( VERSION );
+				out.writeInt( features.size() );
+				out.writeInt( locationLength );
+				out.writeInt( descriptorLength );
+				for ( final Feature feature : features )
+				{
+					if ( feature.location.length != locationLength || feature.descriptor.length != descriptorLength )
+						throw new IllegalArgumentException( "All features must have the same location and descriptor length." );
+					for ( final double l : feature.location )
+						out.writeDouble( l );
+					out.writeDouble( feature.scale );
+					out.writeDouble( feature.orientation );
+					for ( final float d : feature.descriptor )
+						out.writeFloat( d );
+				}
+			}
+			Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp );
+		}
+	}
+
+	public static ArrayList< Feature > read( final Path path ) throws IOException
+	{
+		try (final FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ))
+		{
+			final long size = channel.size();
+			if ( size < HEADER_BYTES )
+				throw new IOException( path + " is not a feature file." );
+
+			final MappedByteBuffer buffer = channel.map( MapMode.READ_ONLY, 0, size );
+			if ( buffer.getInt() != MAGIC )
+				throw new IOException( path + " is not a feature file." );
+			final int version = buffer.getInt();
+			if ( version != VERSION )
+				throw new IOException( "Unsupported feature file version " + version + " in " + path );
+
+			final int n = buffer.getInt();
+			final int locationLength = buffer.getInt();
+			final int descriptorLength = buffer.getInt();
+			final long featureBytes = ( long ) locationLength * Double.BYTES + 2 * Double.BYTES + ( long ) descriptorLength * Float.BYTES;
+			if ( n < 0 || locationLength < 0 || descriptorLength < 0 || size != HEADER_BYTES + n * featureBytes )
+				throw new IOException( "Unexpected size of feature file " + path );
+
+			final ArrayList< Feature > features = new ArrayList<>( n );
+			for ( int i = 0; i < n; ++i )
+			{
+				final Feature feature = new Feature();
+				feature.location = new double[ locationLength ];
+				buffer.asDoubleBuffer().get( feature.location );
+				buffer.position( buffer.position() + locationLength * Double.BYTES );
+				feature.scale = buffer.getDouble();
+				feature.orientation = buffer.getDouble();
+				feature.descriptor = new float[ descriptorLength ];
+				buffer.asFloatBuffer().get( feature.descriptor );
+				buffer.position( buffer.position() + descriptorLength * Float.BYTES );
+				features.add( feature );
+			}
+			return features;
+		}
+	}
+
+}
@@ -0,0 +1,215 @@
+package org.janelia.thickness.trakem2;
+
+import java.awt.Rectangle;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+
+import ini.trakem2.display.Layer;
+
+/**
+ * Least recently used cache of rendered (flattened) layer images as gray
+ * value float arrays, keyed by layer, field of view and scale, and bounded
+ * by the total size of the cached arrays in bytes. Each image is rendered
+ * exactly once while it is cached, also if it is requested concurrently by
+ * multiple threads: The first request renders, all other requests wait for
+ * that rendering. Rendering can be started ahead of the first request with
+ * {@link #prefetch(Layer, Rectangle, double, Callable, ExecutorService)}.
+ *
+ * Images that are being rendered are never evicted, so the cache may
+ * temporarily exceed its size.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class FlatImageCache
+{
+
+	private static class Key
+	{
+		private final Layer layer;
+
+		private final Rectangle fov;
+
+		private final double scale;
+
+		public Key( final Layer layer, final Rectangle fov, final double scale )
+		{
+			this.layer = layer;
+			this.fov = new Rectangle( fov );
+			this.scale = scale;
+		}
+
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( !( other instanceof Key ) )
+				return false;
+			final Key key = ( Key ) other;
+			return layer == key.layer && fov.equals( key.fov ) && Double.compare( scale, key.scale ) == 0;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ( System.identityHashCode( layer ) * 31 + fov.hashCode() ) * 31 + Double.hashCode( scale );
+		}
+	}
+
+	private static class Entry
+	{
+		private final FutureTask< float[] > image;
+
+		// size in bytes once accounted for, negative while rendering
+		private long bytes = -1;
+
+		public Entry( final Callable< float[] > render )
+		{
+			this.image = new FutureTask<>( render );
+		}
+	}
+
+	private final long maxBytes;
+
+	private long bytes = 0;
+
+	// access order for LRU eviction
+	private final LinkedHashMap< Key, Entry > images = new LinkedHashMap<>( 16, 0.75f, true );
+
+	/**
+	 * @param maxBytes
+	 *            maximum total size of cached images
+	 */
+	public FlatImageCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param render
+	 *            renders the image if not cached, may return null if there is
+	 *            nothing to render
+	 * @return cached or rendered image
+	 */
+	public float[] get( final Layer layer, final Rectangle fov, final double scale, final Callable< float[] > render ) throws InterruptedException, ExecutionException
+	{
+		final Key key = new Key( layer, fov, scale );
+		final Entry entry = request( key, render );
+		// render here if no other thread started rendering yet
+		entry.image.run();
+		try
+		{
+			return entry.image.get();
+		}
+		finally
+		{
+			update( key, entry );
+		}
+	}
+
+	/**
+	 * Start rendering on es if the image is not cached yet.
+	 */
+	public void prefetch( final Layer layer, final Rectangle fov, final double scale, final Callable< float[] > render, final ExecutorService es )
+	{
+		final Key key = new Key( layer, fov, scale );
+		final Entry entry;
+		synchronized ( images )
+		{
+			if ( images.containsKey( key ) )
+				return;
+			entry = request( key, render );
+		}
+		es.execute( () -> {
+			entry.image.run();
+			update( key, entry );
+		} );
+	}
+
+	/**
+	 * @return total size of cached images in bytes
+	 */
+	public long getBytes()
+	{
+		synchronized ( images )
+		{
+			return bytes;
+		}
+	}
+
+	public int size()
+	{
+		synchronized ( images )
+		{
+			return images.size();
+		}
+	}
+
+	public void clear()
+	{
+		synchronized ( images )
+		{
+			images.clear();
+			bytes = 0;
+		}
+	}
+
+	private Entry request( final Key key, final Callable< float[] > render )
+	{
+		synchronized ( images )
+		{
+			Entry entry = images.get( key );
+			if ( entry == null )
+			{
+				entry = new Entry( render );
+				images.put( key, entry );
+			}
+			return entry;
+		}
+	}
+
+	/**
+	 * Account for a completed rendering and evict least recently used images
+	 * if necessary. Failed renderings are removed, so they are retried on the
+	 * next request.
+	 */
+	private void update( final Key key, final Entry entry )
+	{
+		synchronized ( images )
+		{
+			if ( images.get( key ) != entry || !entry.image.isDone() || entry.bytes >= 0 )
+				return;
+
+			final float[] pixels;
+			try
+			{
+				pixels = entry.image.get();
+			}
+			catch ( final InterruptedException | ExecutionException | CancellationException e )
+			{
+				images.remove( key );
+				return;
+			}
+
+			entry.bytes = pixels == null ? 0 : ( long ) pixels.length * Float.BYTES;
+			bytes += entry.bytes;
+
+			// least recently used first
+			for ( final Iterator< Map.Entry< Key, Entry > > it = images.entrySet().iterator(); it.hasNext() && bytes > maxBytes; )
+			{
+				final Map.Entry< Key, Entry > e = it.next();
+				if ( e.getValue().bytes >= 0 && e.getValue() != entry )
+				{
+					bytes -= e.getValue().bytes;
+					it.remove();
+				}
+			}
+		}
+	}
+
+}
@@ -19,19 +19,25 @@ package org.janelia.thickness.trakem2;
 import java.awt.Color;
 import java.awt.Image;
 import java.awt.Rectangle;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.atomic.AtomicInteger;
 
 import org.janelia.thickness.inference.InferFromMatrix;
 import org.janelia.thickness.inference.Options;
 import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.plugin.BandSimilarity;
+import org.janelia.thickness.plugin.CachedStatisticsFloatNCC;
+import org.janelia.thickness.plugin.NCCKernel;
+import org.janelia.thickness.plugin.SharedExecutor;
+import org.janelia.thickness.plugin.SimilarityCache;
 
 import ij.IJ;
 import ij.ImagePlus;
@@ -66,6 +72,7 @@ import mpicbg.trakem2.align.Align.Param;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.imageplus.ImagePlusImgs;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.ValuePair;
 
 /**
  *
@@ -92,8 +99,23 @@ public class LayerZPosition implements TPlugIn
 
 	static protected boolean showMatrix = true;
 
+	/**
+	 * maximum size of rendered layers cached during similarity calculation
+	 */
+	static protected long imageCacheBytes = Runtime.getRuntime().maxMemory() / 4;
+
+	/**
+	 * minimum time between repaints of the similarity matrix
+	 */
+	static protected long previewIntervalMillis = 200;
+
 	static protected Param siftParam = Align.param.clone();
 
+	/**
+	 * cache extracted SIFT features in the storage folder of the project
+	 */
+	static protected boolean cacheFeatures = true;
+
 	final static protected String[] similarityMethods = new String[] { "NCC (aligned)", "SIFT consensus (unaligned)" };
 
 	static protected String similarityMethod = similarityMethods[ 0 ];
@@ -218,6 +240,15 @@ public class LayerZPosition implements TPlugIn
 			return ( int[] ) ip.getPixels();
 	}
 
+	static private float[] getMaskedGray(
+			final Layer layer,
+			final Rectangle fov,
+			final double s )
+	{
+		final int[] argb = getPixels( layer, fov, s );
+		return argb == null ? null : CachedStatisticsFloatNCC.maskedGray( argb );
+	}
+
 	static public void optimize(
 			final List< Layer > layers,
 			final FloatProcessor matrix,
@@ -248,12 +279,13 @@ public class LayerZPosition implements TPlugIn
 
 		IJ.log( Arrays.toString( lut ) );
 
-		final InferFromMatrix inference =
-				new InferFromMatrix( new GlobalCorrelationFitAverage() );
-
 		final RandomAccessibleInterval< FloatType > raMatrix = ImagePlusImgs.from( new ImagePlus( "", matrix ) );
 
-		final double[] lutCorrected = inference.estimateZCoordinates( raMatrix, lut, options );
+		final double[] lutCorrected;
+		try (final InferFromMatrix inference = new InferFromMatrix( new GlobalCorrelationFitAverage() ))
+		{
+			lutCorrected = inference.estimateZCoordinates( raMatrix, lut, options );
+		}
 
 		IJ.log( Arrays.toString( lutCorrected ) );
 
@@ -261,6 +293,10 @@ public class LayerZPosition implements TPlugIn
 			layers.get( i ).setZ( lutCorrected[ i ] / zScale + zMin );
 	}
 
+	/**
+	 * Full size x size matrix of NaN. Layer similarities are shown as a
+	 * matrix while they are computed, so this is O(size^2) memory.
+	 */
 	static private FloatProcessor initMatrix( final int size )
 	{
 		final FloatProcessor ip = new FloatProcessor( size, size );
@@ -277,6 +313,64 @@ public class LayerZPosition implements TPlugIn
 			final Rectangle fov,
 			final int r,
 			final double s ) throws InterruptedException, ExecutionException
+	{
+		final SimilarityCache similarityCache = SimilarityCache.get();
+		if ( similarityCache == null )
+			return calculateNCCSimilarity( layers, fov, r, s, new FlatImageCache( imageCacheBytes ) );
+		return similarityCache.getMatrix(
+				similarityKey( layers, fov, s ).add( "method", "NCC" ).add( "kernel", NCCKernel.get() ),
+				layers.size(),
+				r,
+				() -> calculateNCCSimilarity( layers, fov, r, s, new FlatImageCache( imageCacheBytes ) ) );
+	}
+
+	/**
+	 * Describe the content of layers within fov: ids, image files, display
+	 * ranges and transforms of all visible patches. Layer z is not part of the
+	 * key because it is changed by the optimization.
+	 */
+	static public SimilarityCache.Key similarityKey(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final double s )
+	{
+		final SimilarityCache.Key key = new SimilarityCache.Key().add( "fov", fov ).add( "scale", s );
+		final double[] affine = new double[ 6 ];
+		for ( final Layer layer : layers )
+		{
+			key.add( "layer", layer.getId() );
+			for ( final Displayable d : layer.getDisplayables( Patch.class, fov ) )
+			{
+				if ( !d.isVisible() )
+					continue;
+				final Patch patch = ( Patch ) d;
+				patch.getAffineTransform().getMatrix( affine );
+				key
+						.add( "patch", patch.getId() )
+						.add( "file", patch.getImageFilePath() )
+						.add( "displayRange", patch.getMin() + " " + patch.getMax() )
+						.add( "affine", Arrays.toString( affine ) )
+						.add( "transform", patch.hasCoordinateTransform() ? patch.getCoordinateTransform().toDataString() : "" );
+			}
+		}
+		return key;
+	}
+
+	/**
+	 * Calculate NCC similarities of all pairs of layers within r. Layers are
+	 * rendered through cache, r layers ahead of the first comparison that
+	 * needs them.
+	 *
+	 * @param cache
+	 *            rendered layers, may be reused across calls as long as the
+	 *            layers do not change
+	 */
+	static public FloatProcessor calculateNCCSimilarity(
+			final List< Layer > layers,
+			final Rectangle fov,
+			final int r,
+			final double s,
+			final FlatImageCache cache ) throws InterruptedException, ExecutionException
 	{
 		final FloatProcessor ip = initMatrix( layers.size() );
 
@@ -289,65 +383,52 @@ public class LayerZPosition implements TPlugIn
 		else
 			impMatrix = null;
 
-		for ( int i = 0; i < layers.size(); ++i )
-		{
-			final int fi = i;
-			final Layer li = layers.get( i );
-			final int[] argbi = getPixels( li, fov, s );
-			if ( argbi == null )
-				continue;
-
-			ip.setf( fi, fi, 1.0f );
-
-			final ExecutorService exec = Executors.newFixedThreadPool( Runtime.getRuntime().availableProcessors() );
-			final ArrayList< Future< FloatProcessor > > tasks = new ArrayList< Future< FloatProcessor > >();
-
-			for ( int j = i + 1; j < layers.size() && j <= i + r; ++j )
-			{
-				final int fj = j;
-				final Layer lj = layers.get( j );
-				tasks.add( exec.submit( new Runnable()
-				{
-					@Override
-					public void run()
+		final NCCKernel kernel = NCCKernel.get();
+		final int nThreads = SharedExecutor.getNumberOfThreads();
+		final ExecutorService es = SharedExecutor.get();
+
+		// masked gray values and per-layer sums are computed once per layer
+		// and shared by all pairs of a layer
+		final BandSimilarity< ValuePair< float[], CachedStatisticsFloatNCC.Statistics > > band = new BandSimilarity<>(
+				layers.size(),
+				r,
+				z -> {
+					for ( int k = z + 1; k <= z + r && k < layers.size(); ++k )
 					{
-						final int[] argbj = getPixels( lj, fov, s );
-						if ( argbj != null )
-						{
-							final Double d = new RealSumARGBNCC( argbi, argbj ).call();
-							ip.setf( fi, fj, d.floatValue() );
-							ip.setf( fj, fi, d.floatValue() );
-							if ( impMatrix != null )
-								impMatrix.updateAndDraw();
-						}
+						final Layer layer = layers.get( k );
+						cache.prefetch( layer, fov, s, () -> getMaskedGray( layer, fov, s ), es );
 					}
+					final Layer layer = layers.get( z );
+					final float[] gray = cache.get( layer, fov, s, () -> getMaskedGray( layer, fov, s ) );
+					if ( gray == null )
+						return null;
+					ip.setf( z, z, 1.0f );
+					return new ValuePair<>( gray, kernel.statistics( gray ) );
 				},
-						ip ) );
-			}
+				( a, b ) -> kernel.ncc( a.getA(), a.getB(), b.getA(), b.getB() ),
+				es,
+				4 * nThreads );
 
-			for ( final Future< FloatProcessor > fu : tasks )
+		try (final MatrixPreview preview = new MatrixPreview( impMatrix, MatrixPreview.numberOfPairs( layers.size(), r ), "NCC similarity", previewIntervalMillis ))
+		{
+			// escape cancels the similarity calculation
+			IJ.resetEscape();
+			band.compute( new BandSimilarity.PairConsumer()
 			{
-				try
-				{
-					fu.get();
-				}
-				catch ( final InterruptedException e )
+				@Override
+				public void accept( final int i, final int j, final double similarity )
 				{
-					exec.shutdownNow();
-					throw e;
+					ip.setf( i, j, ( float ) similarity );
+					ip.setf( j, i, ( float ) similarity );
+					preview.update();
 				}
-				catch ( final ExecutionException e )
+
+				@Override
+				public void skip( final int i, final int j )
 				{
-					exec.shutdownNow();
-					throw e;
+					preview.skip();
 				}
-			}
-
-			tasks.clear();
-			exec.shutdown();
-
-			if ( impMatrix != null )
-				impMatrix.updateAndDraw();
+			}, IJ::escapePressed );
 		}
 
 		return ip;
@@ -475,53 +556,38 @@ public class LayerZPosition implements TPlugIn
 		return 0.0;
 	}
 
-	/* extract features */
-	static private List< ArrayList< Feature > > extractFeatures(
+	static public FloatProcessor calculateSIFTSimilarity(
 			final List< Layer > layers,
-			final Param param,
-			final Rectangle fov ) throws InterruptedException
+			final Rectangle fov,
+			final int r,
+			final Param p ) throws InterruptedException, ExecutionException
 	{
-		final double s = Math.min( 1.0, Math.min( param.sift.maxOctaveSize / fov.getWidth(), param.sift.maxOctaveSize / fov.getHeight() ) );
-
-		@SuppressWarnings( "unchecked" )
-		final ArrayList< Feature >[] featuresArray = new ArrayList[ layers.size() ];
-		final AtomicInteger i = new AtomicInteger( 0 );
-		final ArrayList< Thread > threads = new ArrayList< Thread >();
-		for ( int t = 0; t < Runtime.getRuntime().availableProcessors(); ++t )
-		{
-			final Thread thread = new Thread(
-					new Runnable()
-					{
-						@Override
-						public void run()
-						{
-							final FloatArray2DSIFT sift = new FloatArray2DSIFT( param.sift );
-							final SIFT ijSIFT = new SIFT( sift );
-							for ( int k = i.getAndIncrement(); k < layers.size(); k = i.getAndIncrement() )
-							{
-								final ArrayList< Feature > features = extract( ijSIFT, getColorProcessor( layers.get( k ), fov, s ) );
-								IJ.log( k + ": " + features.size() + " features extracted" );
-								featuresArray[ k ] = features;
-							}
-						}
-					} );
-			threads.add( thread );
-			thread.start();
-		}
-		for ( final Thread t : threads )
-			t.join();
+		return calculateSIFTSimilarity( layers, fov, r, p, cacheFeatures ? featureCache( layers ) : null );
+	}
 
-		return Arrays.asList( featuresArray );
+	/**
+	 * @return cache in the storage folder of the project of layers or null
+	 *         if the project has no storage folder
+	 */
+	static public FeatureCache featureCache( final List< Layer > layers )
+	{
+		if ( layers.isEmpty() )
+			return null;
+		final String storageFolder = layers.get( 0 ).getProject().getLoader().getStorageFolder();
+		return storageFolder == null ? null : new FeatureCache( Paths.get( storageFolder, "z_spacing.features" ) );
 	}
 
+	/**
+	 * @param cache
+	 *            features are extracted for every layer if null
+	 */
 	static public FloatProcessor calculateSIFTSimilarity(
 			final List< Layer > layers,
 			final Rectangle fov,
 			final int r,
-			final Param p ) throws InterruptedException, ExecutionException
+			final Param p,
+			final FeatureCache cache ) throws InterruptedException, ExecutionException
 	{
-		final List< ArrayList< Feature > > featuresList = extractFeatures( layers, p, fov );
-
 		final FloatProcessor ip = initMatrix( layers.size() );
 
 		final ImagePlus impMatrix;
@@ -533,52 +599,56 @@ public class LayerZPosition implements TPlugIn
 		else
 			impMatrix = null;
 
+		final double s = Math.min( 1.0, Math.min( p.sift.maxOctaveSize / fov.getWidth(), p.sift.maxOctaveSize / fov.getHeight() ) );
+		final int nThreads = SharedExecutor.getNumberOfThreads();
+		final ThreadLocal< SIFT > ijSIFT = ThreadLocal.withInitial( () -> new SIFT( new FloatArray2DSIFT( p.sift ) ) );
+
+		// layers are compared to the r - 1 following layers
+		final int range = Math.max( r - 1, 0 );
+
+		// features are extracted by the first pair that needs them and
+		// released once all pairs of a layer are matched
+		final BandSimilarity< ArrayList< Feature > > band = new BandSimilarity<>(
+				layers.size(),
+				range,
+				z -> {
+					final Layer layer = layers.get( z );
+					final Callable< ArrayList< Feature > > extract = () -> {
+						final ArrayList< Feature > features = extract( ijSIFT.get(), getColorProcessor( layer, fov, s ) );
+						IJ.log( z + ": " + features.size() + " features extracted" );
+						return features;
+					};
+					final ArrayList< Feature > features = cache == null ? extract.call() : cache.get( similarityKey( Collections.singletonList( layer ), fov, s ), p.sift, extract );
+					if ( features.size() == 0 )
+						return null;
+					ip.setf( z, z, 1.0f );
+					return features;
+				},
+				( f1, f2 ) -> match( p, f1, f2 ),
+				SharedExecutor.get(),
+				4 * nThreads );
+
 		/* match */
-		for ( int i = 0; i < layers.size(); ++i )
+		try (final MatrixPreview preview = new MatrixPreview( impMatrix, MatrixPreview.numberOfPairs( layers.size(), range ), "SIFT similarity", previewIntervalMillis ))
 		{
-			final int fi = i;
-			final ArrayList< Feature > f1 = featuresList.get( fi );
-			if ( f1 == null || f1.size() == 0 )
-				continue;
-
-			ip.setf( fi, fi, 1.0f );
-
-			final AtomicInteger j = new AtomicInteger( fi + 1 );
-			final ArrayList< Thread > threads = new ArrayList< Thread >();
-			for ( int t = 0; t < Runtime.getRuntime().availableProcessors(); ++t )
+			// escape cancels the similarity calculation
+			IJ.resetEscape();
+			band.compute( new BandSimilarity.PairConsumer()
 			{
-				final Thread thread = new Thread(
-						new Runnable()
-						{
-							@Override
-							public void run()
-							{
-								for ( int k = j.getAndIncrement(); k < layers.size() && k < fi + radius; k = j.getAndIncrement() )
-								{
-									final ArrayList< Feature > f2 = featuresList.get( k );
-									if ( f2 == null || f2.size() == 0 )
-									{
-										if ( impMatrix != null )
-											impMatrix.updateAndDraw();
-										continue;
-									}
-
-									final float inlierRatio = ( float ) match( p, f1, f2 );
-									ip.setf( fi, k, inlierRatio );
-									ip.setf( k, fi, inlierRatio );
-									if ( impMatrix != null )
-										impMatrix.updateAndDraw();
-								}
-							}
-						} );
-				threads.add( thread );
-				thread.start();
-			}
-			for ( final Thread t : threads )
-				t.join();
+				@Override
+				public void accept( final int i, final int j, final double similarity )
+				{
+					ip.setf( i, j, ( float ) similarity );
+					ip.setf( j, i, ( float ) similarity );
+					preview.update();
+				}
 
-			if ( impMatrix != null )
-				impMatrix.updateAndDraw();
+				@Override
+				public void skip( final int i, final int j )
+				{
+					preview.skip();
+				}
+			}, IJ::escapePressed );
 		}
 
 		return ip;
@@ -617,6 +687,7 @@ public class LayerZPosition implements TPlugIn
 		siftParam.addSIFTFields( gd );
 		gd.addMessage( "Consensus Filter :" );
 		siftParam.addGeometricConsensusFilterFields( gd );
+		gd.addCheckbox( "cache_features_on_disk", cacheFeatures );
 
 		gd.showDialog();
 		if ( gd.wasCanceled() )
@@ -624,6 +695,7 @@ public class LayerZPosition implements TPlugIn
 
 		siftParam.readSIFTFields( gd );
 		siftParam.readGeometricConsensusFilterFields( gd );
+		cacheFeatures = gd.getNextBoolean();
 
 		runSIFT( layers, fov, radius, siftParam.clone() );
 	}
@@ -677,6 +749,10 @@ public class LayerZPosition implements TPlugIn
 		{
 			Utils.log( "Layer Z-Spacing Correction interrupted." );
 		}
+		catch ( final CancellationException e )
+		{
+			Utils.log( "Layer Z-Spacing Correction canceled." );
+		}
 		catch ( final ExecutionException e )
 		{
 			Utils.log( "Layer Z-Spacing Correction ExecutiuonException occurred:" );
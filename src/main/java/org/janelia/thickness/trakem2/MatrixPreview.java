@@ -0,0 +1,151 @@
+package org.janelia.thickness.trakem2;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ij.IJ;
+import ij.ImagePlus;
+
+/**
+ * Throttled preview of a similarity matrix that is filled by worker
+ * threads. Workers only count completed pairs with {@link #update()} and
+ * {@link #skip()}. A single background thread repaints the matrix (if it
+ * changed) and reports progress and estimated remaining time at most once
+ * per interval, so workers never wait for repaints.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class MatrixPreview implements AutoCloseable
+{
+
+	private final ImagePlus imp;
+
+	private final long total;
+
+	private final String name;
+
+	private final AtomicLong done = new AtomicLong( 0 );
+
+	private final AtomicBoolean changed = new AtomicBoolean( false );
+
+	private final long startTime;
+
+	private final ScheduledExecutorService scheduler;
+
+	/**
+	 * @param imp
+	 *            matrix to repaint, no repaints if null
+	 * @param total
+	 *            number of pairs
+	 * @param name
+	 *            shown in status messages
+	 * @param intervalMillis
+	 *            minimum time between repaints
+	 */
+	public MatrixPreview( final ImagePlus imp, final long total, final String name, final long intervalMillis )
+	{
+		this.imp = imp;
+		this.total = total;
+		this.name = name;
+		this.startTime = System.nanoTime();
+		this.scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+			final Thread thread = new Thread( r, "z-spacing-matrix-preview" );
+			thread.setDaemon( true );
+			return thread;
+		} );
+		this.scheduler.scheduleWithFixedDelay( this::publish, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS );
+	}
+
+	/**
+	 * A pair was computed and written into the matrix.
+	 */
+	public void update()
+	{
+		changed.set( true );
+		done.incrementAndGet();
+	}
+
+	/**
+	 * A pair was skipped, the matrix did not change.
+	 */
+	public void skip()
+	{
+		done.incrementAndGet();
+	}
+
+	public long getDone()
+	{
+		return done.get();
+	}
+
+	/**
+	 * Stop background updates, repaint and report progress a final time.
+	 */
+	@Override
+	public void close()
+	{
+		scheduler.shutdownNow();
+		try
+		{
+			scheduler.awaitTermination( 1, TimeUnit.SECONDS );
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		changed.set( true );
+		publish();
+	}
+
+	private void publish()
+	{
+		if ( imp != null && changed.getAndSet( false ) )
+			imp.updateAndDraw();
+
+		final long d = done.get();
+		IJ.showProgress( ( int ) Math.min( d, Integer.MAX_VALUE ), ( int ) Math.min( Math.max( total, 1 ), Integer.MAX_VALUE ) );
+		IJ.showStatus( status( d, total, System.nanoTime() - startTime ) );
+	}
+
+	/**
+	 * @return "name: done/total pairs, elapsed, remaining" with remaining
+	 *         time extrapolated from the average time per pair so far
+	 */
+	public String status( final long done, final long total, final long elapsedNanos )
+	{
+		final StringBuilder sb = new StringBuilder( name )
+				.append( ": " )
+				.append( done )
+				.append( "/" )
+				.append( total )
+				.append( " pairs, " )
+				.append( formatSeconds( elapsedNanos * 1e-9 ) )
+				.append( " elapsed" );
+		if ( done > 0 && done < total )
+			sb.append( ", " ).append( formatSeconds( elapsedNanos * 1e-9 * ( total - done ) / done ) ).append( " remaining" );
+		return sb.toString();
+	}
+
+	/**
+	 * @return number of pairs ( i, j ) with 0 &lt; j - i &lt;= range of n
+	 *         sections
+	 */
+	public static long numberOfPairs( final int n, final int range )
+	{
+		long count = 0;
+		for ( int i = 0; i < n; ++i )
+			count += Math.max( Math.min( range, n - 1 - i ), 0 );
+		return count;
+	}
+
+	private static String formatSeconds( final double seconds )
+	{
+		final long s = Math.round( seconds );
+		return String.format( "%d:%02d:%02d", s / 3600, ( s / 60 ) % 60, s % 60 );
+	}
+
+}
@@ -0,0 +1,298 @@
+package org.janelia.utility;
+
+import java.util.Arrays;
+
+import net.imglib2.Cursor;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.view.Views;
+
+/**
+ * Band of a symmetric n x n similarity matrix stored as a flat
+ * <code>double[]</code> of n x (2 * range + 1) entries. Row y holds the
+ * entries of matrix row y for columns y - range, ..., y + range, i.e. the
+ * memory layout of the strips produced by
+ * {@link MatrixStripConversion#matrixToStrip(RandomAccessibleInterval, int)}.
+ *
+ * All accessors take matrix coordinates (x, y). Entries outside of the matrix
+ * or the band are NaN. Permuted accessors take coordinates in permuted
+ * (sorted) order and a permutation that maps permuted to original indices.
+ *
+ * The interpolating accessors reproduce the arithmetic of the imglib2
+ * NLinear and nearest neighbor interpolators on a NaN extended (or border
+ * extended) matrix, so that inference on a strip yields the same numbers as
+ * inference on the corresponding view.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class DoubleStrip
+{
+
+	private final double[] data;
+
+	private final int size;
+
+	private final int range;
+
+	private final int width;
+
+	public DoubleStrip( final int size, final int range )
+	{
+		this( new double[ size * ( 2 * range + 1 ) ], size, range );
+		Arrays.fill( data, Double.NaN );
+	}
+
+	public DoubleStrip( final double[] data, final int size, final int range )
+	{
+		super();
+		this.data = data;
+		this.size = size;
+		this.range = range;
+		this.width = 2 * range + 1;
+		assert data.length == size * width: "Data length does not match strip dimensions.";
+	}
+
+	public double[] getData()
+	{
+		return data;
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public int range()
+	{
+		return range;
+	}
+
+	public int width()
+	{
+		return width;
+	}
+
+	public DoubleStrip copy()
+	{
+		return new DoubleStrip( data.clone(), size, range );
+	}
+
+	public void set( final DoubleStrip other )
+	{
+		System.arraycopy( other.data, 0, data, 0, data.length );
+	}
+
+	/**
+	 * @return true if (x, y) lies within the matrix and within the band.
+	 */
+	public boolean contains( final long x, final long y )
+	{
+		final long dx = x - y;
+		return x >= 0 && x < size && y >= 0 && y < size && dx >= -range && dx <= range;
+	}
+
+	/**
+	 * Index of matrix entry (x, y) in {@link #getData()}. (x, y) must be
+	 * contained in the strip.
+	 */
+	public int index( final int x, final int y )
+	{
+		return y * width + x - y + range;
+	}
+
+	public double get( final long x, final long y )
+	{
+		return contains( x, y ) ? data[ index( ( int ) x, ( int ) y ) ] : Double.NaN;
+	}
+
+	/**
+	 * Set matrix entry (x, y). Entries outside of the band are silently
+	 * ignored, just as writes into the out of bounds extension of a strip
+	 * view.
+	 */
+	public void set( final long x, final long y, final double value )
+	{
+		if ( contains( x, y ) )
+			data[ index( ( int ) x, ( int ) y ) ] = value;
+	}
+
+	/**
+	 * @param x
+	 *            column in permuted order
+	 * @param y
+	 *            row in permuted order
+	 * @param permutation
+	 *            maps permuted indices to original indices
+	 */
+	public double getPermuted( final long x, final long y, final int[] permutation )
+	{
+		if ( x < 0 || x >= size || y < 0 || y >= size )
+			return Double.NaN;
+		return get( permutation[ ( int ) x ], permutation[ ( int ) y ] );
+	}
+
+	public void setPermuted( final long x, final long y, final int[] permutation, final double value )
+	{
+		if ( x < 0 || x >= size || y < 0 || y >= size )
+			return;
+		set( permutation[ ( int ) x ], permutation[ ( int ) y ], value );
+	}
+
+	/**
+	 * Read entry (x, y) of the matrix extended by its border, i.e. x and y are
+	 * clamped to the matrix. Entries that are off the band are clamped to the
+	 * band border of row y.
+	 */
+	public double getBorder( final long x, final long y )
+	{
+		final long yc = clamp( y, 0, size - 1 );
+		final long xc = clamp( clamp( x, 0, size - 1 ), yc - range, yc + range );
+		return data[ ( int ) ( yc * width + xc - yc + range ) ];
+	}
+
+	/**
+	 * Linear interpolation of the NaN extended, permuted matrix at (x, y).
+	 * Evaluation order and weights are the same as in imglib2's
+	 * NLinearInterpolator2D, i.e. a NaN in any of the four contributing
+	 * entries results in NaN.
+	 */
+	public double interpolateLinearPermuted( final double x, final double y, final int[] permutation )
+	{
+		final long x0 = floor( x );
+		final long y0 = floor( y );
+		final double w0 = x - x0;
+		final double w0Inv = 1.0d - w0;
+		final double w1 = y - y0;
+		final double w1Inv = 1.0d - w1;
+		double acc = getPermuted( x0, y0, permutation ) * ( w0Inv * w1Inv );
+		acc += getPermuted( x0 + 1, y0, permutation ) * ( w0 * w1Inv );
+		acc += getPermuted( x0 + 1, y0 + 1, permutation ) * ( w0 * w1 );
+		acc += getPermuted( x0, y0 + 1, permutation ) * ( w0Inv * w1 );
+		return acc;
+	}
+
+	/**
+	 * Nearest neighbor interpolation of the NaN extended, permuted matrix at
+	 * (x, y).
+	 */
+	public double interpolateNearestNeighborPermuted( final double x, final double y, final int[] permutation )
+	{
+		return getPermuted( round( x ), round( y ), permutation );
+	}
+
+	/**
+	 * Linear interpolation of the border extended (not permuted) matrix at
+	 * (x, y). See {@link #getBorder(long, long)}.
+	 */
+	public double interpolateLinearBorder( final double x, final double y )
+	{
+		final long x0 = floor( x );
+		final long y0 = floor( y );
+		final double w0 = x - x0;
+		final double w0Inv = 1.0d - w0;
+		final double w1 = y - y0;
+		final double w1Inv = 1.0d - w1;
+		double acc = getBorder( x0, y0 ) * ( w0Inv * w1Inv );
+		acc += getBorder( x0 + 1, y0 ) * ( w0 * w1Inv );
+		acc += getBorder( x0 + 1, y0 + 1 ) * ( w0 * w1 );
+		acc += getBorder( x0, y0 + 1 ) * ( w0Inv * w1 );
+		return acc;
+	}
+
+	/**
+	 * Linear interpolation of a NaN extended array, equivalent to imglib2's
+	 * NLinearInterpolator1D.
+	 */
+	public static double interpolateLinear( final double[] array, final double x )
+	{
+		final long x0 = floor( x );
+		final double w0 = x - x0;
+		return get( array, x0 ) * ( 1.0d - w0 ) + get( array, x0 + 1 ) * w0;
+	}
+
+	/**
+	 * Wrap the strip data as a (2 * range + 1) x n image. Changes to the image
+	 * are reflected in the strip and vice versa.
+	 */
+	public ArrayImg< DoubleType, DoubleArray > asImg()
+	{
+		return ArrayImgs.doubles( data, width, size );
+	}
+
+	/**
+	 * Wrap the strip data as an n x n matrix view, NaN outside of the band.
+	 */
+	public RandomAccessibleInterval< DoubleType > asMatrix()
+	{
+		return MatrixStripConversion.stripToMatrix( asImg(), new DoubleType( Double.NaN ) );
+	}
+
+	/**
+	 * Copy the band of a matrix into a new strip. Entries outside of the
+	 * matrix are NaN.
+	 */
+	public static < T extends RealType< T > > DoubleStrip fromMatrix( final RandomAccessibleInterval< T > matrix, final int range )
+	{
+		final DoubleStrip strip = new DoubleStrip( ( int ) matrix.dimension( 1 ), range );
+		final double[] data = strip.data;
+		final Cursor< T > c = Views.flatIterable( MatrixStripConversion.matrixToStrip( matrix, range ) ).cursor();
+		for ( int i = 0; c.hasNext(); ++i )
+			data[ i ] = c.next().getRealDouble();
+		return strip;
+	}
+
+	/**
+	 * Copy the band of a matrix into a new strip. Entries outside of the
+	 * matrix are read from the nearest border of the matrix.
+	 */
+	public static < T extends RealType< T > > DoubleStrip fromMatrixExtendBorder( final RandomAccessibleInterval< T > matrix, final int range )
+	{
+		final int size = ( int ) matrix.dimension( 1 );
+		final DoubleStrip strip = new DoubleStrip( size, range );
+		final double[] data = strip.data;
+		final RandomAccess< T > access = Views.extendBorder( matrix ).randomAccess();
+		for ( int y = 0, i = 0; y < size; ++y )
+		{
+			access.setPosition( y, 1 );
+			for ( int x = y - range; x <= y + range; ++x, ++i )
+			{
+				access.setPosition( x, 0 );
+				data[ i ] = access.get().getRealDouble();
+			}
+		}
+		return strip;
+	}
+
+	private static double get( final double[] array, final long x )
+	{
+		return x >= 0 && x < array.length ? array[ ( int ) x ] : Double.NaN;
+	}
+
+	private static long clamp( final long value, final long min, final long max )
+	{
+		return value < min ? min : value > max ? max : value;
+	}
+
+	/**
+	 * Same as floor in imglib2's net.imglib2.position.transform.Floor.
+	 */
+	private static long floor( final double r )
+	{
+		return r < 0 ? ( long ) r - 1 : ( long ) r;
+	}
+
+	/**
+	 * Same as round in imglib2's net.imglib2.position.transform.Round.
+	 */
+	private static long round( final double r )
+	{
+		return r < 0 ? ( long ) ( r - 0.5 ) : ( long ) ( r + 0.5 );
+	}
+
+}
@@ -0,0 +1,420 @@
+package org.janelia.utility;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converters;
+import net.imglib2.converter.RealDoubleConverter;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.DoubleAccess;
+import net.imglib2.img.basictypeaccess.FloatAccess;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Fraction;
+import net.imglib2.view.Views;
+
+/**
+ * Binary file format for similarity strips, i.e. only the band of width 2 *
+ * range + 1 of an n x n similarity matrix, see {@link MatrixStripConversion}:
+ *
+ * <pre>
+ * int magic, int version, int type (0: float, 1: double), int range, long n, 8 bytes padding
+ * n rows of 2 * range + 1 values, row y holds the similarities of y and y + x - range
+ * </pre>
+ *
+ * The header is padded to 32 bytes so values are aligned. Strips that are
+ * computed row by row are written with a {@link Writer}. Strip files are
+ * opened as {@link ArrayImg}s backed by memory-mapped file regions instead
+ * of heap arrays, so opening a strip neither reads it nor expands it into
+ * an n x n matrix. Inference still keeps a band-sized working copy of the
+ * scaled strip (and of the input strip if
+ * {@link org.janelia.thickness.inference.Options#usePrimitiveStrip} is
+ * set), i.e. O(n * range) heap memory. Use
+ * {@link MatrixStripConversion#stripToMatrix(RandomAccessibleInterval)} for a
+ * matrix view.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class StripFile
+{
+
+	public static final int MAGIC = 0x5a535452;
+
+	public static final int VERSION = 1;
+
+	public static final int FLOAT = 0;
+
+	public static final int DOUBLE = 1;
+
+	public static final int HEADER_BYTES = 32;
+
+	// a single mapping cannot exceed Integer.MAX_VALUE bytes
+	private static final int CHUNK_BYTES = 1 << 30;
+
+	public static class Header
+	{
+		public final int type;
+
+		public final int range;
+
+		public final long n;
+
+		public Header( final int type, final int range, final long n )
+		{
+			this.type = type;
+			this.range = range;
+			this.n = n;
+		}
+
+		public int width()
+		{
+			return 2 * range + 1;
+		}
+
+		public long size()
+		{
+			return n * width();
+		}
+
+		public int bytesPerValue()
+		{
+			return type == DOUBLE ? Double.BYTES : Float.BYTES;
+		}
+	}
+
+	/**
+	 * {@link FloatAccess} for a mapped file region split into chunks of
+	 * {@link StripFile#CHUNK_BYTES} bytes.
+	 */
+	public static class MappedFloatAccess implements FloatAccess
+	{
+		private static final int SHIFT = Integer.numberOfTrailingZeros( CHUNK_BYTES / Float.BYTES );
+
+		private static final int MASK = ( 1 << SHIFT ) - 1;
+
+		private final FloatBuffer[] chunks;
+
+		public MappedFloatAccess( final FileChannel channel, final MapMode mode, final long offset, final long size ) throws IOException
+		{
+			this.chunks = new FloatBuffer[ ( int ) ( ( size + MASK ) >>> SHIFT ) ];
+			for ( int i = 0; i < chunks.length; ++i )
+			{
+				final long start = ( long ) i << SHIFT;
+				final long length = Math.min( size - start, 1L << SHIFT );
+				chunks[ i ] = channel.map( mode, offset + start * Float.BYTES, length * Float.BYTES ).asFloatBuffer();
+			}
+		}
+
+		@Override
+		public float getValue( final int index )
+		{
+			return chunks[ index >>> SHIFT ].get( index & MASK );
+		}
+
+		@Override
+		public void setValue( final int index, final float value )
+		{
+			chunks[ index >>> SHIFT ].put( index & MASK, value );
+		}
+	}
+
+	/**
+	 * {@link DoubleAccess} for a mapped file region split into chunks of
+	 * {@link StripFile#CHUNK_BYTES} bytes.
+	 */
+	public static class MappedDoubleAccess implements DoubleAccess
+	{
+		private static final int SHIFT = Integer.numberOfTrailingZeros( CHUNK_BYTES / Double.BYTES );
+
+		private static final int MASK = ( 1 << SHIFT ) - 1;
+
+		private final DoubleBuffer[] chunks;
+
+		public MappedDoubleAccess( final FileChannel channel, final MapMode mode, final long offset, final long size ) throws IOException
+		{
+			this.chunks = new DoubleBuffer[ ( int ) ( ( size + MASK ) >>> SHIFT ) ];
+			for ( int i = 0; i < chunks.length; ++i )
+			{
+				final long start = ( long ) i << SHIFT;
+				final long length = Math.min( size - start, 1L << SHIFT );
+				chunks[ i ] = channel.map( mode, offset + start * Double.BYTES, length * Double.BYTES ).asDoubleBuffer();
+			}
+		}
+
+		@Override
+		public double getValue( final int index )
+		{
+			return chunks[ index >>> SHIFT ].get( index & MASK );
+		}
+
+		@Override
+		public void setValue( final int index, final double value )
+		{
+			chunks[ index >>> SHIFT ].put( index & MASK, value );
+		}
+	}
+
+	/**
+	 * Write float strip of n rows row by row. The file appears at path only
+	 * after all n rows have been written and the writer is closed.
+	 */
+	public static class Writer implements Closeable
+	{
+		private final Path path;
+
+		private final Path tmp;
+
+		private final Header header;
+
+		private final DataOutputStream out;
+
+		private long nRows = 0;
+
+		public Writer( final Path path, final long n, final int range ) throws IOException
+		{
+			this.path = path;
+			this.header = new Header( FLOAT, range, n );
+			this.tmp = createTempFile( path );
+			try
+			{
+				this.out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) );
+				writeHeader( out, header );
+			}
+			catch ( final IOException e )
+			{
+				Files.deleteIfExists( tmp );
+				throw e;
+			}
+		}
+
+		/**
+		 * @param y
+		 *            rows must be written in order 0, 1, ..., n - 1
+		 */
+		public void write( final long y, final float[] row ) throws IOException
+		{
+			if ( y != nRows || y >= header.n )
+				throw new IOException( "Expected row " + nRows + " of " + header.n + " but got row " + y + " for " + path );
+			if ( row.length != header.width() )
+				throw new IllegalArgumentException( "Row of length " + row.length + " does not match range=" + header.range );
+			for ( final float value : row )
+				out.writeFloat( value );
+			++nRows;
+		}
+
+		/**
+		 * Move the file to its destination if all rows were written, discard
+		 * it otherwise.
+		 */
+		@Override
+		public void close() throws IOException
+		{
+			try
+			{
+				out.close();
+				if ( nRows != header.n )
+					throw new IOException( "Only " + nRows + " of " + header.n + " rows written to " + path );
+				Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+			}
+			finally
+			{
+				Files.deleteIfExists( tmp );
+			}
+		}
+	}
+
+	public static void write( final Path path, final float[] strip, final long n, final int range ) throws IOException
+	{
+		final Header header = new Header( FLOAT, range, n );
+		if ( strip.length != header.size() )
+			throw new IllegalArgumentException( "Strip of length " + strip.length + " does not match n=" + n + " and range=" + range );
+		write( path, header, out -> {
+			for ( final float value : strip )
+				out.writeFloat( value );
+		} );
+	}
+
+	/**
+	 * Write strip of width 2 * range + 1 as float or double values.
+	 */
+	public static < T extends RealType< T > > void write( final Path path, final RandomAccessibleInterval< T > strip, final int type ) throws IOException
+	{
+		if ( strip.numDimensions() != 2 || strip.dimension( 0 ) % 2 != 1 )
+			throw new IllegalArgumentException( "Strip must be two-dimensional and of odd width." );
+		final Header header = new Header( type, ( int ) ( strip.dimension( 0 ) / 2 ), strip.dimension( 1 ) );
+		write( path, header, out -> {
+			for ( final T t : Views.flatIterable( strip ) )
+				if ( type == DOUBLE )
+					out.writeDouble( t.getRealDouble() );
+				else
+					out.writeFloat( t.getRealFloat() );
+		} );
+	}
+
+	public static Header readHeader( final Path path ) throws IOException
+	{
+		try (final FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ))
+		{
+			return readHeader( path, channel );
+		}
+	}
+
+	/**
+	 * Read strip into a heap array.
+	 */
+	public static float[] readFloats( final Path path ) throws IOException
+	{
+		try (final FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ))
+		{
+			final Header header = readHeader( path, channel );
+			checkType( path, header, FLOAT );
+			final MappedFloatAccess access = new MappedFloatAccess( channel, MapMode.READ_ONLY, HEADER_BYTES, header.size() );
+			final float[] strip = new float[ ( int ) header.size() ];
+			for ( int i = 0; i < strip.length; ++i )
+				strip[ i ] = access.getValue( i );
+			return strip;
+		}
+	}
+
+	/**
+	 * @param writable
+	 *            changes are written to the file if true
+	 * @return strip of float values backed by the file
+	 */
+	public static ArrayImg< FloatType, MappedFloatAccess > openFloat( final Path path, final boolean writable ) throws IOException
+	{
+		try (final FileChannel channel = channel( path, writable ))
+		{
+			final Header header = readHeader( path, channel );
+			checkType( path, header, FLOAT );
+			final MappedFloatAccess access = new MappedFloatAccess( channel, writable ? MapMode.READ_WRITE : MapMode.READ_ONLY, HEADER_BYTES, header.size() );
+			final ArrayImg< FloatType, MappedFloatAccess > img = new ArrayImg<>( access, new long[] { header.width(), header.n }, new Fraction() );
+			img.setLinkedType( new FloatType( img ) );
+			return img;
+		}
+	}
+
+	/**
+	 * @param writable
+	 *            changes are written to the file if true
+	 * @return strip of double values backed by the file
+	 */
+	public static ArrayImg< DoubleType, MappedDoubleAccess > openDouble( final Path path, final boolean writable ) throws IOException
+	{
+		try (final FileChannel channel = channel( path, writable ))
+		{
+			final Header header = readHeader( path, channel );
+			checkType( path, header, DOUBLE );
+			final MappedDoubleAccess access = new MappedDoubleAccess( channel, writable ? MapMode.READ_WRITE : MapMode.READ_ONLY, HEADER_BYTES, header.size() );
+			final ArrayImg< DoubleType, MappedDoubleAccess > img = new ArrayImg<>( access, new long[] { header.width(), header.n }, new Fraction() );
+			img.setLinkedType( new DoubleType( img ) );
+			return img;
+		}
+	}
+
+	/**
+	 * @return read-only strip backed by the file as double values,
+	 *         independent of the stored type
+	 */
+	public static RandomAccessibleInterval< DoubleType > openAsDouble( final Path path ) throws IOException
+	{
+		if ( readHeader( path ).type == DOUBLE )
+			return openDouble( path, false );
+		return Converters.convert( ( RandomAccessibleInterval< FloatType > ) openFloat( path, false ), new RealDoubleConverter<>(), new DoubleType() );
+	}
+
+	private static FileChannel channel( final Path path, final boolean writable ) throws IOException
+	{
+		return writable ? FileChannel.open( path, StandardOpenOption.READ, StandardOpenOption.WRITE ) : FileChannel.open( path, StandardOpenOption.READ );
+	}
+
+	private static Header readHeader( final Path path, final FileChannel channel ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.allocate( HEADER_BYTES );
+		while ( buffer.hasRemaining() )
+			if ( channel.read( buffer, buffer.position() ) < 0 )
+				throw new IOException( path + " is not a strip file." );
+		buffer.flip();
+
+		if ( buffer.getInt() != MAGIC )
+			throw new IOException( path + " is not a strip file." );
+		final int version = buffer.getInt();
+		if ( version != VERSION )
+			throw new IOException( "Unsupported strip file version " + version + " in " + path );
+		final int type = buffer.getInt();
+		final int range = buffer.getInt();
+		final long n = buffer.getLong();
+		if ( type != FLOAT && type != DOUBLE || range < 0 || n < 0 )
+			throw new IOException( "Invalid header in strip file " + path );
+
+		final Header header = new Header( type, range, n );
+		if ( header.size() > Integer.MAX_VALUE )
+			throw new IOException( "Strip in " + path + " has more than " + Integer.MAX_VALUE + " values." );
+		if ( channel.size() != HEADER_BYTES + header.size() * header.bytesPerValue() )
+			throw new IOException( "Unexpected size of strip file " + path );
+		return header;
+	}
+
+	private static void checkType( final Path path, final Header header, final int type ) throws IOException
+	{
+		if ( header.type != type )
+			throw new IOException( path + " holds " + ( header.type == DOUBLE ? "double" : "float" ) + " values." );
+	}
+
+	private interface Values
+	{
+		void write( DataOutputStream out ) throws IOException;
+	}
+
+	/**
+	 * Write to a temporary file in the same directory first and move to path
+	 * afterwards, so readers never see partially written files.
+	 */
+	private static void write( final Path path, final Header header, final Values values ) throws IOException
+	{
+		final Path tmp = createTempFile( path );
+		try
+		{
+			try (final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( Files.newOutputStream( tmp ) ) ))
+			{
+				writeHeader( out, header );
+				values.write( out );
+			}
+			Files.move( tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		finally
+		{
+			Files.deleteIfExists( tmp );
+		}
+	}
+
+	private static Path createTempFile( final Path path ) throws IOException
+	{
+		return Files.createTempFile( path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp" );
+	}
+
+	private static void writeHeader( final DataOutputStream out, final Header header ) throws IOException
+	{
+		out.writeInt( MAGIC );
+		out.writeInt( VERSION );
+		out.writeInt( header.type );
+		out.writeInt( header.range );
+		out.writeLong( header.n );
+		out.writeLong( 0 );
+	}
+
+}
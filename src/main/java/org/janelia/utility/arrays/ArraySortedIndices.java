@@ -1,7 +1,6 @@
 package org.janelia.utility.arrays;
 
 import java.util.Arrays;
-import java.util.Map.Entry;
 import java.util.TreeMap;
 
 /**
@@ -12,16 +11,23 @@ import java.util.TreeMap;
 public class ArraySortedIndices
 {
 
+	/**
+	 * Maximum number of element moves per element for
+	 * {@link #resort(double[], int[], int[])} before falling back to a full
+	 * sort.
+	 */
+	public static final int RESORT_MOVES_PER_ELEMENT = 16;
+
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+
+	/**
+	 * @return indices of input in ascending order of input. Ties are ordered
+	 *         by index.
+	 */
 	public static int[] sort( final double[] input )
 	{
-		final int[] indices = new int[ input.length ];
-		final TreeMap< Double, Integer > tm = sortedKeysAndValues( input );
-		int index = 0;
-		for ( final Integer v : tm.values() )
-		{
-			indices[ index ] = v;
-			++index;
-		}
+		final int[] indices = identity( input.length );
+		sortIndices( input, indices );
 		return indices;
 	}
 
@@ -36,17 +42,36 @@ public class ArraySortedIndices
 		return res;
 	}
 
+	/**
+	 * Sort input in place and store the permutation in forward and backward:
+	 * input[ forward[ i ] ] before sorting is equal to input[ i ] after
+	 * sorting and backward is the inverse of forward. Sections with equal
+	 * values are kept and ordered by their index (stable).
+	 */
 	public static void sort( final double[] input, final int[] forward, final int[] backward )
 	{
-		final TreeMap< Double, Integer > tm = sortedKeysAndValues( input );
-		int index = 0;
-		for ( final Entry< Double, Integer > entry : tm.entrySet() )
-		{
-			backward[ index ] = entry.getValue();
-			forward[ backward[ index ] ] = index;
-			input[ index ] = entry.getKey();
-			++index;
-		}
+		for ( int i = 0; i < backward.length; ++i )
+			backward[ i ] = i;
+		sortIndices( input, backward );
+		permute( input, forward, backward );
+	}
+
+	/**
+	 * Same as {@link #sort(double[], int[], int[])} but uses backward from a
+	 * previous call as a starting point. If input is nearly sorted in that
+	 * order, e.g. after small coordinate updates, this is O(n + number of
+	 * inversions). Falls back to a full sort if the number of inversions
+	 * becomes too large. The result is identical to
+	 * {@link #sort(double[], int[], int[])}.
+	 *
+	 * @param backward
+	 *            permutation of a previous sort, will be overwritten.
+	 */
+	public static void resort( final double[] input, final int[] forward, final int[] backward )
+	{
+		if ( !insertionSort( input, backward, 0, backward.length, ( long ) RESORT_MOVES_PER_ELEMENT * backward.length ) )
+			sortIndices( input, backward );
+		permute( input, forward, backward );
 	}
 
 	public static int[] getSortedIndicesFromMap( final TreeMap< Double, Integer > tm )
@@ -71,6 +96,85 @@ public class ArraySortedIndices
 		return result;
 	}
 
+	/**
+	 * Stable merge sort of indices by input[ index ], ties ordered by index.
+	 * Merging is skipped for runs that are already in order.
+	 */
+	private static void sortIndices( final double[] input, final int[] indices )
+	{
+		mergeSort( input, indices, new int[ indices.length ], 0, indices.length );
+	}
+
+	private static void mergeSort( final double[] input, final int[] indices, final int[] tmp, final int start, final int stop )
+	{
+		if ( stop - start <= INSERTION_SORT_THRESHOLD )
+		{
+			insertionSort( input, indices, start, stop, Long.MAX_VALUE );
+			return;
+		}
+
+		final int mid = ( start + stop ) >>> 1;
+		mergeSort( input, indices, tmp, start, mid );
+		mergeSort( input, indices, tmp, mid, stop );
+
+		if ( compare( input, indices[ mid - 1 ], indices[ mid ] ) <= 0 )
+			return;
+
+		System.arraycopy( indices, start, tmp, start, stop - start );
+		for ( int i = start, l = start, r = mid; i < stop; ++i )
+		{
+			if ( r >= stop || l < mid && compare( input, tmp[ l ], tmp[ r ] ) <= 0 )
+				indices[ i ] = tmp[ l++ ];
+			else
+				indices[ i ] = tmp[ r++ ];
+		}
+	}
+
+	/**
+	 * @return false if sorting was aborted after maxMoves moves. indices is
+	 *         still a permutation of its input in that case.
+	 */
+	private static boolean insertionSort( final double[] input, final int[] indices, final int start, final int stop, final long maxMoves )
+	{
+		long moves = 0;
+		for ( int i = start + 1; i < stop; ++i )
+		{
+			final int index = indices[ i ];
+			int k = i;
+			for ( ; k > start && compare( input, indices[ k - 1 ], index ) > 0; --k )
+				indices[ k ] = indices[ k - 1 ];
+			indices[ k ] = index;
+			moves += i - k;
+			if ( moves > maxMoves )
+				return false;
+		}
+		return true;
+	}
+
+	private static int compare( final double[] input, final int i1, final int i2 )
+	{
+		final int c = Double.compare( input[ i1 ], input[ i2 ] );
+		return c == 0 ? Integer.compare( i1, i2 ) : c;
+	}
+
+	private static void permute( final double[] input, final int[] forward, final int[] backward )
+	{
+		final double[] copy = input.clone();
+		for ( int i = 0; i < backward.length; ++i )
+		{
+			input[ i ] = copy[ backward[ i ] ];
+			forward[ backward[ i ] ] = i;
+		}
+	}
+
+	private static int[] identity( final int n )
+	{
+		final int[] indices = new int[ n ];
+		for ( int i = 0; i < n; ++i )
+			indices[ i ] = i;
+		return indices;
+	}
+
 	public static TreeMap< Double, Integer > sortedKeysAndValues( final double[] input )
 	{
 		final TreeMap< Double, Integer > tm = new TreeMap< Double, Integer >();
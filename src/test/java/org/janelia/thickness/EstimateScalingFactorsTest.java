@@ -1,5 +1,8 @@
 package org.janelia.thickness;
 
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
 import org.janelia.thickness.inference.Options;
 import org.junit.Assert;
 import org.junit.Test;
@@ -86,4 +89,41 @@ public class EstimateScalingFactorsTest
 		return scalingFactors;
 	}
 
+	@Test
+	public void testJacobiIndependentOfThreads() throws InterruptedException, ExecutionException
+	{
+		final int nIterations = 50;
+		final double[] reference = runJacobiScalingFactorsEstimation( 0.0, nIterations, 1, 1 );
+		for ( int nThreads = 1; nThreads <= 4; ++nThreads )
+			for ( int nTasks = 1; nTasks <= 5; ++nTasks )
+				Assert.assertArrayEquals( reference, runJacobiScalingFactorsEstimation( 0.0, nIterations, nThreads, nTasks ), 0.0 );
+
+		final double[] fullRegularization = runJacobiScalingFactorsEstimation( 1.0, nIterations, 3, 3 );
+		for ( int z = 0; z < fullRegularization.length; ++z )
+			Assert.assertEquals( 1.0, fullRegularization[ z ], 0.0 );
+	}
+
+	public double[] runJacobiScalingFactorsEstimation( final double regularizerWeight, final int nIterations, final int nThreads, final int nTasks ) throws InterruptedException, ExecutionException
+	{
+
+		final double[] scalingFactors = new double[ ( int ) matrix.dimension( 0 ) ];
+		final double[] coordinates = new double[ scalingFactors.length ];
+
+		for ( int z = 0; z < coordinates.length; ++z )
+		{
+			scalingFactors[ z ] = 1.0;
+			coordinates[ z ] = z;
+		}
+		final ForkJoinPool pool = new ForkJoinPool( nThreads );
+		try
+		{
+			EstimateScalingFactors.estimateQuadraticFromMatrixJacobi( matrix, scalingFactors, coordinates, localFits, regularizerWeight, comparisonRange, nIterations, ConstantUtils.constantRandomAccessibleInterval( new DoubleType( 1.0 ), 2, matrix ), pool, nTasks );
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+		return scalingFactors;
+	}
+
 }
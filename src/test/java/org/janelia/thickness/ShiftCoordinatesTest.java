@@ -1,8 +1,11 @@
 package org.janelia.thickness;
 
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import org.janelia.thickness.inference.Options;
+import org.janelia.utility.DoubleStrip;
 import org.junit.Assert;
 import org.junit.Test;
 
@@ -94,6 +97,117 @@ public class ShiftCoordinatesTest
 		}
 	}
 
+	@Test
+	public void testParallelEqualsSequential() throws Exception
+	{
+		final int size = 37;
+
+		final int range = 6;
+
+		final Random rng = new Random( 100 );
+
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( size, size );
+		for ( final ArrayCursor< DoubleType > c = matrix.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final long dx = Math.abs( c.getLongPosition( 0 ) - c.getLongPosition( 1 ) );
+			c.get().set( dx <= range ? ( 1.0 - dx / ( range + 1.0 ) ) * ( 0.9 + 0.2 * rng.nextDouble() ) : Double.NaN );
+		}
+
+		final double[] fit = new double[ range + 1 ];
+		for ( int dz = 0; dz < fit.length; ++dz )
+			fit[ dz ] = -( 1.0 - dz / ( range + 1.0 ) );
+		final RandomAccessibleInterval< double[] > fits = ConstantUtils.constantRandomAccessibleInterval( fit, 1, new FinalInterval( size ) );
+
+		final double[] coordinates = new double[ size ];
+		final double[] shiftWeights = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+		{
+			coordinates[ z ] = z + 0.3 * rng.nextDouble();
+			shiftWeights[ z ] = 0.5 + rng.nextDouble();
+		}
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+
+		final double[] shiftsArray = new double[ size ];
+		final double[] weightSums = new double[ size ];
+		ShiftCoordinates.collectShiftsFromMatrix( coordinates, matrix, null, fits, shiftsArray, weightSums, shiftWeights, o );
+
+		final ForkJoinPool pool = new ForkJoinPool( 3 );
+		try
+		{
+			for ( int nTasks = 1; nTasks <= 8; ++nTasks )
+			{
+				final double[] parallelShiftsArray = new double[ size ];
+				final double[] parallelWeightSums = new double[ size ];
+				ShiftCoordinates.collectShiftsFromMatrixParallel( coordinates, matrix, null, fits, parallelShiftsArray, parallelWeightSums, shiftWeights, o, pool, nTasks );
+				Assert.assertArrayEquals( shiftsArray, parallelShiftsArray, 0.0 );
+				Assert.assertArrayEquals( weightSums, parallelWeightSums, 0.0 );
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSharedFitEqualsFitPerSection()
+	{
+		final int size = 53;
+
+		final int range = 7;
+
+		final Random rng = new Random( 200 );
+
+		final double[] coordinates = new double[ size ];
+		final int[] permutation = new int[ size ];
+		final double[] shiftWeights = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+		{
+			coordinates[ z ] = z + 0.3 * rng.nextDouble();
+			permutation[ z ] = z;
+			shiftWeights[ z ] = 0.5 + rng.nextDouble();
+		}
+
+		final DoubleStrip strip = new DoubleStrip( size, range );
+		for ( int y = 0; y < size; ++y )
+			for ( int x = Math.max( y - range, 0 ); x < Math.min( y + range + 1, size ); ++x )
+				strip.set( x, y, ( 1.0 - Math.abs( x - y ) / ( range + 1.0 ) ) * ( 0.9 + 0.2 * rng.nextDouble() ) );
+
+		final double[] fit = new double[ range + 1 ];
+		for ( int dz = 0; dz < fit.length; ++dz )
+			fit[ dz ] = -( 1.0 - dz / ( range + 1.0 ) );
+		final double[][] shared = new double[ size ][];
+		final double[][] copies = new double[ size ][];
+		for ( int z = 0; z < size; ++z )
+		{
+			shared[ z ] = fit;
+			copies[ z ] = fit.clone();
+		}
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+
+		final double[] shiftsArray = new double[ size ];
+		final double[] weightSums = new double[ size ];
+		ShiftCoordinates.collectShiftsFromStrip( coordinates, strip, permutation, null, copies, shiftsArray, weightSums, shiftWeights, o );
+
+		for ( final boolean indexed : new boolean[] { false, true } )
+		{
+			o.indexedInverseLookup = indexed;
+			for ( final double[][] fits : new double[][][] { shared, copies } )
+			{
+				final double[] otherShiftsArray = new double[ size ];
+				final double[] otherWeightSums = new double[ size ];
+				ShiftCoordinates.collectShiftsFromStrip( coordinates, strip, permutation, null, fits, otherShiftsArray, otherWeightSums, shiftWeights, o );
+				Assert.assertArrayEquals( shiftsArray, otherShiftsArray, 0.0 );
+				Assert.assertArrayEquals( weightSums, otherWeightSums, 0.0 );
+			}
+		}
+	}
+
 	private static Img< DoubleType > scaleMatrix( final Img< DoubleType > matrix, final double[] scalingFactors )
 	{
 		final long[] dim = new long[ matrix.numDimensions() ];
@@ -0,0 +1,198 @@
+package org.janelia.thickness.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.thickness.EstimateScalingFactors;
+import org.janelia.utility.MatrixStripConversion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.RealRandomAccess;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.ConstantUtils;
+import net.imglib2.view.Views;
+
+/**
+ * Compare
+ * {@link EstimateScalingFactors#estimateQuadraticFromMatrix(RandomAccessibleInterval, double[], double[], RandomAccessibleInterval, double, int, int, RandomAccessibleInterval)}
+ * against the previous implementation that cloned the scaling factors and
+ * created an interpolator for every section. Run with
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.janelia.thickness.benchmark.EstimateScalingFactorsBenchmark
+ * </pre>
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class EstimateScalingFactorsBenchmark
+{
+
+	@Param( { "1000", "10000", "50000" } )
+	public int n;
+
+	public int range = 10;
+
+	public int nIterations = 10;
+
+	private RandomAccessibleInterval< DoubleType > matrix;
+
+	private RandomAccessibleInterval< DoubleType > weights;
+
+	private RandomAccessibleInterval< double[] > fits;
+
+	private double[] coordinates;
+
+	private double[] scalingFactors;
+
+	@Setup( Level.Trial )
+	public void setupData()
+	{
+		final Random rng = new Random( 100 );
+		final ArrayImg< DoubleType, DoubleArray > strip = ArrayImgs.doubles( 2 * range + 1, n );
+		for ( final Cursor< DoubleType > c = strip.cursor(); c.hasNext(); )
+		{
+			final DoubleType v = c.next();
+			final long dx = Math.abs( c.getLongPosition( 0 ) - range );
+			v.set( ( 1.0 - dx / ( range + 1.0 ) ) * ( 0.9 + 0.2 * rng.nextDouble() ) );
+		}
+		// strip backed matrix, n x n dense does not fit into memory for large
+		// n
+		matrix = MatrixStripConversion.stripToMatrix( strip, new DoubleType( Double.NaN ) );
+		weights = ConstantUtils.constantRandomAccessibleInterval( new DoubleType( 1.0 ), 2, matrix );
+
+		final double[] fit = new double[ range + 1 ];
+		for ( int k = 0; k < fit.length; ++k )
+			fit[ k ] = -( 1.0 - k / ( range + 1.0 ) );
+		fits = ConstantUtils.constantRandomAccessibleInterval( fit, 1, new FinalInterval( n ) );
+
+		coordinates = new double[ n ];
+		for ( int z = 0; z < n; ++z )
+			coordinates[ z ] = z + 0.25 * rng.nextDouble();
+	}
+
+	@Setup( Level.Invocation )
+	public void resetScalingFactors()
+	{
+		scalingFactors = new double[ n ];
+		for ( int z = 0; z < n; ++z )
+			scalingFactors[ z ] = 1.0;
+	}
+
+	@Benchmark
+	public double[] current()
+	{
+		EstimateScalingFactors.estimateQuadraticFromMatrix( matrix, scalingFactors, coordinates, fits, 0.1, range, nIterations, weights );
+		return scalingFactors;
+	}
+
+	@Benchmark
+	public double[] previous()
+	{
+		estimateQuadraticFromMatrixWithCopies( matrix, scalingFactors, coordinates, fits, 0.1, range, nIterations, weights );
+		return scalingFactors;
+	}
+
+	/**
+	 * Previous implementation of
+	 * {@link EstimateScalingFactors#estimateQuadraticFromMatrix(RandomAccessibleInterval, double[], double[], RandomAccessibleInterval, double, int, int, RandomAccessibleInterval)}
+	 * for reference.
+	 */
+	public static < T extends RealType< T >, W extends RealType< W > > void estimateQuadraticFromMatrixWithCopies(
+			final RandomAccessibleInterval< T > correlations,
+			final double[] scalingFactors,
+			final double[] coordinates,
+			final RandomAccessibleInterval< double[] > localFits,
+			final double regularizerWeight,
+			final int comparisonRange,
+			final int nIterations,
+			final RandomAccessibleInterval< W > pairwiseWeights )
+	{
+
+		final double inverseRegularizerWeight = 1 - regularizerWeight;
+
+		final RandomAccess< T > corrAccess = correlations.randomAccess();
+		final RandomAccess< W > wAccess = pairwiseWeights.randomAccess();
+
+		for ( int iter = 0; iter < nIterations; ++iter )
+		{
+
+			final Cursor< double[] > fitCursor = Views.iterable( localFits ).cursor();
+
+			for ( int n = 0; fitCursor.hasNext(); ++n )
+			{
+
+				final double[] oldScalingFactors = scalingFactors.clone();
+
+				corrAccess.setPosition( n, 0 );
+				wAccess.setPosition( n, 0 );
+
+				final double[] lf = fitCursor.next();
+				final RealRandomAccessible< DoubleType > interpolatedFit = Views.interpolate( Views.extendValue( ArrayImgs.doubles( lf, lf.length ), new DoubleType( Double.NaN ) ), new NLinearInterpolatorFactory< DoubleType >() );
+				final RealRandomAccess< DoubleType > ra = interpolatedFit.realRandomAccess();
+				double enumeratorSum = 0.0;
+				double denominatorSum = 0.0;
+				final int minVal = Math.max( n - comparisonRange, 0 );
+				final int maxVal = Math.min( n + comparisonRange, scalingFactors.length );
+				for ( int i = minVal; i < maxVal; ++i )
+				{
+					if ( i == n )
+						continue;
+					corrAccess.setPosition( i, 1 );
+					wAccess.setPosition( i, 1 );
+					ra.setPosition( Math.abs( coordinates[ i ] - coordinates[ n ] ), 0 );
+					final double fitVal = -ra.get().get();
+					final double measure = corrAccess.get().getRealDouble();
+					if ( Double.isNaN( fitVal ) || Double.isNaN( measure ) || measure <= 0.0 )
+						continue;
+					final double w = wAccess.get().getRealDouble();
+					final double prod = oldScalingFactors[ i ] * measure;
+					final double h = w * prod;
+
+					enumeratorSum += h * fitVal;
+					denominatorSum += h * prod;
+				}
+				final double result = enumeratorSum / denominatorSum * inverseRegularizerWeight + regularizerWeight * oldScalingFactors[ n ];
+				if ( !Double.isNaN( result ) )
+					scalingFactors[ n ] = result;
+			}
+
+		}
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( EstimateScalingFactorsBenchmark.class.getSimpleName() ).build() ).run();
+	}
+
+}
@@ -0,0 +1,119 @@
+package org.janelia.thickness.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.thickness.plugin.CachedStatisticsFloatNCC.Statistics;
+import org.janelia.thickness.plugin.NCCKernel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Single threaded (per core) time for the NCC of two size x size sections
+ * for each {@link NCCKernel}. Run with
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.janelia.thickness.benchmark.NCCKernelBenchmark
+ * </pre>
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Threads( 1 )
+@Fork( value = 1, jvmArgs = { "-Xmx4g" } )
+public class NCCKernelBenchmark
+{
+
+	@Param( { "256", "1024", "4096" } )
+	public int size;
+
+	@Param( { "REAL_SUM", "BLOCKED" } )
+	public NCCKernel kernel;
+
+	private float[] a;
+
+	private float[] b;
+
+	private int[] argbA;
+
+	private int[] argbB;
+
+	private Statistics statisticsA;
+
+	private Statistics statisticsB;
+
+	@Setup( Level.Trial )
+	public void setupData()
+	{
+		final Random rng = new Random( 100 );
+		final int n = size * size;
+		a = new float[ n ];
+		b = new float[ n ];
+		argbA = new int[ n ];
+		argbB = new int[ n ];
+		for ( int i = 0; i < n; ++i )
+		{
+			a[ i ] = rng.nextFloat();
+			b[ i ] = 0.5f * a[ i ] + 0.5f * rng.nextFloat();
+			argbA[ i ] = rng.nextInt();
+			argbB[ i ] = rng.nextInt();
+		}
+		// masked border as after alignment
+		for ( int i = 0; i < size; ++i )
+		{
+			a[ i ] = Float.NaN;
+			b[ n - 1 - i ] = Float.NaN;
+		}
+		statisticsA = kernel.statistics( a );
+		statisticsB = kernel.statistics( b );
+	}
+
+	@Benchmark
+	public double nccFloat()
+	{
+		return kernel.ncc( a, b );
+	}
+
+	@Benchmark
+	public double nccARGB()
+	{
+		return kernel.ncc( argbA, argbB );
+	}
+
+	@Benchmark
+	public Statistics statistics()
+	{
+		return kernel.statistics( a );
+	}
+
+	@Benchmark
+	public double nccCachedStatistics()
+	{
+		return kernel.ncc( a, statisticsA, b, statisticsB );
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( NCCKernelBenchmark.class.getSimpleName() ).build() ).run();
+	}
+
+}
@@ -0,0 +1,122 @@
+package org.janelia.thickness.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.janelia.thickness.ShiftCoordinates;
+import org.janelia.thickness.inference.Options;
+import org.janelia.utility.DoubleStrip;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Inverse lookups into local fits in
+ * {@link ShiftCoordinates#collectShiftsFromStrip(double[], DoubleStrip, int[], double[], double[][], double[], double[], double[], Options)}
+ * with and without {@link Options#indexedInverseLookup}. Global fits share
+ * one array for all sections, local fits have one array per section. Run
+ * with
+ *
+ * <pre>
+ * mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=org.janelia.thickness.benchmark.ShiftCoordinatesBenchmark
+ * </pre>
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+@State( Scope.Benchmark )
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3 )
+@Measurement( iterations = 5 )
+@Fork( 1 )
+public class ShiftCoordinatesBenchmark
+{
+
+	@Param( { "10000", "100000" } )
+	public int n;
+
+	@Param( { "10", "50" } )
+	public int range;
+
+	@Param( { "true", "false" } )
+	public boolean global;
+
+	@Param( { "true", "false" } )
+	public boolean indexed;
+
+	private DoubleStrip strip;
+
+	private int[] permutation;
+
+	private double[] coordinates;
+
+	private double[][] fits;
+
+	private double[] multipliers;
+
+	private double[] shiftWeights;
+
+	private Options options;
+
+	@Setup( Level.Trial )
+	public void setup()
+	{
+		final Random rng = new Random( 100 );
+
+		coordinates = new double[ n ];
+		permutation = new int[ n ];
+		multipliers = new double[ n ];
+		shiftWeights = new double[ n ];
+		for ( int z = 0; z < n; ++z )
+		{
+			coordinates[ z ] = z + 0.25 * rng.nextDouble();
+			permutation[ z ] = z;
+			multipliers[ z ] = 1.0;
+			shiftWeights[ z ] = 1.0;
+		}
+
+		strip = new DoubleStrip( n, range );
+		for ( int y = 0; y < n; ++y )
+			for ( int x = Math.max( y - range, 0 ); x < Math.min( y + range + 1, n ); ++x )
+				strip.set( x, y, Math.exp( -Math.abs( coordinates[ x ] - coordinates[ y ] ) / range ) * ( 0.95 + 0.1 * rng.nextDouble() ) );
+
+		final double[] fit = new double[ range + 1 ];
+		for ( int k = 0; k < fit.length; ++k )
+			fit[ k ] = -Math.exp( -( double ) k / range );
+		fits = new double[ n ][];
+		for ( int z = 0; z < n; ++z )
+			fits[ z ] = global ? fit : fit.clone();
+
+		options = Options.generateDefaultOptions();
+		options.comparisonRange = range;
+		options.indexedInverseLookup = indexed;
+	}
+
+	@Benchmark
+	public double[] collectShifts()
+	{
+		final double[] shifts = new double[ n ];
+		final double[] weightSums = new double[ n ];
+		ShiftCoordinates.collectShiftsFromStrip( coordinates, strip, permutation, multipliers, fits, shifts, weightSums, shiftWeights, options );
+		return shifts;
+	}
+
+	public static void main( final String[] args ) throws RunnerException
+	{
+		new Runner( new OptionsBuilder().include( ShiftCoordinatesBenchmark.class.getSimpleName() ).build() ).run();
+	}
+
+}
@@ -0,0 +1,108 @@
+package org.janelia.thickness.inference;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.IntFunction;
+
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.utility.MatrixStripConversion;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class BatchInferenceTest
+{
+
+	private static List< BatchInference.Problem< DoubleType > > problems( final int nProblems, final int range, final Random rng )
+	{
+		final List< BatchInference.Problem< DoubleType > > problems = new ArrayList<>();
+		for ( int p = 0; p < nProblems; ++p )
+		{
+			final int size = 20 + rng.nextInt( 20 );
+			final ArrayImg< DoubleType, DoubleArray > matrix = SyntheticSimilarities.matrix( SyntheticSimilarities.truth( size, rng ), range );
+			problems.add( new BatchInference.Problem<>( MatrixStripConversion.matrixToStrip( matrix, range ), SyntheticSimilarities.startingCoordinates( size ) ) );
+		}
+		return problems;
+	}
+
+	private static void assertEqualsSequential(
+			final List< BatchInference.Problem< DoubleType > > problems,
+			final List< BatchInference.Solution > solutions,
+			final IntFunction< ? extends AbstractCorrelationFit > fitFactory,
+			final Options o ) throws Exception
+	{
+		for ( int p = 0; p < problems.size(); ++p )
+		{
+			final BatchInference.Solution solution = solutions.get( p );
+			Assert.assertNull( solution.exception );
+			Assert.assertTrue( solution.nanoTime > 0 );
+			final BatchInference.Problem< DoubleType > problem = problems.get( p );
+			final double[] expected = new InferFromMatrix( fitFactory.apply( problem.startingCoordinates.length ) ).estimate(
+					MatrixStripConversion.stripToMatrix( problem.strip ),
+					problem.startingCoordinates,
+					o ).coordinates;
+			Assert.assertArrayEquals( expected, solution.result.coordinates, 0.0 );
+		}
+	}
+
+	@Test
+	public void testBatchEqualsSequential() throws Exception
+	{
+		final int range = 4;
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.nIterations = 10;
+
+		final List< BatchInference.Problem< DoubleType > > problems = problems( 7, range, new Random( 100 ) );
+		// starting coordinates do not match strip
+		problems.add( new BatchInference.Problem<>( problems.get( 0 ).strip, new double[ 3 ] ) );
+
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		final List< BatchInference.Solution > solutions = new BatchInference( n -> new GlobalCorrelationFitAverage() ).solve( problems, o, es, 3 );
+		es.shutdown();
+
+		Assert.assertEquals( problems.size(), solutions.size() );
+		assertEqualsSequential( problems.subList( 0, problems.size() - 1 ), solutions, n -> new GlobalCorrelationFitAverage(), o );
+		Assert.assertNull( solutions.get( problems.size() - 1 ).result );
+		Assert.assertNotNull( solutions.get( problems.size() - 1 ).exception );
+	}
+
+	@Test
+	public void testSizeDependentAndStatefulFits() throws Exception
+	{
+		final int range = 4;
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.nIterations = 10;
+		o.checkpointFile = File.createTempFile( "checkpoint", ".bin" ).getAbsolutePath();
+		o.checkpointInterval = 1;
+		new File( o.checkpointFile ).delete();
+
+		// problems of different sizes, fits must not be shared between them
+		final List< BatchInference.Problem< DoubleType > > problems = problems( 6, range, new Random( 101 ) );
+		final ExecutorService es = Executors.newFixedThreadPool( 2 );
+		for ( final IntFunction< AbstractCorrelationFit > fitFactory : SyntheticSimilarities.correlationFits( range, 5 ) )
+		{
+			final List< BatchInference.Solution > solutions = new BatchInference( fitFactory ).solve( problems, o, es, 2 );
+			Assert.assertEquals( problems.size(), solutions.size() );
+			// batch problems do not write checkpoints
+			Assert.assertFalse( new File( o.checkpointFile ).exists() );
+
+			final Options sequentialOptions = o.clone();
+			sequentialOptions.checkpointFile = "";
+			assertEqualsSequential( problems, solutions, fitFactory, sequentialOptions );
+		}
+		es.shutdown();
+	}
+
+}
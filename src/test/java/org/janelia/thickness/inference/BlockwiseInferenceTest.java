@@ -0,0 +1,114 @@
+package org.janelia.thickness.inference;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+import org.janelia.utility.MatrixStripConversion;
+import org.janelia.utility.StripFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+public class BlockwiseInferenceTest
+{
+
+	private static ArrayImg< DoubleType, DoubleArray > createMatrix( final int size, final int range )
+	{
+		return SyntheticSimilarities.matrix( SyntheticSimilarities.truth( size, new Random( 100 ) ), range );
+	}
+
+	@Test
+	public void testBlocks()
+	{
+		final List< int[] > blocks = BlockwiseInference.blocks( 25, 10, 3 );
+		Assert.assertEquals( 4, blocks.size() );
+		Assert.assertArrayEquals( new int[] { 0, 10 }, blocks.get( 0 ) );
+		Assert.assertArrayEquals( new int[] { 5, 15 }, blocks.get( 1 ) );
+		Assert.assertArrayEquals( new int[] { 10, 20 }, blocks.get( 2 ) );
+		Assert.assertArrayEquals( new int[] { 15, 25 }, blocks.get( 3 ) );
+
+		final List< int[] > single = BlockwiseInference.blocks( 8, 10, 3 );
+		Assert.assertEquals( 1, single.size() );
+		Assert.assertArrayEquals( new int[] { 0, 8 }, single.get( 0 ) );
+
+		for ( int n = 11; n < 100; ++n )
+		{
+			final List< int[] > b = BlockwiseInference.blocks( n, 10, 3 );
+			Assert.assertEquals( 0, b.get( 0 )[ 0 ] );
+			Assert.assertEquals( n, b.get( b.size() - 1 )[ 1 ] );
+			for ( int i = 1; i < b.size(); ++i )
+				Assert.assertTrue( b.get( i - 1 )[ 1 ] - b.get( i )[ 0 ] >= 3 );
+			// one block less would not cover n with the required overlap
+			Assert.assertTrue( 10 + ( b.size() - 2 ) * 7 < n );
+		}
+	}
+
+	@Test
+	public void testSingleBlockEqualsInference() throws Exception
+	{
+		final int range = 5;
+		for ( final IntFunction< AbstractCorrelationFit > correlationFitFactory : SyntheticSimilarities.correlationFits( range, 10 ) )
+			testSingleBlockEqualsInference( correlationFitFactory, range );
+	}
+
+	private static void testSingleBlockEqualsInference( final IntFunction< AbstractCorrelationFit > correlationFitFactory, final int range ) throws Exception
+	{
+		final int size = 60;
+		final ArrayImg< DoubleType, DoubleArray > matrix = createMatrix( size, range );
+		final double[] startingCoordinates = SyntheticSimilarities.startingCoordinates( size );
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.nIterations = 10;
+
+		final double[] reference;
+		try (final InferFromMatrix inf = new InferFromMatrix( correlationFitFactory.apply( size ) ))
+		{
+			reference = inf.estimateZCoordinates( matrix, startingCoordinates, o );
+		}
+		final double[] blockwise = new BlockwiseInference( correlationFitFactory ).estimateZCoordinates( BlockwiseInference.fromMatrix( matrix ), startingCoordinates, size, range, o );
+		Assert.assertArrayEquals( reference, blockwise, 1e-9 );
+
+		// blocks of 25 sections need fits for fewer sections than the matrix
+		final double[] stitched = new BlockwiseInference( correlationFitFactory ).estimateZCoordinates( BlockwiseInference.fromMatrix( matrix ), startingCoordinates, 25, 2 * range, o );
+		Assert.assertEquals( 0.0, stitched[ 0 ], 1e-9 );
+		Assert.assertEquals( size - 1, stitched[ size - 1 ], 1e-9 );
+		for ( final double coordinate : stitched )
+			Assert.assertTrue( Double.isFinite( coordinate ) );
+	}
+
+	@Test
+	public void testStripFile() throws Exception
+	{
+		final int size = 30;
+		final int range = 4;
+		final ArrayImg< DoubleType, DoubleArray > matrix = createMatrix( size, range );
+		final File file = File.createTempFile( "strip", ".bin" );
+		file.deleteOnExit();
+		StripFile.write( file.toPath(), MatrixStripConversion.matrixToStrip( matrix, range ), StripFile.FLOAT );
+		Assert.assertEquals( StripFile.HEADER_BYTES + size * ( 2 * range + 1 ) * Float.BYTES, file.length() );
+
+		final int start = 7;
+		final int stop = 19;
+		final RandomAccessibleInterval< FloatType > block = BlockwiseInference.fromStripFile( file.toPath() ).load( start, stop );
+		final RandomAccess< FloatType > blockAccess = block.randomAccess();
+		final RandomAccess< DoubleType > matrixAccess = matrix.randomAccess();
+		for ( int y = start; y < stop; ++y )
+			for ( int x = Math.max( y - range, start ); x <= Math.min( y + range, stop - 1 ); ++x )
+			{
+				blockAccess.setPosition( new int[] { x - start, y - start } );
+				matrixAccess.setPosition( new int[] { x, y } );
+				Assert.assertEquals( ( float ) matrixAccess.get().get(), blockAccess.get().get(), 0.0f );
+			}
+	}
+
+}
@@ -0,0 +1,109 @@
+package org.janelia.thickness.inference;
+
+import java.io.File;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+import org.janelia.thickness.inference.visitor.LazyVisitor;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class CheckpointTest
+{
+
+	@Test
+	public void testWriteRead() throws Exception
+	{
+		final File file = File.createTempFile( "checkpoint", ".bin" );
+		file.deleteOnExit();
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = 1;
+		o.checkpointInterval = 3;
+		final Checkpoint checkpoint = new Checkpoint(
+				o,
+				6,
+				2,
+				new double[] { 0.0, 1.0 },
+				new double[] { 0.5, 1.5 },
+				new double[] { 1.1, 0.9 },
+				new int[] { 1, 0 },
+				new double[] { Double.NaN, 1.0, 0.8, 0.8, 1.0, Double.NaN },
+				Double.NaN,
+				new double[] { -1.0, -0.8 } );
+		checkpoint.write( file.getAbsolutePath() );
+
+		final Checkpoint read = Checkpoint.read( file.getAbsolutePath() );
+		Assert.assertEquals( o, read.options );
+		Assert.assertEquals( checkpoint.iteration, read.iteration );
+		Assert.assertEquals( checkpoint.nConverged, read.nConverged );
+		Assert.assertArrayEquals( checkpoint.startingCoordinates, read.startingCoordinates, 0.0 );
+		Assert.assertArrayEquals( checkpoint.coordinates, read.coordinates, 0.0 );
+		Assert.assertArrayEquals( checkpoint.scalingFactors, read.scalingFactors, 0.0 );
+		Assert.assertArrayEquals( checkpoint.permutation, read.permutation );
+		Assert.assertArrayEquals( checkpoint.scaledStrip, read.scaledStrip, 0.0 );
+		Assert.assertTrue( Double.isNaN( read.scaledExtension ) );
+		Assert.assertArrayEquals( checkpoint.fitState, read.fitState, 0.0 );
+
+		new Checkpoint( o, 6, 2, checkpoint.startingCoordinates, checkpoint.coordinates, checkpoint.scalingFactors, checkpoint.permutation, checkpoint.scaledStrip, 1.0, null ).write( file.getAbsolutePath() );
+		Assert.assertNull( Checkpoint.read( file.getAbsolutePath() ).fitState );
+	}
+
+	@Test
+	public void testIsDue()
+	{
+		final Options o = Options.generateDefaultOptions();
+		Assert.assertFalse( Checkpoint.isDue( 5, o ) );
+		o.checkpointInterval = 5;
+		Assert.assertFalse( Checkpoint.isDue( 5, o ) );
+		o.checkpointFile = "checkpoint.bin";
+		Assert.assertTrue( Checkpoint.isDue( 5, o ) );
+		Assert.assertTrue( Checkpoint.isDue( 10, o ) );
+		Assert.assertFalse( Checkpoint.isDue( 7, o ) );
+	}
+
+	@Test
+	public void testResumeEqualsUninterrupted() throws Exception
+	{
+		final int size = 50;
+		final int range = 6;
+		final Random rng = new Random( 100 );
+		final ArrayImg< DoubleType, DoubleArray > matrix = SyntheticSimilarities.matrix( SyntheticSimilarities.truth( size, rng ), range, rng );
+
+		final double[] startingCoordinates = SyntheticSimilarities.startingCoordinates( size );
+
+		final File file = File.createTempFile( "checkpoint", ".bin" );
+		file.deleteOnExit();
+
+		for ( final IntFunction< AbstractCorrelationFit > fit : SyntheticSimilarities.correlationFits( range, 10 ) )
+		{
+			for ( final boolean usePrimitiveStrip : new boolean[] { false, true } )
+			{
+				final Options o = Options.generateDefaultOptions();
+				o.comparisonRange = range;
+				o.nIterations = 10;
+				o.usePrimitiveStrip = usePrimitiveStrip;
+				o.checkpointFile = file.getAbsolutePath();
+				o.checkpointInterval = 4;
+
+				final InferFromMatrix inf = new InferFromMatrix( fit.apply( size ) );
+				final InferFromMatrix.Result uninterrupted = inf.estimate( matrix, startingCoordinates, o );
+
+				final Checkpoint checkpoint = Checkpoint.read( file.getAbsolutePath() );
+				Assert.assertEquals( 8, checkpoint.iteration );
+
+				final InferFromMatrix.Result resumed = new InferFromMatrix( fit.apply( size ) ).resume( file.getAbsolutePath(), matrix, new LazyVisitor() );
+				Assert.assertEquals( uninterrupted.iterations, resumed.iterations );
+				Assert.assertArrayEquals( uninterrupted.coordinates, resumed.coordinates, 0.0 );
+				Assert.assertArrayEquals( uninterrupted.scalingFactors, resumed.scalingFactors, 0.0 );
+				Assert.assertArrayEquals( uninterrupted.permutation, resumed.permutation );
+			}
+		}
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.janelia.thickness.inference;
+
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+public class IncrementalInferenceTest
+{
+
+	@Test
+	public void testAppend()
+	{
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = 3;
+		final IncrementalInference inc = new IncrementalInference( n -> new GlobalCorrelationFitAverage(), o, 10 );
+		final double[] truth = SyntheticSimilarities.truth( 20, new Random( 100 ) );
+		for ( int y = 0; y < truth.length; ++y )
+			inc.append( SyntheticSimilarities.row( truth, y, o.comparisonRange ) );
+
+		Assert.assertEquals( truth.length, inc.size() );
+		for ( int y = 0; y < truth.length; ++y )
+		{
+			Assert.assertEquals( y, inc.getCoordinates()[ y ], 0.0 );
+			Assert.assertEquals( 1.0, inc.getScalingFactors()[ y ], 0.0 );
+			for ( int x = y - 5; x <= y + 5; ++x )
+			{
+				final double expected = SyntheticSimilarities.similarity( truth, x, y, o.comparisonRange );
+				Assert.assertEquals( expected, inc.getCorrelation( x, y ), 0.0 );
+			}
+		}
+	}
+
+	@Test
+	public void testUpdate() throws Exception
+	{
+		final int range = 5;
+		for ( final IntFunction< AbstractCorrelationFit > correlationFitFactory : SyntheticSimilarities.correlationFits( range, 10 ) )
+			testUpdate( correlationFitFactory, range );
+	}
+
+	private static void testUpdate( final IntFunction< AbstractCorrelationFit > correlationFitFactory, final int range ) throws Exception
+	{
+		final int size = 80;
+		final int windowSize = 30;
+		final double[] truth = SyntheticSimilarities.truth( size, new Random( 100 ) );
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.nIterations = 10;
+
+		final IncrementalInference inc = new IncrementalInference( correlationFitFactory, o, windowSize );
+
+		// first batch fits into window: same as inference from scratch
+		final double[][] firstBatch = new double[ windowSize ][];
+		for ( int y = 0; y < windowSize; ++y )
+			firstBatch[ y ] = SyntheticSimilarities.row( truth, y, range );
+		final double[] incremental = inc.append( firstBatch );
+
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( windowSize, windowSize );
+		final ArrayCursor< DoubleType > c = matrix.cursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			c.get().set( inc.getCorrelation( c.getIntPosition( 0 ), c.getIntPosition( 1 ) ) );
+		}
+		try (final InferFromMatrix inf = new InferFromMatrix( correlationFitFactory.apply( windowSize ) ))
+		{
+			Assert.assertArrayEquals( inf.estimateZCoordinates( matrix, SyntheticSimilarities.startingCoordinates( windowSize ), o ), incremental, 1e-12 );
+		}
+
+		// sections in front of the window are frozen, the updates include
+		// range frozen sections and need fits for more sections than the
+		// first one
+		for ( int y = windowSize; y < size; y += 10 )
+		{
+			final double[] before = inc.getCoordinates();
+			final double[][] batch = new double[ 10 ][];
+			for ( int i = 0; i < batch.length; ++i )
+				batch[ i ] = SyntheticSimilarities.row( truth, y + i, range );
+			final double[] after = inc.append( batch );
+			Assert.assertEquals( y + 10, after.length );
+			for ( int z = 0; z < after.length - windowSize; ++z )
+				Assert.assertEquals( before[ z ], after[ z ], 0.0 );
+			for ( final double coordinate : after )
+				Assert.assertTrue( Double.isFinite( coordinate ) );
+		}
+	}
+
+}
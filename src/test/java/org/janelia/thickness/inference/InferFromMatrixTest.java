@@ -1,17 +1,26 @@
 package org.janelia.thickness.inference;
 
+import java.io.File;
 import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.IntFunction;
 
 import org.janelia.thickness.inference.InferFromMatrix.RegularizationType;
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
 import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.inference.visitor.Visitor;
 import org.junit.Assert;
 import org.junit.Test;
 
+import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.array.ArrayCursor;
 import net.imglib2.img.array.ArrayImg;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.ConstantUtils;
 
 public class InferFromMatrixTest
 {
@@ -73,4 +82,211 @@ public class InferFromMatrixTest
 			Assert.assertEquals( z == rupture - 1 ? 1.0 + diminishingFactor : 1.0, ( coordinates[ z + 1 ] - coordinates[ z ] ) / unitDist, 1e-10 );
 	}
 
+	@Test
+	public void testPrimitiveStripEqualsViews() throws Exception
+	{
+
+		final int size = 50;
+
+		final int range = 6;
+
+		final Random rng = new Random( 100 );
+		final ArrayImg< DoubleType, DoubleArray > matrix = SyntheticSimilarities.matrix( SyntheticSimilarities.truth( size, rng ), range, rng );
+
+		final double[] startingCoordinates = SyntheticSimilarities.startingCoordinates( size );
+
+		for ( final IntFunction< AbstractCorrelationFit > fit : SyntheticSimilarities.correlationFits( range, 10 ) )
+		{
+			final Options o = Options.generateDefaultOptions();
+			o.comparisonRange = range;
+			o.nIterations = 20;
+
+			final double[] viewCoordinates = new InferFromMatrix( fit.apply( size ) ).estimateZCoordinates( matrix, startingCoordinates, o );
+
+			o.usePrimitiveStrip = true;
+			final double[] stripCoordinates = new InferFromMatrix( fit.apply( size ) ).estimateZCoordinates( matrix, startingCoordinates, o );
+
+			Assert.assertArrayEquals( viewCoordinates, stripCoordinates, 0.0 );
+		}
+	}
+
+	@Test
+	public void testConvergenceCheck()
+	{
+		final Options o = Options.generateDefaultOptions();
+		final double[] coordinates = { 0.0, 1.0, 2.0 };
+		final double[] scalingFactors = { 1.0, 1.0, 1.0 };
+
+		final InferFromMatrix.ConvergenceCheck disabled = new InferFromMatrix.ConvergenceCheck( coordinates, scalingFactors, o );
+		Assert.assertFalse( disabled.isEnabled() );
+		Assert.assertFalse( disabled.update( coordinates, scalingFactors ) );
+
+		o.coordinateUpdateAbsoluteTolerance = 1e-3;
+		o.convergencePatience = 2;
+		final InferFromMatrix.ConvergenceCheck check = new InferFromMatrix.ConvergenceCheck( coordinates, scalingFactors, o );
+		Assert.assertTrue( check.isEnabled() );
+		// scaling factors are ignored because their tolerances are zero
+		Assert.assertFalse( check.update( new double[] { 0.0, 1.1, 2.0 }, new double[] { 2.0, 1.0, 1.0 } ) );
+		Assert.assertFalse( check.update( new double[] { 0.0, 1.1005, 2.0 }, scalingFactors ) );
+		Assert.assertTrue( check.update( new double[] { 0.0, 1.1, 2.0 }, scalingFactors ) );
+		Assert.assertFalse( check.update( new double[] { 0.0, 1.2, 2.0 }, scalingFactors ) );
+
+		o.coordinateUpdateAbsoluteTolerance = 0.0;
+		o.scalingFactorRelativeTolerance = 0.1;
+		o.convergencePatience = 1;
+		final InferFromMatrix.ConvergenceCheck relative = new InferFromMatrix.ConvergenceCheck( coordinates, scalingFactors, o );
+		Assert.assertTrue( relative.update( new double[] { 5.0, 6.0, 7.0 }, new double[] { 1.0, 1.05, 1.0 } ) );
+		Assert.assertFalse( relative.update( coordinates, new double[] { 1.0, 1.25, 1.0 } ) );
+		Assert.assertFalse( relative.update( coordinates, new double[] { 1.0, Double.NaN, 1.0 } ) );
+	}
+
+	@Test
+	public void testPyramidCoordinates()
+	{
+		final double[] coordinates = { 0.0, 1.0, 2.0, 3.0, 4.0, 5.0, 6.0 };
+		Assert.assertArrayEquals( new double[] { 0.0, 1.0, 2.0, 3.0 }, InferFromMatrix.downsampleCoordinates( coordinates, 2 ), 1e-12 );
+		Assert.assertArrayEquals( new double[] { 0.0, 1.0, 2.0 }, InferFromMatrix.downsampleCoordinates( coordinates, 3 ), 1e-12 );
+		Assert.assertArrayEquals( new double[] { 0.125, 2.0 }, InferFromMatrix.downsampleCoordinates( new double[] { 0.0, 1.5, 4.0, 5.0 }, 2 ), 1e-12 );
+
+		// constant updates are scaled by factor
+		final double[] fine = coordinates.clone();
+		InferFromMatrix.addUpsampled( new double[] { 0.5, 0.5, 0.5, 0.5 }, fine, 2 );
+		for ( int z = 0; z < fine.length; ++z )
+			Assert.assertEquals( coordinates[ z ] + 1.0, fine[ z ], 1e-12 );
+
+		// linear between block centers 0.5, 2.5, 4.5, 6, constant outside
+		final double[] updates = new double[ 7 ];
+		InferFromMatrix.addUpsampled( new double[] { 0.0, 1.0, 2.0, 2.0 }, updates, 2 );
+		Assert.assertArrayEquals( new double[] { 0.0, 0.5, 1.5, 2.5, 3.5, 4.0, 4.0 }, updates, 1e-12 );
+	}
+
+	@Test
+	public void testCoarseToFine() throws Exception
+	{
+
+		final int size = 200;
+
+		final int range = 8;
+
+		final ArrayImg< DoubleType, DoubleArray > matrix = SyntheticSimilarities.matrix( SyntheticSimilarities.truth( size, new Random( 100 ) ), range );
+
+		final double[] startingCoordinates = SyntheticSimilarities.startingCoordinates( size );
+
+		// coarse levels need fits for their own size and range
+		for ( final AbstractCorrelationFit.Factory fits : SyntheticSimilarities.correlationFitFactories() )
+		{
+			final Options o = Options.generateDefaultOptions();
+			o.comparisonRange = range;
+			o.nIterations = 5;
+			o.estimateWindowRadius = 40;
+
+			// single level is the same as plain inference
+			Assert.assertArrayEquals(
+					new InferFromMatrix( fits.create( size, o ) ).estimate( matrix, startingCoordinates, o ).coordinates,
+					new InferFromMatrix( fits.create( size, o ) ).estimateCoarseToFine( matrix, startingCoordinates, fits, o ).coordinates,
+					0.0 );
+
+			o.pyramidLevels = 3;
+			o.pyramidIterations = 50;
+			final double[] coordinates = new InferFromMatrix( fits.create( size, o ) ).estimateCoarseToFine( matrix, startingCoordinates, fits, o ).coordinates;
+			Assert.assertEquals( size, coordinates.length );
+			for ( final double coordinate : coordinates )
+				Assert.assertTrue( Double.isFinite( coordinate ) );
+
+			// coarse levels do not write checkpoints
+			final File checkpoint = File.createTempFile( "z-spacing", ".checkpoint" );
+			Assert.assertTrue( checkpoint.delete() );
+			o.checkpointFile = checkpoint.getAbsolutePath();
+			o.checkpointInterval = 20;
+			new InferFromMatrix( fits.create( size, o ) ).estimateCoarseToFine( matrix, startingCoordinates, fits, o );
+			Assert.assertFalse( checkpoint.exists() );
+
+			// options written before pyramidIterations existed
+			o.checkpointFile = "";
+			o.pyramidIterations = null;
+			Assert.assertEquals( size, new InferFromMatrix( fits.create( size, o ) ).estimateCoarseToFine( matrix, startingCoordinates, fits, o ).coordinates.length );
+		}
+	}
+
+	@Test
+	public void testFixedCoordinates() throws Exception
+	{
+		final int size = 40;
+		final int range = 5;
+		final int nFixed = range;
+		final double[] truth = SyntheticSimilarities.truth( size, new Random( 100 ) );
+		final ArrayImg< DoubleType, DoubleArray > matrix = SyntheticSimilarities.matrix( truth, range );
+
+		final double[] startingCoordinates = new double[ size ];
+		final double[] fixedCoordinates = new double[ size ];
+		Arrays.fill( fixedCoordinates, Double.NaN );
+		for ( int z = 0; z < size; ++z )
+		{
+			startingCoordinates[ z ] = z;
+			if ( z < nFixed )
+				fixedCoordinates[ z ] = truth[ z ];
+		}
+		System.arraycopy( truth, 0, startingCoordinates, 0, nFixed );
+
+		final double[] ones = new double[ size ];
+		Arrays.fill( ones, 1.0 );
+
+		for ( final IntFunction< AbstractCorrelationFit > fit : SyntheticSimilarities.correlationFits( range, 10 ) )
+		{
+			for ( final boolean usePrimitiveStrip : new boolean[] { false, true } )
+			{
+				final Options o = Options.generateDefaultOptions();
+				o.comparisonRange = range;
+				o.nIterations = 20;
+				o.regularizationType = RegularizationType.NONE;
+				o.usePrimitiveStrip = usePrimitiveStrip;
+
+				final Visitor visitor = new Visitor()
+				{
+					@Override
+					public < T extends RealType< T > > void act( final int iteration, final RandomAccessibleInterval< T > matrix, final RandomAccessibleInterval< T > scaledMatrix, final double[] lut, final int[] permutation, final int[] inversePermutation, final double[] multipliers, final RandomAccessibleInterval< double[] > estimatedFit )
+					{
+						for ( int z = 0; z < nFixed; ++z )
+							Assert.assertEquals( truth[ z ], lut[ z ], 0.0 );
+					}
+				};
+
+				final double[] coordinates = new InferFromMatrix( fit.apply( size ) ).estimate(
+						matrix,
+						startingCoordinates,
+						new double[ 0 ],
+						ones.clone(),
+						ConstantUtils.constantRandomAccessibleInterval( new DoubleType( 1.0 ), 2, matrix ),
+						ones.clone(),
+						fixedCoordinates,
+						visitor,
+						o ).coordinates;
+				for ( int z = 0; z < nFixed; ++z )
+					Assert.assertEquals( truth[ z ], coordinates[ z ], 0.0 );
+				for ( final double coordinate : coordinates )
+					Assert.assertTrue( Double.isFinite( coordinate ) );
+			}
+		}
+	}
+
+	@Test
+	public void testCloseShutsDownOwnedPool()
+	{
+		final InferFromMatrix inf = new InferFromMatrix( new GlobalCorrelationFitAverage() );
+		Assert.assertNull( inf.getPool( 1 ) );
+		final ForkJoinPool owned = inf.getPool( 2 );
+		Assert.assertSame( owned, inf.getPool( 2 ) );
+		inf.close();
+		Assert.assertTrue( owned.isShutdown() );
+
+		// pools passed by the caller stay alive
+		final ForkJoinPool pool = new ForkJoinPool( 2 );
+		try (final InferFromMatrix shared = new InferFromMatrix( new GlobalCorrelationFitAverage(), pool ))
+		{
+			Assert.assertSame( pool, shared.getPool( 2 ) );
+		}
+		Assert.assertFalse( pool.isShutdown() );
+		pool.shutdown();
+	}
+
 }
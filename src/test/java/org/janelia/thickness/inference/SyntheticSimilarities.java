@@ -0,0 +1,136 @@
+package org.janelia.thickness.inference;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntFunction;
+
+import org.janelia.thickness.inference.fits.AbstractCorrelationFit;
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverageRegularized;
+import org.janelia.thickness.inference.fits.LocalCorrelationFitAverage;
+
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * Synthetic inference problems for tests: sections at random walk
+ * coordinates with similarities that decay exponentially with the distance
+ * of their coordinates.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class SyntheticSimilarities
+{
+
+	/**
+	 * @return coordinates starting at 0 with steps uniformly distributed in
+	 *         [0.5, 1.5)
+	 */
+	public static double[] truth( final int size, final Random rng )
+	{
+		final double[] truth = new double[ size ];
+		for ( int z = 1; z < size; ++z )
+			truth[ z ] = truth[ z - 1 ] + 0.5 + rng.nextDouble();
+		return truth;
+	}
+
+	/**
+	 * @return similarity of sections x and y, NaN if they are not within
+	 *         range or outside of truth
+	 */
+	public static double similarity( final double[] truth, final int x, final int y, final int range )
+	{
+		if ( Math.abs( x - y ) > range || x < 0 || y < 0 || x >= truth.length || y >= truth.length )
+			return Double.NaN;
+		return Math.exp( -Math.abs( truth[ x ] - truth[ y ] ) / range );
+	}
+
+	/**
+	 * @return row y of the strip of width 2 * range + 1
+	 */
+	public static double[] row( final double[] truth, final int y, final int range )
+	{
+		final double[] row = new double[ 2 * range + 1 ];
+		for ( int d = -range; d <= range; ++d )
+			row[ d + range ] = similarity( truth, y + d, y, range );
+		return row;
+	}
+
+	public static ArrayImg< DoubleType, DoubleArray > matrix( final double[] truth, final int range )
+	{
+		return matrix( truth, range, null );
+	}
+
+	/**
+	 * @param noise
+	 *            multiply similarities within range by a factor uniformly
+	 *            distributed in [0.95, 1.05), no noise if null
+	 */
+	public static ArrayImg< DoubleType, DoubleArray > matrix( final double[] truth, final int range, final Random noise )
+	{
+		final ArrayImg< DoubleType, DoubleArray > matrix = ArrayImgs.doubles( truth.length, truth.length );
+		final ArrayCursor< DoubleType > c = matrix.cursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			final double similarity = similarity( truth, c.getIntPosition( 0 ), c.getIntPosition( 1 ), range );
+			c.get().set( noise == null || Double.isNaN( similarity ) ? similarity : similarity * ( 0.95 + 0.1 * noise.nextDouble() ) );
+		}
+		return matrix;
+	}
+
+	/**
+	 * @return 0, 1, ..., size - 1
+	 */
+	public static double[] startingCoordinates( final int size )
+	{
+		final double[] startingCoordinates = new double[ size ];
+		for ( int z = 0; z < size; ++z )
+			startingCoordinates[ z ] = z;
+		return startingCoordinates;
+	}
+
+	/**
+	 * Global, regularized global and local correlation fits for the size and
+	 * {@link Options#comparisonRange} and {@link Options#estimateWindowRadius}
+	 * of a problem.
+	 */
+	public static List< AbstractCorrelationFit.Factory > correlationFitFactories()
+	{
+		return Arrays.asList(
+				( n, o ) -> new GlobalCorrelationFitAverage(),
+				( n, o ) -> new GlobalCorrelationFitAverageRegularized( regularizer( o.comparisonRange ), 0.5 ),
+				( n, o ) -> new LocalCorrelationFitAverage( n, o ) );
+	}
+
+	/**
+	 * {@link #correlationFitFactories()} for problems of the given number of
+	 * sections that all share range and estimateWindowRadius.
+	 */
+	public static List< IntFunction< AbstractCorrelationFit > > correlationFits( final int range, final int estimateWindowRadius )
+	{
+		final Options options = Options.generateDefaultOptions();
+		options.comparisonRange = range;
+		options.estimateWindowRadius = estimateWindowRadius;
+
+		final List< IntFunction< AbstractCorrelationFit > > fits = new ArrayList<>();
+		for ( final AbstractCorrelationFit.Factory factory : correlationFitFactories() )
+			fits.add( n -> factory.create( n, options ) );
+		return fits;
+	}
+
+	private static double[] regularizer( final int range )
+	{
+		final double[] reg = new double[ range + 1 ];
+		for ( int k = 0; k < reg.length; ++k )
+			reg[ k ] = -Math.exp( -( double ) k / range );
+		return reg;
+	}
+
+}
@@ -0,0 +1,125 @@
+package org.janelia.thickness.inference;
+
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.janelia.thickness.inference.fits.GlobalCorrelationFitAverage;
+import org.janelia.thickness.lut.LUTGrid;
+import org.janelia.thickness.plugin.NCCKernel;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.FloatArray;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+
+public class TiledInferenceTest
+{
+
+	@Test
+	public void testSmooth()
+	{
+		// constant luts stay constant
+		final double[][] constant = new double[ 6 ][];
+		for ( int i = 0; i < constant.length; ++i )
+			constant[ i ] = new double[] { 0.0, 1.5, 2.0 };
+		TiledInference.smooth( constant, 3, 2, 0.5, 3 );
+		for ( final double[] lut : constant )
+			Assert.assertArrayEquals( new double[] { 0.0, 1.5, 2.0 }, lut, 1e-12 );
+
+		// 1 x 3 grid, one iteration
+		final double[][] luts = { { 0.0, 1.0 }, { 0.0, 2.0 }, { 0.0, 4.0 } };
+		TiledInference.smooth( luts, 3, 1, 0.5, 1 );
+		Assert.assertArrayEquals( new double[] { 0.0, 1.5 }, luts[ 0 ], 1e-12 );
+		Assert.assertArrayEquals( new double[] { 0.0, 2.25 }, luts[ 1 ], 1e-12 );
+		Assert.assertArrayEquals( new double[] { 0.0, 3.0 }, luts[ 2 ], 1e-12 );
+	}
+
+	@Test
+	public void testFillMissing()
+	{
+		final double[][] luts = { { 0.0, 1.0 }, null, null, { 0.0, 3.0 } };
+		TiledInference.fillMissing( luts, 2, 2, 2 );
+		Assert.assertArrayEquals( new double[] { 0.0, 2.0 }, luts[ 1 ], 1e-12 );
+		Assert.assertArrayEquals( new double[] { 0.0, 2.0 }, luts[ 2 ], 1e-12 );
+
+		final double[][] chain = { { 0.0, 1.0 }, null, null };
+		TiledInference.fillMissing( chain, 3, 1, 2 );
+		Assert.assertArrayEquals( new double[] { 0.0, 1.0 }, chain[ 2 ], 1e-12 );
+
+		final double[][] none = new double[ 2 ][];
+		TiledInference.fillMissing( none, 2, 1, 3 );
+		Assert.assertArrayEquals( new double[] { 0.0, 1.0, 2.0 }, none[ 1 ], 0.0 );
+	}
+
+	@Test
+	public void testSimilarityStrip()
+	{
+		final int width = 6;
+		final int height = 5;
+		final int depth = 12;
+		final int range = 3;
+		final Random rng = new Random( 100 );
+		final float[][] sections = new float[ depth ][ width * height ];
+		final ArrayImg< FloatType, FloatArray > stack = ArrayImgs.floats( width, height, depth );
+		final ArrayCursor< FloatType > c = stack.cursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			final float value = rng.nextFloat();
+			c.get().set( value );
+			sections[ c.getIntPosition( 2 ) ][ c.getIntPosition( 1 ) * width + c.getIntPosition( 0 ) ] = value;
+		}
+
+		final NCCKernel kernel = NCCKernel.get();
+		final ArrayImg< FloatType, FloatArray > strip = TiledInference.similarityStrip( Views.translate( stack, 3, -2, 7 ), range );
+		final float[] data = strip.update( null ).getCurrentStorageArray();
+		for ( int z = 0; z < depth; ++z )
+			for ( int d = -range; d <= range; ++d )
+			{
+				final float expected = z + d < 0 || z + d >= depth
+						? Float.NaN
+						: d == 0 ? 1.0f : ( float ) kernel.ncc( sections[ Math.min( z, z + d ) ], sections[ Math.max( z, z + d ) ] );
+				Assert.assertEquals( expected, data[ z * ( 2 * range + 1 ) + range + d ], 1e-6f );
+			}
+	}
+
+	@Test
+	public void testEstimate() throws Exception
+	{
+		final int width = 40;
+		final int height = 20;
+		final int depth = 30;
+		final ArrayImg< FloatType, FloatArray > stack = ArrayImgs.floats( width, height, depth );
+		final ArrayCursor< FloatType > c = stack.cursor();
+		while ( c.hasNext() )
+		{
+			c.fwd();
+			final double x = c.getDoublePosition( 0 );
+			final double y = c.getDoublePosition( 1 );
+			final double z = c.getDoublePosition( 2 );
+			c.get().setReal( Math.sin( 0.3 * x + 0.7 * y + 0.5 * z * ( 1.0 + x / width ) ) );
+		}
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = 4;
+		o.nIterations = 5;
+
+		final ExecutorService es = Executors.newFixedThreadPool( 2 );
+		final LUTGrid grid = new TiledInference( n -> new GlobalCorrelationFitAverage() ).estimate( stack, new int[] { 20, 10 }, 0.5, 2, o, es, 2 );
+		es.shutdown();
+
+		Assert.assertEquals( 3, grid.numSourceDimensions() );
+		final double[] source = { 5.0, 5.0, 10.0 };
+		final double[] target = new double[ 3 ];
+		grid.apply( source, target );
+		Assert.assertEquals( source[ 0 ], target[ 0 ], 0.0 );
+		Assert.assertEquals( source[ 1 ], target[ 1 ], 0.0 );
+		Assert.assertTrue( Double.isFinite( target[ 2 ] ) );
+	}
+
+}
@@ -0,0 +1,102 @@
+package org.janelia.thickness.inference.fits;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.janelia.thickness.inference.Options;
+import org.janelia.thickness.lut.LUTRealTransform;
+import org.janelia.utility.DoubleStrip;
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.view.Views;
+
+public class AbstractCorrelationFitTest
+{
+
+	@Test
+	public void testParallelEqualsSequential() throws Exception
+	{
+		final int size = 3 * AbstractCorrelationFit.PARALLEL_BLOCK_SIZE + 17;
+
+		final int range = 8;
+
+		final Random rng = new Random( 100 );
+
+		final double[] coordinates = new double[ size ];
+		final int[] permutation = new int[ size ];
+		for ( int z = 0; z < size; ++z )
+		{
+			coordinates[ z ] = z + 0.4 * rng.nextDouble();
+			permutation[ z ] = z;
+		}
+
+		final DoubleStrip correlations = new DoubleStrip( size, range );
+		final DoubleStrip weights = new DoubleStrip( size, range );
+		for ( int y = 0; y < size; ++y )
+			for ( int x = Math.max( y - range, 0 ); x < Math.min( y + range + 1, size ); ++x )
+			{
+				correlations.set( x, y, Math.exp( -Math.abs( coordinates[ x ] - coordinates[ y ] ) / range ) );
+				weights.set( x, y, 0.5 + rng.nextDouble() );
+			}
+
+		final Options o = Options.generateDefaultOptions();
+		o.comparisonRange = range;
+		o.estimateWindowRadius = 100;
+
+		final LUTRealTransform transform = new LUTRealTransform( coordinates, 1, 1 );
+
+		final ForkJoinPool pool = new ForkJoinPool( 3 );
+		try
+		{
+			for ( final AbstractCorrelationFit fit : new AbstractCorrelationFit[] {
+					new GlobalCorrelationFitAverage(),
+					new LocalCorrelationFitAverage( size, o ) } )
+			{
+				final RandomAccessibleInterval< double[] > sequential = fit.estimateFromStrip( correlations, permutation, coordinates, transform, weights, o, false );
+				final double[][] expected = new double[ size ][];
+				int z = 0;
+				for ( final double[] f : Views.flatIterable( sequential ) )
+					expected[ z++ ] = f.clone();
+
+				final RandomAccessibleInterval< double[] > parallel = fit.estimateFromStripParallel( correlations, permutation, coordinates, transform, weights, o, false, pool );
+				z = 0;
+				for ( final double[] f : Views.flatIterable( parallel ) )
+					Assert.assertArrayEquals( expected[ z++ ], f, 1e-12 );
+				Assert.assertEquals( size, z );
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	public void testSupportsPartials()
+	{
+		final Options o = Options.generateDefaultOptions();
+		o.estimateWindowRadius = 10;
+		Assert.assertTrue( new GlobalCorrelationFitAverage().supportsPartials() );
+		Assert.assertTrue( new LocalCorrelationFitAverage( 20, o ).supportsPartials() );
+		Assert.assertTrue( new GlobalCorrelationFitAverageRegularized( new double[] { -1.0, -0.5 }, 0.5 ).supportsPartials() );
+		Assert.assertFalse( new AbstractCorrelationFit()
+		{
+			@Override
+			protected void add( final int z, final int dz, final double value, final double weight )
+			{}
+
+			@Override
+			protected void init( final int size )
+			{}
+
+			@Override
+			protected RandomAccessibleInterval< double[] > estimate( final int size )
+			{
+				return null;
+			}
+		}.supportsPartials() );
+	}
+
+}
@@ -0,0 +1,105 @@
+package org.janelia.thickness.lut;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import net.imglib2.RealPoint;
+import net.imglib2.img.array.ArrayCursor;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.DoubleArray;
+import net.imglib2.type.numeric.real.DoubleType;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class FlatLUTGridTest
+{
+
+	@Test
+	public void testBilinear()
+	{
+		// 2 x 1 grid with luts z and 2 * z
+		final double[] data = { 0.0, 1.0, 2.0, 3.0, 0.0, 2.0, 4.0, 6.0 };
+		final FlatLUTGrid grid = new FlatLUTGrid( 3, 3, data, new int[] { 2, 1 }, new double[] { 1.0 }, new double[] { 0.0 } );
+		final double[] target = new double[ 3 ];
+		final double[] source = new double[ 3 ];
+
+		grid.apply( new double[] { 0.25, 0.0, 2.5 }, target );
+		Assert.assertArrayEquals( new double[] { 0.25, 0.0, 1.25 * 2.5 }, target, 1e-12 );
+
+		grid.applyInverse( source, target );
+		Assert.assertArrayEquals( new double[] { 0.25, 0.0, 2.5 }, source, 1e-12 );
+
+		// border extension
+		grid.apply( new double[] { -3.0, 5.0, 1.0 }, target );
+		Assert.assertEquals( 1.0, target[ 2 ], 0.0 );
+		grid.apply( new double[] { 7.0, -5.0, 1.0 }, target );
+		Assert.assertEquals( 2.0, target[ 2 ], 0.0 );
+
+		// out of range
+		grid.apply( new double[] { 0.0, 0.0, 3.5 }, target );
+		Assert.assertEquals( Double.MAX_VALUE, target[ 2 ], 0.0 );
+		grid.applyInverse( source, new double[] { 1.0, 0.0, -1.0 } );
+		Assert.assertEquals( -Double.MAX_VALUE, source[ 2 ], 0.0 );
+
+		Assert.assertEquals( 6.0, grid.maxTransformedCoordinate( new double[] { 1.0, 0.0 } ), 0.0 );
+		Assert.assertEquals( 0.0, grid.minTransformedCoordinate( new double[] { 0.5, 0.0 } ), 0.0 );
+	}
+
+	@Test
+	public void testSameAsLUTGrid()
+	{
+		final Random rng = new Random( 100 );
+		final int nx = 4;
+		final int ny = 3;
+		final int depth = 20;
+		final ArrayImg< DoubleType, DoubleArray > lutArray = ArrayImgs.doubles( nx, ny, depth );
+		final double[] offsets = new double[ nx * ny ];
+		for ( final ArrayCursor< DoubleType > c = lutArray.cursor(); c.hasNext(); )
+		{
+			c.fwd();
+			final int node = c.getIntPosition( 1 ) * nx + c.getIntPosition( 0 );
+			offsets[ node ] += 0.5 + rng.nextDouble();
+			c.get().set( offsets[ node ] );
+		}
+
+		final double[] scale = { 10.0, 20.0 };
+		final double[] shift = { 4.5, 9.5 };
+		final LUTGrid reference = new LUTGrid( 3, 3, lutArray, scale, shift );
+		final FlatLUTGrid grid = new FlatLUTGrid( 3, 3, lutArray, scale, shift );
+
+		final double[] expected = new double[ 3 ];
+		final double[] actual = new double[ 3 ];
+		final RealPoint expectedPoint = new RealPoint( 3 );
+		final RealPoint actualPoint = new RealPoint( 3 );
+		for ( int i = 0; i < 1000; ++i )
+		{
+			final double[] position = { -10 + 60 * rng.nextDouble(), -10 + 80 * rng.nextDouble(), depth * rng.nextDouble() - 1.0 };
+
+			reference.apply( position, expected );
+			grid.apply( position, actual );
+			Assert.assertArrayEquals( expected, actual, 1e-10 );
+
+			reference.applyInverse( expected, position );
+			grid.applyInverse( actual, position );
+			Assert.assertArrayEquals( expected, actual, 1e-10 );
+
+			final RealPoint p = new RealPoint( position );
+			reference.applyInverse( expectedPoint, p );
+			grid.applyInverse( actualPoint, p );
+			for ( int d = 0; d < 3; ++d )
+				Assert.assertEquals( expectedPoint.getDoublePosition( d ), actualPoint.getDoublePosition( d ), 1e-10 );
+		}
+
+		final FlatLUTGrid rescaled = grid.reScale( 5.0 );
+		final LUTGrid rescaledReference = reference.reScale( 5.0 );
+		rescaledReference.apply( new double[] { 7.0, 3.0, 4.2 }, expected );
+		rescaled.apply( new double[] { 7.0, 3.0, 4.2 }, actual );
+		Assert.assertArrayEquals( expected, actual, 1e-10 );
+	}
+
+}
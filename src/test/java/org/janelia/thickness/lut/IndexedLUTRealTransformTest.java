@@ -0,0 +1,97 @@
+package org.janelia.thickness.lut;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IndexedLUTRealTransformTest
+{
+
+	private static void assertSameInverse( final double[] lut, final double[] values, final int nBuckets )
+	{
+		final LUTRealTransform reference = new LUTRealTransform( lut, 1, 1 );
+		final IndexedLUTRealTransform indexed = new IndexedLUTRealTransform( lut, 1, 1, nBuckets );
+		for ( final double v : values )
+		{
+			Assert.assertEquals( reference.findFloorIndex( v ), indexed.findFloorIndex( v ) );
+			Assert.assertEquals( reference.applyInverseChecked( v ), indexed.applyInverseChecked( v ), 0.0 );
+		}
+	}
+
+	private static double[] probes( final double[] lut, final Random rng )
+	{
+		final double[] values = new double[ 4 * lut.length + 4 ];
+		for ( int i = 0; i < lut.length; ++i )
+		{
+			values[ 4 * i ] = lut[ i ];
+			values[ 4 * i + 1 ] = Math.nextUp( lut[ i ] );
+			values[ 4 * i + 2 ] = Math.nextDown( lut[ i ] );
+			values[ 4 * i + 3 ] = lut[ 0 ] + rng.nextDouble() * ( lut[ lut.length - 1 ] - lut[ 0 ] );
+		}
+		final int n = values.length;
+		values[ n - 4 ] = lut[ 0 ] - 1.0;
+		values[ n - 3 ] = lut[ lut.length - 1 ] + 1.0;
+		values[ n - 2 ] = Double.NEGATIVE_INFINITY;
+		values[ n - 1 ] = Double.POSITIVE_INFINITY;
+		return values;
+	}
+
+	@Test
+	public void testInverseEqualsBinarySearch()
+	{
+		final Random rng = new Random( 100 );
+		final double[] lut = new double[ 200 ];
+		for ( int i = 1; i < lut.length; ++i )
+			// skewed steps and duplicates
+			lut[ i ] = lut[ i - 1 ] + ( rng.nextInt( 5 ) == 0 ? 0.0 : Math.pow( rng.nextDouble(), 4 ) );
+
+		final double[] values = probes( lut, rng );
+		Assert.assertTrue( new IndexedLUTRealTransform( lut, 1, 1 ).isIndexed() );
+		for ( final int nBuckets : new int[] { 1, 7, lut.length, 10 * lut.length } )
+			assertSameInverse( lut, values, nBuckets );
+	}
+
+	@Test
+	public void testFallback()
+	{
+		final Random rng = new Random( 100 );
+
+		final double[] constant = new double[ 10 ];
+		Arrays.fill( constant, 3.0 );
+		Assert.assertFalse( new IndexedLUTRealTransform( constant, 1, 1 ).isIndexed() );
+		assertSameInverse( constant, probes( constant, rng ), constant.length );
+
+		final double[] huge = { -Double.MAX_VALUE, 0.0, Double.MAX_VALUE };
+		Assert.assertFalse( new IndexedLUTRealTransform( huge, 1, 1 ).isIndexed() );
+		assertSameInverse( huge, new double[] { -1.0, 0.0, 1.0 }, huge.length );
+
+		final double[] decreasing = { 3.0, 2.0, 1.0 };
+		Assert.assertFalse( new IndexedLUTRealTransform( decreasing, 1, 1 ).isIndexed() );
+
+		final double[] nan = { 0.0, Double.NaN, 1.0 };
+		Assert.assertFalse( new IndexedLUTRealTransform( nan, 1, 1 ).isIndexed() );
+	}
+
+	@Test
+	public void testBatch()
+	{
+		final double[] lut = { 0.0, 1.0, 3.0, 6.0 };
+		final IndexedLUTRealTransform t = new IndexedLUTRealTransform( lut, 1, 1 );
+
+		final double[] source = { -1.0, 0.0, 0.5, 1.5, 2.0, 3.0, 4.0 };
+		final double[] target = new double[ source.length ];
+		t.applyBatch( source, target );
+		Assert.assertArrayEquals( new double[] { -Double.MAX_VALUE, 0.0, 0.5, 2.0, 3.0, 6.0, Double.MAX_VALUE }, target, 0.0 );
+
+		final double[] inverse = new double[ source.length ];
+		t.applyInverseBatch( inverse, target );
+		Assert.assertArrayEquals( new double[] { -Double.MAX_VALUE, 0.0, 0.5, 1.5, 2.0, 3.0, Double.MAX_VALUE }, inverse, 0.0 );
+
+		final IndexedLUTRealTransform copy = t.copy();
+		for ( final double v : target )
+			Assert.assertEquals( t.applyInverseChecked( v ), copy.applyInverseChecked( v ), 0.0 );
+	}
+
+}
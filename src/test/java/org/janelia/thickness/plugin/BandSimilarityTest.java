@@ -0,0 +1,175 @@
+package org.janelia.thickness.plugin;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class BandSimilarityTest
+{
+
+	private final int n = 50;
+
+	private final int range = 4;
+
+	private ExecutorService es;
+
+	@Before
+	public void setUp()
+	{
+		es = Executors.newFixedThreadPool( 4 );
+	}
+
+	@After
+	public void tearDown()
+	{
+		es.shutdownNow();
+	}
+
+	@Test
+	public void testAllPairsLoadOnce() throws InterruptedException, ExecutionException
+	{
+		final AtomicIntegerArray loads = new AtomicIntegerArray( n );
+		final double[][] result = new double[ n ][ n ];
+		final BandSimilarity< Integer > band = new BandSimilarity<>(
+				n,
+				range,
+				z -> {
+					loads.incrementAndGet( z );
+					// section 7 is missing
+					return z == 7 ? null : z;
+				},
+				( a, b ) -> a * 1000 + b,
+				es,
+				8 );
+		band.compute( ( i, j, similarity ) -> {
+			result[ i ][ j ] += similarity;
+			result[ j ][ i ] += similarity;
+		} );
+
+		for ( int z = 0; z < n; ++z )
+			Assert.assertEquals( 1, loads.get( z ) );
+
+		for ( int i = 0; i < n; ++i )
+			for ( int j = 0; j < n; ++j )
+			{
+				final double expected = i == j || Math.abs( i - j ) > range || i == 7 || j == 7 ? 0.0 : Math.min( i, j ) * 1000 + Math.max( i, j );
+				Assert.assertEquals( expected, result[ i ][ j ], 0.0 );
+			}
+	}
+
+	@Test( expected = ExecutionException.class )
+	public void testFailure() throws InterruptedException, ExecutionException
+	{
+		new BandSimilarity< Integer >(
+				n,
+				range,
+				z -> z,
+				( a, b ) -> {
+					if ( b == 20 )
+						throw new RuntimeException( "failed" );
+					return 0.0;
+				},
+				es,
+				8 ).compute( ( i, j, similarity ) -> {} );
+	}
+
+	@Test( expected = CancellationException.class )
+	public void testCancel() throws InterruptedException, ExecutionException
+	{
+		final BandSimilarity< Integer >[] band = new BandSimilarity[ 1 ];
+		band[ 0 ] = new BandSimilarity<>(
+				n,
+				range,
+				z -> z,
+				( a, b ) -> {
+					if ( b == 10 )
+						band[ 0 ].cancel();
+					return 0.0;
+				},
+				es,
+				8 );
+		band[ 0 ].compute( ( i, j, similarity ) -> {} );
+	}
+
+	/**
+	 * One thread, first pair blocks until blocked is counted down, even if
+	 * interrupted, second pair is queued and compute waits for a permit.
+	 */
+	private void computeBlocked( final Consumer< BandSimilarity< ? > > cancel, final BooleanSupplier abort ) throws InterruptedException, ExecutionException
+	{
+		final ExecutorService single = Executors.newSingleThreadExecutor();
+		final CountDownLatch blocked = new CountDownLatch( 1 );
+		final BandSimilarity< Integer >[] band = new BandSimilarity[ 1 ];
+		band[ 0 ] = new BandSimilarity<>(
+				n,
+				range,
+				z -> z,
+				( a, b ) -> {
+					while ( blocked.getCount() > 0 )
+					{
+						try
+						{
+							blocked.await();
+						}
+						catch ( final InterruptedException e )
+						{
+							// ignore to keep the permit
+						}
+					}
+					return 0.0;
+				},
+				single,
+				2 );
+		final Thread canceler = new Thread( () -> {
+			try
+			{
+				Thread.sleep( 200 );
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+			cancel.accept( band[ 0 ] );
+		} );
+		canceler.start();
+		try
+		{
+			band[ 0 ].compute( ( i, j, similarity ) -> {}, abort );
+		}
+		finally
+		{
+			blocked.countDown();
+			canceler.join();
+			single.shutdownNow();
+		}
+	}
+
+	@Test( expected = CancellationException.class, timeout = 10000 )
+	public void testCancelWhileWaitingForPermits() throws InterruptedException, ExecutionException
+	{
+		computeBlocked( BandSimilarity::cancel, () -> false );
+	}
+
+	@Test( expected = CancellationException.class, timeout = 10000 )
+	public void testAbortWhileWaitingForPermits() throws InterruptedException, ExecutionException
+	{
+		final AtomicBoolean abort = new AtomicBoolean( false );
+		computeBlocked( band -> abort.set( true ), abort::get );
+	}
+
+}
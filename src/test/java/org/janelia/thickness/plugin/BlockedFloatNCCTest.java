@@ -0,0 +1,105 @@
+package org.janelia.thickness.plugin;
+
+import java.util.Random;
+
+import org.janelia.thickness.plugin.CachedStatisticsFloatNCC.Statistics;
+import org.janelia.thickness.trakem2.RealSumARGBNCC;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class BlockedFloatNCCTest
+{
+
+	// not a multiple of block size
+	private final int size = 3 * BlockedFloatNCC.BLOCK_SIZE + 17;
+
+	private final Random rng = new Random( 100 );
+
+	@Test
+	public void testFloat()
+	{
+		final float[] a = new float[ size ];
+		final float[] b = new float[ size ];
+		for ( int i = 0; i < size; ++i )
+		{
+			a[ i ] = 100 + rng.nextFloat();
+			b[ i ] = 0.5f * a[ i ] + rng.nextFloat();
+		}
+		for ( int i = 0; i < size; i += 7 )
+			a[ i ] = Float.NaN;
+		for ( int i = 0; i < size; i += 11 )
+			b[ i ] = Float.NaN;
+
+		final double expected = new RealSumFloatNCC( a, b ).call();
+		Assert.assertEquals( expected, BlockedFloatNCC.ncc( a, b ), 1e-9 );
+
+		final Statistics as = BlockedFloatNCC.statistics( a );
+		final Statistics bs = BlockedFloatNCC.statistics( b );
+		final Statistics expectedAs = Statistics.of( a );
+		Assert.assertEquals( expectedAs.n, as.n );
+		Assert.assertEquals( expectedAs.sum, as.sum, 1e-9 * Math.abs( expectedAs.sum ) );
+		Assert.assertEquals( expectedAs.sumOfSquares, as.sumOfSquares, 1e-9 * Math.abs( expectedAs.sumOfSquares ) );
+		Assert.assertEquals( expected, BlockedFloatNCC.ncc( a, as, b, bs ), 1e-9 );
+
+		for ( final NCCKernel kernel : NCCKernel.values() )
+		{
+			Assert.assertEquals( expected, kernel.ncc( a, b ), 1e-9 );
+			Assert.assertEquals( expected, kernel.ncc( a, kernel.statistics( a ), b, kernel.statistics( b ) ), 1e-9 );
+		}
+	}
+
+	@Test
+	public void testARGB()
+	{
+		final int[] a = new int[ size ];
+		final int[] b = new int[ size ];
+		for ( int i = 0; i < size; ++i )
+		{
+			a[ i ] = rng.nextInt();
+			b[ i ] = rng.nextInt();
+		}
+		for ( int i = 0; i < size; i += 13 )
+			a[ i ] |= 0xff00;
+
+		final double expected = new RealSumARGBNCC( a, b ).call();
+		Assert.assertEquals( expected, BlockedFloatNCC.ncc( a, b ), 1e-9 );
+		for ( final NCCKernel kernel : NCCKernel.values() )
+			Assert.assertEquals( expected, kernel.ncc( a, b ), 1e-9 );
+	}
+
+	@Test
+	public void testKernelProperty()
+	{
+		final String property = System.getProperty( NCCKernel.PROPERTY );
+		try
+		{
+			System.clearProperty( NCCKernel.PROPERTY );
+			Assert.assertEquals( NCCKernel.REAL_SUM, NCCKernel.get() );
+			System.setProperty( NCCKernel.PROPERTY, "BLOCKED" );
+			Assert.assertEquals( NCCKernel.BLOCKED, NCCKernel.get() );
+
+			System.setProperty( NCCKernel.PROPERTY, "BLOCKD" );
+			try
+			{
+				NCCKernel.get();
+				Assert.fail( "Expected IllegalArgumentException" );
+			}
+			catch ( final IllegalArgumentException e )
+			{
+				Assert.assertTrue( e.getMessage().contains( "REAL_SUM" ) && e.getMessage().contains( "BLOCKED" ) );
+			}
+		}
+		finally
+		{
+			if ( property == null )
+				System.clearProperty( NCCKernel.PROPERTY );
+			else
+				System.setProperty( NCCKernel.PROPERTY, property );
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+package org.janelia.thickness.plugin;
+
+import java.util.Random;
+
+import org.janelia.thickness.trakem2.RealSumARGBNCC;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class CachedStatisticsFloatNCCTest
+{
+
+	private final Random rng = new Random( 100 );
+
+	@Test
+	public void testSameAsRealSumFloatNCC()
+	{
+		final int size = 1000;
+		final float[] a = new float[ size ];
+		final float[] b = new float[ size ];
+		for ( int i = 0; i < size; ++i )
+		{
+			a[ i ] = rng.nextFloat();
+			b[ i ] = 0.5f * a[ i ] + rng.nextFloat();
+		}
+
+		final CachedStatisticsFloatNCC.Statistics as = CachedStatisticsFloatNCC.Statistics.of( a );
+		final CachedStatisticsFloatNCC.Statistics bs = CachedStatisticsFloatNCC.Statistics.of( b );
+		Assert.assertEquals( size, as.n );
+		Assert.assertEquals(
+				new RealSumFloatNCC( a, b ).call(),
+				new CachedStatisticsFloatNCC( a, as, b, bs ).call(),
+				1e-10 );
+
+		// different NaN masks
+		for ( int i = 0; i < size; i += 7 )
+			a[ i ] = Float.NaN;
+		for ( int i = 0; i < size; i += 11 )
+			b[ i ] = Float.NaN;
+		Assert.assertEquals(
+				new RealSumFloatNCC( a, b ).call(),
+				new CachedStatisticsFloatNCC( a, CachedStatisticsFloatNCC.Statistics.of( a ), b, CachedStatisticsFloatNCC.Statistics.of( b ) ).call(),
+				1e-10 );
+	}
+
+	@Test
+	public void testMaskedGray()
+	{
+		final int size = 500;
+		final int[] a = new int[ size ];
+		final int[] b = new int[ size ];
+		for ( int i = 0; i < size; ++i )
+		{
+			a[ i ] = rng.nextInt() & 0xffffff;
+			b[ i ] = rng.nextInt() & 0xffffff;
+		}
+		a[ 0 ] = 0xff0000;
+		b[ 1 ] = 0xffffff;
+
+		final float[] ga = CachedStatisticsFloatNCC.maskedGray( a );
+		final float[] gb = CachedStatisticsFloatNCC.maskedGray( b );
+		Assert.assertTrue( Float.isNaN( ga[ 0 ] ) );
+		Assert.assertTrue( Float.isNaN( gb[ 1 ] ) );
+
+		Assert.assertEquals(
+				new RealSumARGBNCC( a, b ).call(),
+				new CachedStatisticsFloatNCC( ga, CachedStatisticsFloatNCC.Statistics.of( ga ), gb, CachedStatisticsFloatNCC.Statistics.of( gb ) ).call(),
+				1e-5 );
+	}
+
+}
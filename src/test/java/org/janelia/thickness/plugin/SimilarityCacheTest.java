@@ -0,0 +1,158 @@
+package org.janelia.thickness.plugin;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class SimilarityCacheTest
+{
+
+	private final int n = 20;
+
+	private final int range = 3;
+
+	private Path directory;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		directory = Files.createTempDirectory( "z-spacing-similarities" );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		delete( directory );
+	}
+
+	private static void delete( final Path path ) throws IOException
+	{
+		if ( Files.isDirectory( path ) )
+			try (final DirectoryStream< Path > paths = Files.newDirectoryStream( path ))
+			{
+				for ( final Path child : paths )
+					delete( child );
+			}
+		Files.delete( path );
+	}
+
+	private float[] band( final long seed )
+	{
+		final Random rng = new Random( seed );
+		final float[] matrix = new float[ n * n ];
+		for ( int i = 0; i < n; ++i )
+			for ( int j = 0; j < n; ++j )
+				matrix[ i * n + j ] = i == j ? 1.0f : Math.abs( i - j ) <= range ? rng.nextFloat() : Float.NaN;
+		for ( int i = 0; i < n; ++i )
+			for ( int j = 0; j < i; ++j )
+				matrix[ i * n + j ] = matrix[ j * n + i ];
+		return matrix;
+	}
+
+	@Test
+	public void testStripConversion()
+	{
+		final float[] matrix = band( 1 );
+		final float[] strip = SimilarityCache.matrixToStrip( matrix, n, range );
+		Assert.assertEquals( n * ( 2 * range + 1 ), strip.length );
+		for ( int y = 0; y < n; ++y )
+			for ( int x = 0; x < 2 * range + 1; ++x )
+			{
+				final int z = y + x - range;
+				Assert.assertEquals( z < 0 || z >= n ? Float.NaN : matrix[ y * n + z ], strip[ y * ( 2 * range + 1 ) + x ], 0.0f );
+			}
+		Assert.assertArrayEquals( matrix, SimilarityCache.stripToMatrix( strip, n, range ), 0.0f );
+	}
+
+	@Test
+	public void testComputeOnce() throws InterruptedException, ExecutionException
+	{
+		final SimilarityCache cache = new SimilarityCache( directory.resolve( "cache" ) );
+		final AtomicInteger nComputed = new AtomicInteger();
+		final float[] strip = SimilarityCache.matrixToStrip( band( 2 ), n, range );
+		final SimilarityCache.Computation< float[] > compute = () -> {
+			nComputed.incrementAndGet();
+			return strip.clone();
+		};
+
+		final SimilarityCache.Key key = new SimilarityCache.Key().add( "method", "NCC" ).add( "scale", 0.5 );
+		Assert.assertArrayEquals( strip, cache.get( key, n, range, compute ), 0.0f );
+		Assert.assertArrayEquals( strip, cache.get( new SimilarityCache.Key( key ), n, range, compute ), 0.0f );
+		Assert.assertEquals( 1, nComputed.get() );
+
+		// any change of parameters or range is calculated again
+		cache.get( new SimilarityCache.Key().add( "method", "NCC" ).add( "scale", 0.25 ), n, range, compute );
+		Assert.assertEquals( 2, nComputed.get() );
+		cache.get( key, n, range - 1, () -> {
+			nComputed.incrementAndGet();
+			return new float[ n * ( 2 * range - 1 ) ];
+		} );
+		Assert.assertEquals( 3, nComputed.get() );
+
+		// canceled calculations are not cached
+		Assert.assertNull( cache.get( new SimilarityCache.Key(), n, range, () -> null ) );
+		Assert.assertFalse( Files.exists( cache.path( new SimilarityCache.Key(), n, range ) ) );
+	}
+
+	@Test
+	public void testFilesKey() throws IOException
+	{
+		final Path input = Files.createDirectory( directory.resolve( "input" ) );
+		for ( int z = 0; z < 3; ++z )
+			Files.write( input.resolve( z + ".tif" ), new byte[] { ( byte ) z } );
+
+		final String hash = new SimilarityCache.Key().addFiles( input ).hash();
+		Assert.assertEquals( hash, new SimilarityCache.Key().addFiles( input ).hash() );
+
+		Files.setLastModifiedTime( input.resolve( "1.tif" ), FileTime.fromMillis( 0 ) );
+		Assert.assertNotEquals( hash, new SimilarityCache.Key().addFiles( input ).hash() );
+	}
+
+	@Test
+	public void testCorruptFileIsReplaced() throws IOException, InterruptedException, ExecutionException
+	{
+		final SimilarityCache cache = new SimilarityCache( directory );
+		final SimilarityCache.Key key = new SimilarityCache.Key().add( "method", "NCC" );
+		final Path path = cache.path( key, n, range );
+		Files.write( path, new byte[] { 1, 2, 3 } );
+
+		final float[] strip = SimilarityCache.matrixToStrip( band( 3 ), n, range );
+		Assert.assertArrayEquals( strip, cache.get( key, n, range, () -> strip ), 0.0f );
+		Assert.assertArrayEquals( strip, SimilarityCache.read( path, n, range ), 0.0f );
+	}
+
+	@Test
+	public void testDisabled()
+	{
+		final String property = System.getProperty( SimilarityCache.PROPERTY );
+		try
+		{
+			System.setProperty( SimilarityCache.PROPERTY, "" );
+			Assert.assertNull( SimilarityCache.get() );
+			System.setProperty( SimilarityCache.PROPERTY, directory.toString() );
+			Assert.assertEquals( directory, SimilarityCache.get().getDirectory() );
+		}
+		finally
+		{
+			if ( property == null )
+				System.clearProperty( SimilarityCache.PROPERTY );
+			else
+				System.setProperty( SimilarityCache.PROPERTY, property );
+		}
+	}
+
+}
@@ -0,0 +1,97 @@
+package org.janelia.thickness.plugin;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.janelia.utility.StripFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class StreamingSimilarityTest
+{
+
+	@Test
+	public void testStrip() throws Exception
+	{
+		testStrip( 11, 3 );
+		// fewer sections than range
+		testStrip( 2, 3 );
+	}
+
+	private static void testStrip( final int n, final int range ) throws Exception
+	{
+		final Random rng = new Random( 100 );
+		final float[][] sections = new float[ n ][ 200 ];
+		for ( int z = 0; z < n; ++z )
+			for ( int i = 0; i < sections[ z ].length; ++i )
+				sections[ z ][ i ] = z == 0 ? rng.nextFloat() : sections[ z - 1 ][ i ] + 0.3f * rng.nextFloat();
+
+		final List< Integer > requested = new ArrayList<>();
+		final StreamingSimilarity.SectionSource source = new StreamingSimilarity.SectionSource()
+		{
+			@Override
+			public int size()
+			{
+				return n;
+			}
+
+			@Override
+			public float[] get( final int z )
+			{
+				requested.add( z );
+				return sections[ z ];
+			}
+		};
+
+		final int width = 2 * range + 1;
+		final float[] strip = new float[ n * width ];
+		final List< Integer > written = new ArrayList<>();
+		final Path path = Files.createTempFile( "z-spacing", ".strip" );
+		final ExecutorService es = Executors.newFixedThreadPool( 3 );
+		try
+		{
+			new StreamingSimilarity( range, NCCKernel.REAL_SUM, es ).computeStrip( source, ( y, row ) -> {
+				written.add( y );
+				System.arraycopy( row, 0, strip, y * width, width );
+			} );
+			new StreamingSimilarity( range, NCCKernel.REAL_SUM, es ).computeStrip( source, path );
+			Assert.assertArrayEquals( strip, StripFile.readFloats( path ), 0.0f );
+		}
+		finally
+		{
+			es.shutdown();
+			Files.delete( path );
+		}
+		requested.subList( n, requested.size() ).clear();
+
+		final List< Integer > expectedOrder = new ArrayList<>();
+		for ( int z = 0; z < n; ++z )
+			expectedOrder.add( z );
+		Assert.assertEquals( expectedOrder, requested );
+		Assert.assertEquals( expectedOrder, written );
+
+		for ( int y = 0; y < n; ++y )
+			for ( int x = 0; x < width; ++x )
+			{
+				final int other = y + x - range;
+				final float expected;
+				if ( other < 0 || other >= n )
+					expected = Float.NaN;
+				else if ( other == y )
+					expected = 1.0f;
+				else
+					expected = new RealSumFloatNCC( sections[ Math.min( y, other ) ], sections[ Math.max( y, other ) ] ).call().floatValue();
+				Assert.assertEquals( expected, strip[ y * width + x ], 1e-6f );
+			}
+	}
+
+}
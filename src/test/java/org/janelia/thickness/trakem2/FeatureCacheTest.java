@@ -0,0 +1,141 @@
+package org.janelia.thickness.trakem2;
+
+import java.awt.Rectangle;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.janelia.thickness.plugin.SimilarityCache;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class FeatureCacheTest
+{
+
+	private final Rectangle fov = new Rectangle( 10, 20, 300, 400 );
+
+	private Path directory;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		directory = Files.createTempDirectory( "z-spacing-features" );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		try (final DirectoryStream< Path > paths = Files.newDirectoryStream( directory ))
+		{
+			for ( final Path path : paths )
+				Files.delete( path );
+		}
+		Files.delete( directory );
+	}
+
+	private static ArrayList< Feature > features( final int n, final long seed )
+	{
+		final Random rng = new Random( seed );
+		final ArrayList< Feature > features = new ArrayList<>();
+		for ( int i = 0; i < n; ++i )
+		{
+			final Feature feature = new Feature();
+			feature.location = new double[] { rng.nextDouble() * 100, rng.nextDouble() * 100 };
+			feature.scale = rng.nextDouble();
+			feature.orientation = rng.nextDouble();
+			feature.descriptor = new float[ 128 ];
+			for ( int d = 0; d < feature.descriptor.length; ++d )
+				feature.descriptor[ d ] = rng.nextFloat();
+			features.add( feature );
+		}
+		return features;
+	}
+
+	/**
+	 * Same fields as {@link LayerZPosition#similarityKey} for a single patch.
+	 */
+	private SimilarityCache.Key key( final long patchId, final String file, final double scale )
+	{
+		return new SimilarityCache.Key()
+				.add( "fov", fov )
+				.add( "scale", scale )
+				.add( "layer", 1 )
+				.add( "patch", patchId )
+				.add( "file", file );
+	}
+
+	private static void assertEquals( final ArrayList< Feature > expected, final ArrayList< Feature > actual )
+	{
+		Assert.assertEquals( expected.size(), actual.size() );
+		for ( int i = 0; i < expected.size(); ++i )
+		{
+			Assert.assertArrayEquals( expected.get( i ).location, actual.get( i ).location, 0.0 );
+			Assert.assertEquals( expected.get( i ).scale, actual.get( i ).scale, 0.0 );
+			Assert.assertEquals( expected.get( i ).orientation, actual.get( i ).orientation, 0.0 );
+			Assert.assertArrayEquals( expected.get( i ).descriptor, actual.get( i ).descriptor, 0.0f );
+		}
+	}
+
+	@Test
+	public void testWriteRead() throws IOException
+	{
+		final Path path = directory.resolve( "features" );
+		final ArrayList< Feature > features = features( 100, 42 );
+		FeatureCache.write( path, features );
+		assertEquals( features, FeatureCache.read( path ) );
+
+		FeatureCache.write( path, new ArrayList<>() );
+		Assert.assertEquals( 0, FeatureCache.read( path ).size() );
+	}
+
+	@Test
+	public void testExtractOnce() throws Exception
+	{
+		final FeatureCache cache = new FeatureCache( directory );
+		final FloatArray2DSIFT.Param param = new FloatArray2DSIFT.Param();
+		final AtomicInteger nExtracted = new AtomicInteger();
+		final Callable< ArrayList< Feature > > extract = () -> {
+			nExtracted.incrementAndGet();
+			return features( 10, 7 );
+		};
+
+		final ArrayList< Feature > features = cache.get( key( 1, "1.tif", 0.5 ), param, extract );
+		assertEquals( features, cache.get( key( 1, "1.tif", 0.5 ), param, extract ) );
+		Assert.assertEquals( 1, nExtracted.get() );
+
+		// different layer content, scale or parameters are extracted again
+		cache.get( key( 1, "2.tif", 0.5 ), param, extract );
+		cache.get( key( 1, "1.tif", 0.25 ), param, extract );
+		param.steps += 1;
+		cache.get( key( 1, "1.tif", 0.5 ), param, extract );
+		Assert.assertEquals( 4, nExtracted.get() );
+	}
+
+	@Test
+	public void testCorruptFileIsReplaced() throws Exception
+	{
+		final FeatureCache cache = new FeatureCache( directory );
+		final FloatArray2DSIFT.Param param = new FloatArray2DSIFT.Param();
+		final Path path = directory.resolve( FeatureCache.fileName( key( 1, "1.tif", 1.0 ), param ) );
+		Files.write( path, new byte[] { 1, 2, 3 } );
+
+		final ArrayList< Feature > features = features( 10, 7 );
+		assertEquals( features, cache.get( key( 1, "1.tif", 1.0 ), param, () -> features ) );
+		assertEquals( features, FeatureCache.read( path ) );
+	}
+
+}
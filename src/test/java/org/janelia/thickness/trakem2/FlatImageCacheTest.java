@@ -0,0 +1,112 @@
+package org.janelia.thickness.trakem2;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Layers are compared by identity, so different fields of view stand in for
+ * different layers.
+ *
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class FlatImageCacheTest
+{
+
+	private static Rectangle fov( final int z )
+	{
+		return new Rectangle( z, 0, 10, 10 );
+	}
+
+	@Test
+	public void testRenderOnce() throws InterruptedException, ExecutionException
+	{
+		final FlatImageCache cache = new FlatImageCache( Long.MAX_VALUE );
+		final AtomicInteger nRendered = new AtomicInteger();
+		final Callable< float[] > render = () -> {
+			nRendered.incrementAndGet();
+			Thread.sleep( 10 );
+			return new float[ 100 ];
+		};
+
+		final ExecutorService es = Executors.newFixedThreadPool( 4 );
+		try
+		{
+			final List< Callable< float[] > > requests = new ArrayList<>();
+			for ( int i = 0; i < 8; ++i )
+				requests.add( () -> cache.get( null, fov( 0 ), 1.0, render ) );
+			final float[] first = cache.get( null, fov( 0 ), 1.0, render );
+			for ( final Future< float[] > f : es.invokeAll( requests ) )
+				Assert.assertSame( first, f.get() );
+			Assert.assertEquals( 1, nRendered.get() );
+
+			cache.prefetch( null, fov( 1 ), 1.0, render, es );
+			cache.get( null, fov( 1 ), 1.0, render );
+			Assert.assertEquals( 2, nRendered.get() );
+
+			// different scale is a different image
+			cache.get( null, fov( 1 ), 0.5, render );
+			Assert.assertEquals( 3, nRendered.get() );
+			Assert.assertEquals( 3 * 100 * Float.BYTES, cache.getBytes() );
+		}
+		finally
+		{
+			es.shutdown();
+		}
+	}
+
+	@Test
+	public void testEviction() throws InterruptedException, ExecutionException
+	{
+		// room for three images
+		final FlatImageCache cache = new FlatImageCache( 3 * 100 * Float.BYTES );
+		final AtomicInteger nRendered = new AtomicInteger();
+		final Callable< float[] > render = () -> {
+			nRendered.incrementAndGet();
+			return new float[ 100 ];
+		};
+
+		for ( int z = 0; z < 3; ++z )
+			cache.get( null, fov( z ), 1.0, render );
+		// touch 0, least recently used is 1
+		cache.get( null, fov( 0 ), 1.0, render );
+		cache.get( null, fov( 3 ), 1.0, render );
+		Assert.assertEquals( 3, cache.size() );
+		Assert.assertEquals( 4, nRendered.get() );
+
+		cache.get( null, fov( 0 ), 1.0, render );
+		cache.get( null, fov( 2 ), 1.0, render );
+		Assert.assertEquals( 4, nRendered.get() );
+
+		cache.get( null, fov( 1 ), 1.0, render );
+		Assert.assertEquals( 5, nRendered.get() );
+		Assert.assertEquals( 3 * 100 * Float.BYTES, cache.getBytes() );
+	}
+
+	@Test
+	public void testFailureIsRetried() throws InterruptedException
+	{
+		final FlatImageCache cache = new FlatImageCache( Long.MAX_VALUE );
+		try
+		{
+			cache.get( null, fov( 0 ), 1.0, () -> {
+				throw new RuntimeException( "failed" );
+			} );
+			Assert.fail();
+		}
+		catch ( final ExecutionException e )
+		{}
+		Assert.assertEquals( 0, cache.size() );
+	}
+
+}
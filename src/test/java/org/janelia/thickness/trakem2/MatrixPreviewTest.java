@@ -0,0 +1,44 @@
+package org.janelia.thickness.trakem2;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class MatrixPreviewTest
+{
+
+	@Test
+	public void testNumberOfPairs()
+	{
+		Assert.assertEquals( 0, MatrixPreview.numberOfPairs( 1, 3 ) );
+		Assert.assertEquals( 1, MatrixPreview.numberOfPairs( 2, 3 ) );
+		// 3 + 3 + 2 + 1
+		Assert.assertEquals( 9, MatrixPreview.numberOfPairs( 5, 3 ) );
+		Assert.assertEquals( 0, MatrixPreview.numberOfPairs( 5, 0 ) );
+	}
+
+	@Test
+	public void testProgress()
+	{
+		try (final MatrixPreview preview = new MatrixPreview( null, 10, "test", 10 ))
+		{
+			preview.update();
+			preview.skip();
+			preview.update();
+			Assert.assertEquals( 3, preview.getDone() );
+
+			Assert.assertEquals(
+					"test: 5/10 pairs, 0:01:40 elapsed, 0:01:40 remaining",
+					preview.status( 5, 10, TimeUnit.SECONDS.toNanos( 100 ) ) );
+			Assert.assertEquals(
+					"test: 10/10 pairs, 1:00:00 elapsed",
+					preview.status( 10, 10, TimeUnit.HOURS.toNanos( 1 ) ) );
+		}
+	}
+
+}
@@ -0,0 +1,150 @@
+package org.janelia.utility;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.real.FloatType;
+
+/**
+ * @author Philipp Hanslovsky &lt;hanslovskyp@janelia.hhmi.org&gt;
+ *
+ */
+public class StripFileTest
+{
+
+	private final int n = 30;
+
+	private final int range = 4;
+
+	private Path path;
+
+	@Before
+	public void setUp() throws IOException
+	{
+		path = Files.createTempFile( "z-spacing", ".strip" );
+	}
+
+	@After
+	public void tearDown() throws IOException
+	{
+		Files.deleteIfExists( path );
+	}
+
+	private float[] strip( final long seed )
+	{
+		final Random rng = new Random( seed );
+		final float[] strip = new float[ n * ( 2 * range + 1 ) ];
+		for ( int i = 0; i < strip.length; ++i )
+			strip[ i ] = rng.nextFloat();
+		return strip;
+	}
+
+	@Test
+	public void testWriteRead() throws IOException
+	{
+		final float[] strip = strip( 1 );
+		StripFile.write( path, strip, n, range );
+
+		final StripFile.Header header = StripFile.readHeader( path );
+		Assert.assertEquals( StripFile.FLOAT, header.type );
+		Assert.assertEquals( n, header.n );
+		Assert.assertEquals( range, header.range );
+		Assert.assertEquals( StripFile.HEADER_BYTES + strip.length * Float.BYTES, Files.size( path ) );
+		Assert.assertArrayEquals( strip, StripFile.readFloats( path ), 0.0f );
+
+		try (final FileChannel channel = FileChannel.open( path, StandardOpenOption.READ ))
+		{
+			final StripFile.MappedFloatAccess access = new StripFile.MappedFloatAccess( channel, MapMode.READ_ONLY, StripFile.HEADER_BYTES, strip.length );
+			for ( int i = 0; i < strip.length; ++i )
+				Assert.assertEquals( strip[ i ], access.getValue( i ), 0.0f );
+		}
+	}
+
+	@Test
+	public void testWriter() throws IOException
+	{
+		final int width = 2 * range + 1;
+		final float[] strip = strip( 4 );
+		try (final StripFile.Writer writer = new StripFile.Writer( path, n, range ))
+		{
+			for ( int y = 0; y < n; ++y )
+				writer.write( y, Arrays.copyOfRange( strip, y * width, ( y + 1 ) * width ) );
+		}
+		Assert.assertArrayEquals( strip, StripFile.readFloats( path ), 0.0f );
+
+		// incomplete strips are discarded and do not replace existing files
+		boolean rejected = false;
+		try (final StripFile.Writer writer = new StripFile.Writer( path, n, range ))
+		{
+			writer.write( 0, new float[ width ] );
+		}
+		catch ( final IOException e )
+		{
+			rejected = true;
+		}
+		Assert.assertTrue( rejected );
+		Assert.assertArrayEquals( strip, StripFile.readFloats( path ), 0.0f );
+	}
+
+	@Test( expected = IOException.class )
+	public void testTruncated() throws IOException
+	{
+		StripFile.write( path, strip( 2 ), n, range );
+		final byte[] bytes = Files.readAllBytes( path );
+		Files.write( path, Arrays.copyOf( bytes, bytes.length - 1 ) );
+		StripFile.readHeader( path );
+	}
+
+	@Test
+	public void testMapped() throws IOException
+	{
+		final float[] strip = strip( 3 );
+		StripFile.write( path, strip, n, range );
+
+		final ArrayImg< FloatType, StripFile.MappedFloatAccess > mapped = StripFile.openFloat( path, true );
+		Assert.assertEquals( 2 * range + 1, mapped.dimension( 0 ) );
+		Assert.assertEquals( n, mapped.dimension( 1 ) );
+
+		// matrix view of the mapped strip
+		final RandomAccessibleInterval< FloatType > matrix = MatrixStripConversion.stripToMatrix( mapped );
+		final RandomAccess< FloatType > access = matrix.randomAccess();
+		for ( int y = 0; y < n; ++y )
+			for ( int x = y - range; x <= y + range; ++x )
+				if ( x >= 0 && x < n )
+				{
+					access.setPosition( new long[] { x, y } );
+					Assert.assertEquals( strip[ y * ( 2 * range + 1 ) + x - y + range ], access.get().get(), 0.0f );
+				}
+
+		// writes go to the file
+		access.setPosition( new long[] { 2, 3 } );
+		access.get().set( -1.0f );
+		Assert.assertEquals( -1.0f, StripFile.readFloats( path )[ 3 * ( 2 * range + 1 ) + 2 - 3 + range ], 0.0f );
+
+		final ArrayImg< DoubleType, ? > doubles = ArrayImgs.doubles( 2 * range + 1, n );
+		int i = 0;
+		for ( final DoubleType t : doubles )
+			t.set( strip[ i++ ] );
+		StripFile.write( path, doubles, StripFile.DOUBLE );
+		i = 0;
+		for ( final DoubleType t : StripFile.openDouble( path, false ) )
+			Assert.assertEquals( strip[ i++ ], t.get(), 0.0 );
+	}
+
+}
@@ -0,0 +1,91 @@
+package org.janelia.utility.arrays;
+
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ArraySortedIndicesTest
+{
+
+	private static void assertSorted( final double[] original, final double[] sorted, final int[] forward, final int[] backward )
+	{
+		for ( int i = 0; i < original.length; ++i )
+		{
+			Assert.assertEquals( original[ backward[ i ] ], sorted[ i ], 0.0 );
+			Assert.assertEquals( i, forward[ backward[ i ] ] );
+			if ( i > 0 )
+			{
+				Assert.assertTrue( sorted[ i - 1 ] <= sorted[ i ] );
+				// stable for ties
+				if ( sorted[ i - 1 ] == sorted[ i ] )
+					Assert.assertTrue( backward[ i - 1 ] < backward[ i ] );
+			}
+		}
+	}
+
+	@Test
+	public void testSortKeepsDuplicates()
+	{
+		final double[] input = { 3.0, 1.0, 2.0, 1.0, 3.0, 0.5 };
+		final double[] sorted = input.clone();
+		final int[] forward = new int[ input.length ];
+		final int[] backward = new int[ input.length ];
+		ArraySortedIndices.sort( sorted, forward, backward );
+
+		Assert.assertArrayEquals( new double[] { 0.5, 1.0, 1.0, 2.0, 3.0, 3.0 }, sorted, 0.0 );
+		Assert.assertArrayEquals( new int[] { 5, 1, 3, 2, 0, 4 }, backward );
+		Assert.assertArrayEquals( backward, ArraySortedIndices.sort( input ) );
+		assertSorted( input, sorted, forward, backward );
+	}
+
+	@Test
+	public void testSortRandom()
+	{
+		final Random rng = new Random( 100 );
+		final double[] input = new double[ 1000 ];
+		for ( int i = 0; i < input.length; ++i )
+			input[ i ] = rng.nextInt( 300 );
+		final double[] sorted = input.clone();
+		final int[] forward = new int[ input.length ];
+		final int[] backward = new int[ input.length ];
+		ArraySortedIndices.sort( sorted, forward, backward );
+		assertSorted( input, sorted, forward, backward );
+	}
+
+	@Test
+	public void testResortEqualsSort()
+	{
+		final Random rng = new Random( 100 );
+		final int n = 500;
+		final double[] lut = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+			lut[ i ] = i;
+
+		final int[] forward = new int[ n ];
+		final int[] backward = new int[ n ];
+		ArraySortedIndices.sort( lut.clone(), forward, backward );
+
+		// small perturbations (nearly sorted) and large ones (fall back)
+		for ( final double amplitude : new double[] { 0.0, 0.5, 3.0, 1000.0 } )
+		{
+			for ( int i = 0; i < n; ++i )
+				lut[ i ] += amplitude * ( rng.nextDouble() - 0.5 );
+			lut[ rng.nextInt( n ) ] = lut[ rng.nextInt( n ) ];
+
+			final double[] expected = lut.clone();
+			final int[] expectedForward = new int[ n ];
+			final int[] expectedBackward = new int[ n ];
+			ArraySortedIndices.sort( expected, expectedForward, expectedBackward );
+
+			final double[] resorted = lut.clone();
+			ArraySortedIndices.resort( resorted, forward, backward );
+
+			Assert.assertArrayEquals( expected, resorted, 0.0 );
+			Assert.assertArrayEquals( expectedForward, forward );
+			Assert.assertArrayEquals( expectedBackward, backward );
+			assertSorted( lut, resorted, forward, backward );
+		}
+	}
+
+}